@@ -0,0 +1,71 @@
+package se.wetcat.qatja.benchmark;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import se.wetcat.qatja.MQTTIdentifierHelper;
+import se.wetcat.qatja.messages.MQTTPublish;
+
+import static se.wetcat.qatja.MQTTConstants.AT_LEAST_ONCE;
+
+/**
+ * State and operations shared by the {@link MQTTIdentifierHelper}
+ * benchmarks.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public final class BenchmarkSupport {
+
+  private BenchmarkSupport() {
+  }
+
+  /**
+   * The message each thread publishes
+   */
+  @State(Scope.Thread)
+  public static class MessageState {
+
+    public MQTTPublish message;
+
+    @Setup
+    public void setup() {
+      message = MQTTPublish.newInstance("benchmark", new byte[0], AT_LEAST_ONCE, 1);
+    }
+
+  }
+
+  /**
+   * Identifier, sent and acknowledged; the bookkeeping of one QoS 1 publish
+   *
+   * @param helper  the helper
+   * @param message the message, its package identifier is replaced
+   * @return the package identifier
+   */
+  public static int publish(MQTTIdentifierHelper helper, MQTTPublish message) {
+    int identifier = helper.getIdentifier();
+    message.setPackageIdentifier(identifier);
+    helper.addSentPackage(message);
+    helper.removeSentPackage(message);
+    return identifier;
+  }
+
+}
@@ -0,0 +1,224 @@
+package se.wetcat.qatja.benchmark;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.wetcat.qatja.MQTTException;
+import se.wetcat.qatja.messages.MQTTConnack;
+import se.wetcat.qatja.messages.MQTTConnect;
+import se.wetcat.qatja.messages.MQTTDecoder;
+import se.wetcat.qatja.messages.MQTTDisconnect;
+import se.wetcat.qatja.messages.MQTTMessage;
+import se.wetcat.qatja.messages.MQTTPingreq;
+import se.wetcat.qatja.messages.MQTTPingresp;
+import se.wetcat.qatja.messages.MQTTPuback;
+import se.wetcat.qatja.messages.MQTTPubcomp;
+import se.wetcat.qatja.messages.MQTTPublish;
+import se.wetcat.qatja.messages.MQTTPublishView;
+import se.wetcat.qatja.messages.MQTTPubrec;
+import se.wetcat.qatja.messages.MQTTPubrel;
+import se.wetcat.qatja.messages.MQTTSuback;
+import se.wetcat.qatja.messages.MQTTSubscribe;
+import se.wetcat.qatja.messages.MQTTUnsuback;
+import se.wetcat.qatja.messages.MQTTUnsubscribe;
+
+import static se.wetcat.qatja.MQTTConstants.AT_LEAST_ONCE;
+import static se.wetcat.qatja.MQTTConstants.AT_MOST_ONCE;
+
+/**
+ * Decoding benchmarks, the fromBuffer() factory of every message type.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+  @State(Scope.Thread)
+  public static class PublishState {
+
+    @Param({"0", "64", "1024", "65536", "1048576"})
+    public int payloadSize;
+
+    @Param({"8", "64", "256"})
+    public int topicLength;
+
+    @Param({"0", "1", "2"})
+    public byte qos;
+
+    public byte[] frame;
+
+    public ByteBuffer buffer;
+
+    public MQTTPublishView view = new MQTTPublishView();
+
+    @Setup
+    public void setup() throws IOException, MQTTException {
+      char[] topic = new char[topicLength];
+      Arrays.fill(topic, 't');
+
+      frame = MQTTPublish.newInstance(new String(topic), new byte[payloadSize], qos, 1).get();
+      buffer = ByteBuffer.allocateDirect(frame.length);
+      buffer.put(frame);
+    }
+
+  }
+
+  @State(Scope.Thread)
+  public static class ControlState {
+
+    public byte[] connect;
+    public byte[] connack;
+    public byte[] subscribe;
+    public byte[] suback;
+    public byte[] unsubscribe;
+    public byte[] unsuback;
+    public byte[] puback;
+    public byte[] pubrec;
+    public byte[] pubrel;
+    public byte[] pubcomp;
+    public byte[] pingreq;
+    public byte[] pingresp;
+    public byte[] disconnect;
+
+    @Setup
+    public void setup() throws IOException, MQTTException {
+      connect = MQTTConnect.newInstance("benchmark-client", "username", "password", false,
+          AT_LEAST_ONCE, "will/topic", "will message", true, 60).get();
+      subscribe = MQTTSubscribe.newInstance(new String[]{"sensors/+/temperature", "sensors/#"},
+          new byte[]{AT_MOST_ONCE, AT_LEAST_ONCE}, 1).get();
+      unsubscribe = MQTTUnsubscribe.newInstance(1, "sensors/+/temperature", "sensors/#").get();
+      puback = MQTTPuback.newInstance(1).get();
+      pubrec = MQTTPubrec.newInstance(1).get();
+      pubrel = MQTTPubrel.newInstance(1).get();
+      pubcomp = MQTTPubcomp.newInstance(1).get();
+      pingreq = MQTTPingreq.newInstance().get();
+      disconnect = MQTTDisconnect.newInstance().get();
+
+      // Sent by the server
+      connack = new byte[]{0x20, 0x02, 0x00, 0x00};
+      suback = new byte[]{(byte) 0x90, 0x04, 0x00, 0x01, 0x00, 0x01};
+      unsuback = new byte[]{(byte) 0xB0, 0x02, 0x00, 0x01};
+      pingresp = new byte[]{(byte) 0xD0, 0x00};
+    }
+
+  }
+
+  @Benchmark
+  public MQTTPublish publish(PublishState state) throws MQTTException {
+    return MQTTPublish.fromBuffer(state.frame);
+  }
+
+  @Benchmark
+  public MQTTMessage publishDecoder(PublishState state) throws MQTTException {
+    state.buffer.clear();
+    return MQTTDecoder.decode(state.buffer);
+  }
+
+  @Benchmark
+  public int publishView(PublishState state) throws MQTTException {
+    state.buffer.clear();
+    return state.view.wrap(state.buffer).getPayloadLength();
+  }
+
+  @Benchmark
+  public MQTTConnect connect(ControlState state) throws MQTTException {
+    return MQTTConnect.fromBuffer(state.connect);
+  }
+
+  @Benchmark
+  public MQTTConnack connack(ControlState state) throws MQTTException {
+    return MQTTConnack.fromBuffer(state.connack);
+  }
+
+  @Benchmark
+  public MQTTSubscribe subscribe(ControlState state) throws MQTTException {
+    return MQTTSubscribe.fromBuffer(state.subscribe);
+  }
+
+  @Benchmark
+  public MQTTSuback suback(ControlState state) throws MQTTException {
+    return MQTTSuback.fromBuffer(state.suback);
+  }
+
+  @Benchmark
+  public MQTTUnsubscribe unsubscribe(ControlState state) throws MQTTException {
+    return MQTTUnsubscribe.fromBuffer(state.unsubscribe);
+  }
+
+  @Benchmark
+  public MQTTUnsuback unsuback(ControlState state) throws MQTTException {
+    return MQTTUnsuback.fromBuffer(state.unsuback);
+  }
+
+  @Benchmark
+  public MQTTPuback puback(ControlState state) throws MQTTException {
+    return MQTTPuback.fromBuffer(state.puback);
+  }
+
+  @Benchmark
+  public MQTTPubrec pubrec(ControlState state) throws MQTTException {
+    return MQTTPubrec.fromBuffer(state.pubrec);
+  }
+
+  @Benchmark
+  public MQTTPubrel pubrel(ControlState state) throws MQTTException {
+    return MQTTPubrel.fromBuffer(state.pubrel);
+  }
+
+  @Benchmark
+  public MQTTPubcomp pubcomp(ControlState state) throws MQTTException {
+    return MQTTPubcomp.fromBuffer(state.pubcomp);
+  }
+
+  @Benchmark
+  public MQTTPingreq pingreq(ControlState state) throws MQTTException {
+    return MQTTPingreq.fromBuffer(state.pingreq);
+  }
+
+  @Benchmark
+  public MQTTPingresp pingresp(ControlState state) throws MQTTException {
+    return MQTTPingresp.fromBuffer(state.pingresp);
+  }
+
+  @Benchmark
+  public MQTTDisconnect disconnect(ControlState state) throws MQTTException {
+    return MQTTDisconnect.fromBuffer(state.disconnect);
+  }
+
+}
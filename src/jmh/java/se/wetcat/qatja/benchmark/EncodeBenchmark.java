@@ -0,0 +1,246 @@
+package se.wetcat.qatja.benchmark;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.wetcat.qatja.MQTTException;
+import se.wetcat.qatja.messages.MQTTConnack;
+import se.wetcat.qatja.messages.MQTTConnect;
+import se.wetcat.qatja.messages.MQTTDisconnect;
+import se.wetcat.qatja.messages.MQTTPingreq;
+import se.wetcat.qatja.messages.MQTTPingresp;
+import se.wetcat.qatja.messages.MQTTPuback;
+import se.wetcat.qatja.messages.MQTTPubcomp;
+import se.wetcat.qatja.messages.MQTTPublish;
+import se.wetcat.qatja.messages.MQTTPubrec;
+import se.wetcat.qatja.messages.MQTTPubrel;
+import se.wetcat.qatja.messages.MQTTSuback;
+import se.wetcat.qatja.messages.MQTTTopicCache;
+import se.wetcat.qatja.messages.MQTTSubscribe;
+import se.wetcat.qatja.messages.MQTTUnsuback;
+import se.wetcat.qatja.messages.MQTTUnsubscribe;
+
+import static se.wetcat.qatja.MQTTConstants.AT_LEAST_ONCE;
+import static se.wetcat.qatja.MQTTConstants.AT_MOST_ONCE;
+import static se.wetcat.qatja.MQTTConstants.CONNECTION_ACCEPTED;
+import static se.wetcat.qatja.MQTTConstants.SUBSCRIBE_FAILURE;
+
+/**
+ * Encoding benchmarks, {@link se.wetcat.qatja.messages.MQTTMessage#get()} for
+ * every message type.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+
+  @State(Scope.Thread)
+  public static class PublishState {
+
+    @Param({"0", "64", "1024", "65536", "1048576"})
+    public int payloadSize;
+
+    @Param({"8", "64", "256"})
+    public int topicLength;
+
+    @Param({"0", "1", "2"})
+    public byte qos;
+
+    public MQTTPublish message;
+
+    public MQTTPublish cachedTopicMessage;
+
+    public ByteBuffer buffer;
+
+    @Setup
+    public void setup() throws MQTTException {
+      char[] topic = new char[topicLength];
+      Arrays.fill(topic, 't');
+
+      message = MQTTPublish.newInstance(new String(topic), new byte[payloadSize], qos, 1);
+      cachedTopicMessage = MQTTPublish.newInstance(new MQTTTopicCache().get(new String(topic)),
+          new byte[payloadSize], qos, 1);
+      buffer = ByteBuffer.allocateDirect(payloadSize + topicLength + 16);
+    }
+
+  }
+
+  @State(Scope.Thread)
+  public static class ControlState {
+
+    public MQTTConnect connect;
+    public MQTTConnack connack;
+    public MQTTSubscribe subscribe;
+    public MQTTSuback suback;
+    public MQTTUnsubscribe unsubscribe;
+    public MQTTUnsuback unsuback;
+    public MQTTPuback puback;
+    public MQTTPubrec pubrec;
+    public MQTTPubrel pubrel;
+    public MQTTPubcomp pubcomp;
+    public MQTTPingreq pingreq;
+    public MQTTPingresp pingresp;
+    public MQTTDisconnect disconnect;
+
+    @Setup
+    public void setup() {
+      connect = MQTTConnect.newInstance("benchmark-client", "username", "password", false,
+          AT_LEAST_ONCE, "will/topic", "will message", true, 60);
+      connack = MQTTConnack.newInstance(false, CONNECTION_ACCEPTED);
+      subscribe = MQTTSubscribe.newInstance(new String[]{"sensors/+/temperature", "sensors/#"},
+          new byte[]{AT_MOST_ONCE, AT_LEAST_ONCE}, 1);
+      suback = MQTTSuback.newInstance(1, AT_MOST_ONCE, SUBSCRIBE_FAILURE);
+      unsubscribe = MQTTUnsubscribe.newInstance(1, "sensors/+/temperature", "sensors/#");
+      unsuback = MQTTUnsuback.newInstance(1);
+      puback = MQTTPuback.newInstance(1);
+      pubrec = MQTTPubrec.newInstance(1);
+      pubrel = MQTTPubrel.newInstance(1);
+      pubcomp = MQTTPubcomp.newInstance(1);
+      pingreq = MQTTPingreq.newInstance();
+      pingresp = MQTTPingresp.newInstance();
+      disconnect = MQTTDisconnect.newInstance();
+    }
+
+  }
+
+  /**
+   * A new message; setting the identifier drops the frame cached by the
+   * previous invocation
+   */
+  @Benchmark
+  public byte[] publish(PublishState state) throws IOException, MQTTException {
+    state.message.setPackageIdentifier(1);
+    return state.message.get();
+  }
+
+  @Benchmark
+  public int publishWriteTo(PublishState state) throws MQTTException {
+    state.message.setPackageIdentifier(1);
+    state.buffer.clear();
+    return state.message.writeTo(state.buffer);
+  }
+
+  @Benchmark
+  public int publishCachedTopic(PublishState state) throws MQTTException {
+    state.cachedTopicMessage.setPackageIdentifier(1);
+    state.buffer.clear();
+    return state.cachedTopicMessage.writeTo(state.buffer);
+  }
+
+  /**
+   * A retransmission, which reuses the frame cached by the first send
+   */
+  @Benchmark
+  public int publishRetransmit(PublishState state) throws MQTTException {
+    state.message.setDup();
+    state.buffer.clear();
+    return state.message.writeTo(state.buffer);
+  }
+
+  @Benchmark
+  public ByteBuffer[] publishBuffers(PublishState state) throws MQTTException {
+    return state.message.getBuffers();
+  }
+
+  @Benchmark
+  public byte[] connect(ControlState state) throws IOException, MQTTException {
+    return state.connect.get();
+  }
+
+  @Benchmark
+  public byte[] connack(ControlState state) throws IOException, MQTTException {
+    return state.connack.get();
+  }
+
+  @Benchmark
+  public byte[] subscribe(ControlState state) throws IOException, MQTTException {
+    return state.subscribe.get();
+  }
+
+  @Benchmark
+  public byte[] suback(ControlState state) throws IOException, MQTTException {
+    return state.suback.get();
+  }
+
+  @Benchmark
+  public byte[] unsubscribe(ControlState state) throws IOException, MQTTException {
+    return state.unsubscribe.get();
+  }
+
+  @Benchmark
+  public byte[] unsuback(ControlState state) throws IOException, MQTTException {
+    return state.unsuback.get();
+  }
+
+  @Benchmark
+  public byte[] puback(ControlState state) throws IOException, MQTTException {
+    return state.puback.get();
+  }
+
+  @Benchmark
+  public byte[] pubrec(ControlState state) throws IOException, MQTTException {
+    return state.pubrec.get();
+  }
+
+  @Benchmark
+  public byte[] pubrel(ControlState state) throws IOException, MQTTException {
+    return state.pubrel.get();
+  }
+
+  @Benchmark
+  public byte[] pubcomp(ControlState state) throws IOException, MQTTException {
+    return state.pubcomp.get();
+  }
+
+  @Benchmark
+  public byte[] pingreq(ControlState state) throws IOException, MQTTException {
+    return state.pingreq.get();
+  }
+
+  @Benchmark
+  public byte[] pingresp(ControlState state) throws IOException, MQTTException {
+    return state.pingresp.get();
+  }
+
+  @Benchmark
+  public byte[] disconnect(ControlState state) throws IOException, MQTTException {
+    return state.disconnect.get();
+  }
+
+}
@@ -0,0 +1,106 @@
+package se.wetcat.qatja.benchmark;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.wetcat.qatja.MQTTIdentifierHelper;
+import se.wetcat.qatja.messages.MQTTPublish;
+
+import static se.wetcat.qatja.MQTTConstants.AT_LEAST_ONCE;
+
+/**
+ * {@link MQTTIdentifierHelper} benchmarks, with a varying number of messages
+ * already in flight, on one thread and with several threads sharing one
+ * helper.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdentifierHelperBenchmark {
+
+  /**
+   * A helper with a number of QoS 1 messages in flight, shared by all threads
+   */
+  @State(Scope.Benchmark)
+  public static class HelperState {
+
+    @Param({"1", "100", "10000"})
+    public int inFlight;
+
+    public MQTTIdentifierHelper helper;
+
+    @Setup
+    public void setup() {
+      helper = new MQTTIdentifierHelper();
+      for (int i = 0; i < inFlight; i++) {
+        helper.addSentPackage(MQTTPublish.newInstance("benchmark", new byte[0], AT_LEAST_ONCE, i + 1));
+      }
+    }
+
+  }
+
+  /**
+   * Claim and release, identifiers stay in use until they are released
+   */
+  @Benchmark
+  public int getIdentifier(HelperState state) {
+    int identifier = state.helper.getIdentifier();
+    state.helper.releaseIdentifier(identifier);
+    return identifier;
+  }
+
+  /**
+   * Identifier, sent and acknowledged; the bookkeeping of one QoS 1 publish
+   */
+  @Benchmark
+  public int publish(HelperState state, BenchmarkSupport.MessageState message) {
+    return BenchmarkSupport.publish(state.helper, message.message);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public int publishContended4(HelperState state, BenchmarkSupport.MessageState message) {
+    return BenchmarkSupport.publish(state.helper, message.message);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public int publishContended16(HelperState state, BenchmarkSupport.MessageState message) {
+    return BenchmarkSupport.publish(state.helper, message.message);
+  }
+
+}
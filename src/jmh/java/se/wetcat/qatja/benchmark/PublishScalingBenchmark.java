@@ -0,0 +1,102 @@
+package se.wetcat.qatja.benchmark;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.wetcat.qatja.MQTTIdentifierHelper;
+
+/**
+ * Throughput of the QoS 1 bookkeeping with 1 to 32 producer threads sharing
+ * one {@link MQTTIdentifierHelper}; the total throughput should grow with
+ * the number of threads, up to the number of processors.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PublishScalingBenchmark {
+
+  /**
+   * The helper, shared by all threads
+   */
+  @State(Scope.Benchmark)
+  public static class HelperState {
+
+    public MQTTIdentifierHelper helper;
+
+    @Setup
+    public void setup() {
+      helper = new MQTTIdentifierHelper();
+    }
+
+  }
+
+  @Benchmark
+  @Threads(1)
+  public int threads01(HelperState state, BenchmarkSupport.MessageState message) {
+    return BenchmarkSupport.publish(state.helper, message.message);
+  }
+
+  @Benchmark
+  @Threads(2)
+  public int threads02(HelperState state, BenchmarkSupport.MessageState message) {
+    return BenchmarkSupport.publish(state.helper, message.message);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public int threads04(HelperState state, BenchmarkSupport.MessageState message) {
+    return BenchmarkSupport.publish(state.helper, message.message);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public int threads08(HelperState state, BenchmarkSupport.MessageState message) {
+    return BenchmarkSupport.publish(state.helper, message.message);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public int threads16(HelperState state, BenchmarkSupport.MessageState message) {
+    return BenchmarkSupport.publish(state.helper, message.message);
+  }
+
+  @Benchmark
+  @Threads(32)
+  public int threads32(HelperState state, BenchmarkSupport.MessageState message) {
+    return BenchmarkSupport.publish(state.helper, message.message);
+  }
+
+}
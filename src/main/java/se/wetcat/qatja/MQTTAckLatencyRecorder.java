@@ -0,0 +1,134 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import se.wetcat.qatja.messages.MQTTMessage;
+import se.wetcat.qatja.messages.MQTTPublish;
+
+import static se.wetcat.qatja.MQTTConstants.AT_LEAST_ONCE;
+import static se.wetcat.qatja.MQTTConstants.EXACTLY_ONCE;
+
+/**
+ * Measures the acknowledgement round trip of published messages, from the
+ * PUBLISH being added to the {@link MQTTIdentifierHelper} until it is
+ * removed, that is until PUBACK for {@link MQTTConstants#AT_LEAST_ONCE} and
+ * PUBCOMP for {@link MQTTConstants#EXACTLY_ONCE}.
+ * <p>
+ * The start of every package identifier is kept in a primitive array and
+ * the round trips go into one {@link MQTTLatencyHistogram} per QoS, so the
+ * memory used is fixed and nothing is allocated per message. Attach it with
+ * {@link MQTTIdentifierHelper#setLatencyRecorder(MQTTAckLatencyRecorder)}.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTAckLatencyRecorder {
+
+  private static final int SLOTS = MQTTIdentifierAllocator.MAX_IDENTIFIER + 1;
+
+  /**
+   * Start in nanoseconds per identifier, 0 if not started
+   */
+  private final AtomicLongArray starts = new AtomicLongArray(SLOTS);
+
+  private final byte[] qos = new byte[SLOTS];
+
+  private final MQTTLatencyHistogram atLeastOnce = new MQTTLatencyHistogram();
+  private final MQTTLatencyHistogram exactlyOnce = new MQTTLatencyHistogram();
+
+  /**
+   * A message was added to the sent packages. Only a PUBLISH starts the
+   * clock, the PUBREL that replaces it halfway through QoS 2 doesn't.
+   *
+   * @param message the message
+   */
+  void sent(MQTTMessage message) {
+    if (!(message instanceof MQTTPublish))
+      return;
+
+    byte QoS = ((MQTTPublish) message).getQoS();
+    if (QoS != AT_LEAST_ONCE && QoS != EXACTLY_ONCE)
+      return;
+
+    int identifier = message.getPackageIdentifier();
+    if (identifier < 1 || identifier >= SLOTS)
+      return;
+
+    qos[identifier] = QoS;
+
+    long now = System.nanoTime();
+    // 0 means not started
+    starts.set(identifier, now == 0 ? 1 : now);
+  }
+
+  /**
+   * The message with the identifier was removed from the sent packages
+   *
+   * @param identifier the package identifier
+   */
+  void acknowledged(int identifier) {
+    if (identifier < 1 || identifier >= SLOTS)
+      return;
+
+    long start = starts.getAndSet(identifier, 0);
+    if (start == 0)
+      return;
+
+    long latency = System.nanoTime() - start;
+    if (qos[identifier] == EXACTLY_ONCE)
+      exactlyOnce.record(latency);
+    else
+      atLeastOnce.record(latency);
+  }
+
+  /**
+   * @param QoS {@link MQTTConstants#AT_LEAST_ONCE} or
+   *            {@link MQTTConstants#EXACTLY_ONCE}
+   * @return the round trips of the QoS, in nanoseconds
+   */
+  public MQTTLatencyHistogram getHistogram(byte QoS) {
+    switch (QoS) {
+      case AT_LEAST_ONCE:
+        return atLeastOnce;
+      case EXACTLY_ONCE:
+        return exactlyOnce;
+      default:
+        throw new IllegalArgumentException("No acknowledgement for QoS " + QoS);
+    }
+  }
+
+  /**
+   * @param QoS {@link MQTTConstants#AT_LEAST_ONCE} or
+   *            {@link MQTTConstants#EXACTLY_ONCE}
+   * @return a copy of the round trips of the QoS, in nanoseconds
+   */
+  public MQTTLatencyHistogram.Snapshot snapshot(byte QoS) {
+    return getHistogram(QoS).snapshot();
+  }
+
+  /**
+   * Forget every recorded round trip, messages in flight are still measured
+   */
+  public void reset() {
+    atLeastOnce.reset();
+    exactlyOnce.reset();
+  }
+
+}
@@ -159,4 +159,10 @@ public class MQTTConstants {
    */
   public static final int MAX_LENGTH = 65535;
 
+  /**
+   * Maximum value of the remaining length field, the largest number that can
+   * be represented by the four byte variable length encoding
+   */
+  public static final int MAX_REMAINING_LENGTH = 268435455;
+
 }
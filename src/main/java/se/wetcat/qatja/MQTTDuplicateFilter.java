@@ -0,0 +1,223 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import se.wetcat.qatja.messages.MQTTPublish;
+import se.wetcat.qatja.messages.MQTTPublishView;
+
+import static se.wetcat.qatja.MQTTConstants.AT_MOST_ONCE;
+
+/**
+ * Drops received PUBLISH messages that are redeliveries of a message that
+ * was already accepted, before they reach the application.
+ * <p>
+ * A redelivery has the DUP flag set and the same package identifier as the
+ * original, so the filter remembers a 32 bit fingerprint of the topic and
+ * payload last seen per identifier. A DUP message whose fingerprint matches
+ * is dropped, as long as the original was among the last {@code window}
+ * messages accepted; anything else is accepted and remembered.
+ * <p>
+ * The sender reuses an identifier once its flow is complete, and a new
+ * message whose first delivery is lost arrives with DUP set; call
+ * {@link #completed(int)} when the flow of an identifier completes so that
+ * such a message isn't taken for a redelivery of the previous one.
+ * {@link MQTTExactlyOnce} does this on PUBREL when it is given the filter.
+ * <p>
+ * Every identifier is one slot of a packed array, half fingerprint and half
+ * sequence number, so the memory used is fixed at 512 KB and no payload is
+ * kept. The filter is thread safe.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTDuplicateFilter {
+
+  /**
+   * Remember a message for the next 65536 messages
+   */
+  public static final int DEFAULT_WINDOW = 65536;
+
+  private final int window;
+
+  private final AtomicLongArray slots = new AtomicLongArray(MQTTIdentifierAllocator.MAX_IDENTIFIER + 1);
+
+  private final AtomicInteger sequence = new AtomicInteger();
+
+  private final AtomicLong dropped = new AtomicLong();
+
+  public MQTTDuplicateFilter() {
+    this(DEFAULT_WINDOW);
+  }
+
+  /**
+   * @param window the number of messages that a message is remembered for
+   */
+  public MQTTDuplicateFilter(int window) {
+    if (window < 1)
+      throw new IllegalArgumentException("Window must be positive, " + window);
+
+    this.window = window;
+  }
+
+  /**
+   * @param publish the received message
+   * @return true if the message should be delivered, false if it is a
+   * redelivery
+   */
+  public boolean accept(MQTTPublish publish) {
+    if (publish.getQoS() == AT_MOST_ONCE)
+      return true;
+
+    int hash = hash(publish.getTopicName());
+    byte[] payload = publish.getPayload();
+    if (payload != null) {
+      for (byte b : payload) {
+        hash = 31 * hash + b;
+      }
+    }
+
+    return accept(publish.getPackageIdentifier(), publish.isDup(), mix(hash));
+  }
+
+  /**
+   * Same as {@link #accept(MQTTPublish)}, for a message that hasn't been
+   * decoded. The topic and payload are read in place.
+   *
+   * @param view the received message
+   * @return true if the message should be delivered, false if it is a
+   * redelivery
+   */
+  public boolean accept(MQTTPublishView view) {
+    if (view.getQoS() == AT_MOST_ONCE)
+      return true;
+
+    ByteBuffer buffer = view.getBuffer();
+    int hash = 31 + view.getTopicLength();
+    for (int i = view.getTopicOffset(), end = i + view.getTopicLength(); i < end; i++) {
+      hash = 31 * hash + buffer.get(i);
+    }
+    for (int i = view.getPayloadOffset(), end = i + view.getPayloadLength(); i < end; i++) {
+      hash = 31 * hash + buffer.get(i);
+    }
+
+    return accept(view.getPackageIdentifier(), view.isDup(), mix(hash));
+  }
+
+  /**
+   * @return The number of messages dropped as redeliveries
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * @return The number of messages that a message is remembered for
+   */
+  public int getWindow() {
+    return window;
+  }
+
+  /**
+   * The flow of an identifier is complete, the next message with it is a new
+   * message even if it has DUP set. For QoS 2 that is when the PUBREL
+   * arrives.
+   *
+   * @param identifier the package identifier
+   */
+  public void completed(int identifier) {
+    if (identifier >= 1 && identifier <= MQTTIdentifierAllocator.MAX_IDENTIFIER)
+      slots.set(identifier, 0);
+  }
+
+  /**
+   * Forget every message, for instance when a new session starts
+   */
+  public void clear() {
+    for (int i = 0; i < slots.length(); i++) {
+      slots.set(i, 0);
+    }
+  }
+
+  private boolean accept(int identifier, boolean dup, int hash) {
+    if (identifier < 1 || identifier > MQTTIdentifierAllocator.MAX_IDENTIFIER)
+      return true;
+
+    int seq = sequence.incrementAndGet();
+    if (seq == 0) {
+      // 0 marks an empty slot
+      seq = sequence.incrementAndGet();
+    }
+
+    long entry = ((long) hash << 32) | (seq & 0xFFFFFFFFL);
+
+    long previous;
+    do {
+      previous = slots.get(identifier);
+
+      if (dup && previous != 0 && (int) (previous >>> 32) == hash) {
+        int age = seq - (int) previous;
+        if (age >= 0 && age <= window) {
+          dropped.incrementAndGet();
+          return false;
+        }
+      }
+    } while (!slots.compareAndSet(identifier, previous, entry));
+
+    return true;
+  }
+
+  /**
+   * Hash of the length and the UTF-8 bytes of the topic, the same as
+   * {@link #accept(MQTTPublishView)} reads them, without encoding the topic
+   */
+  private static int hash(String topic) {
+    if (topic == null)
+      return 31;
+
+    // Hashes the bytes MQTTHelper.writeUTF8 would write
+    int hash = 31 + MQTTHelper.utf8Length(topic);
+    for (int i = 0, n = topic.length(); i < n; ) {
+      int encoded = MQTTHelper.utf8Encode(topic, i);
+      int bytes = MQTTHelper.utf8Bytes(encoded);
+      for (int b = 0; b < bytes; b++, encoded >>>= 8) {
+        hash = 31 * hash + (byte) encoded;
+      }
+      i += MQTTHelper.utf8Chars(bytes);
+    }
+    return hash;
+  }
+
+  /**
+   * Spread the bits, so that payloads that differ in one byte differ in many
+   * bits of the fingerprint
+   */
+  private static int mix(int hash) {
+    hash ^= hash >>> 16;
+    hash *= 0x85EBCA6B;
+    hash ^= hash >>> 13;
+    hash *= 0xC2B2AE35;
+    hash ^= hash >>> 16;
+    return hash;
+  }
+
+}
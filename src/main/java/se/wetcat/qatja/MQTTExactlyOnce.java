@@ -0,0 +1,280 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import se.wetcat.qatja.messages.MQTTMessage;
+import se.wetcat.qatja.messages.MQTTPubcomp;
+import se.wetcat.qatja.messages.MQTTPublish;
+import se.wetcat.qatja.messages.MQTTPubrec;
+import se.wetcat.qatja.messages.MQTTPubrel;
+
+import static se.wetcat.qatja.MQTTConstants.EXACTLY_ONCE;
+
+/**
+ * Tracks the {@link se.wetcat.qatja.MQTTConstants#EXACTLY_ONCE} protocol
+ * exchange, PUBLISH, PUBREC, PUBREL and PUBCOMP, for both directions.
+ * <p>
+ * The stage of every package identifier is two bits of a packed array, changed
+ * with a compare-and-set, so acknowledgements that arrive out of order are
+ * rejected without any locking. On the sending side the PUBLISH is replaced
+ * by its PUBREL in the {@link MQTTIdentifierHelper} as soon as the PUBREC
+ * arrives, which releases the payload; on the receiving side only the stage
+ * is kept, never the message.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTExactlyOnce {
+
+  /**
+   * No exchange in progress
+   */
+  public static final int IDLE = 0;
+
+  /**
+   * Sender, PUBLISH sent and waiting for PUBREC
+   */
+  public static final int PUBLISHED = 1;
+
+  /**
+   * Sender, PUBREL sent and waiting for PUBCOMP
+   */
+  public static final int RELEASED = 2;
+
+  /**
+   * Receiver, PUBLISH received and PUBREC sent, waiting for PUBREL
+   */
+  public static final int RECEIVED = 1;
+
+  private static final int WORDS = (MQTTIdentifierAllocator.MAX_IDENTIFIER + 1) / 32;
+
+  private final MQTTIdentifierHelper helper;
+
+  private final AtomicLongArray sender = new AtomicLongArray(WORDS);
+  private final AtomicLongArray receiver = new AtomicLongArray(WORDS);
+
+  private volatile MQTTDuplicateFilter duplicateFilter;
+
+  /**
+   * @param helper holds the sent messages until they are complete
+   */
+  public MQTTExactlyOnce(MQTTIdentifierHelper helper) {
+    this.helper = helper;
+  }
+
+  /**
+   * Tell a filter of received messages when an exchange completes, so that a
+   * new message with the identifier isn't taken for a redelivery.
+   *
+   * @param duplicateFilter the filter, or null
+   */
+  public void setDuplicateFilter(MQTTDuplicateFilter duplicateFilter) {
+    this.duplicateFilter = duplicateFilter;
+  }
+
+  /**
+   * @return The duplicate filter, or null
+   */
+  public MQTTDuplicateFilter getDuplicateFilter() {
+    return duplicateFilter;
+  }
+
+  /**
+   * Start sending a message, call before it is written.
+   *
+   * @param publish the message, {@link MQTTConstants#EXACTLY_ONCE} with a
+   *                package identifier
+   * @return true if the exchange was started, false if the identifier is
+   * already in use by another exchange
+   * @throws IllegalStateException if the helper can't journal the message,
+   *                               the exchange is then not started
+   */
+  public boolean publish(MQTTPublish publish) {
+    if (publish.getQoS() != EXACTLY_ONCE)
+      throw new IllegalArgumentException("Not an EXACTLY_ONCE message");
+
+    int identifier = check(publish.getPackageIdentifier());
+    if (!transition(sender, identifier, IDLE, PUBLISHED))
+      return false;
+
+    try {
+      helper.addSentPackage(publish);
+    } catch (RuntimeException e) {
+      transition(sender, identifier, PUBLISHED, IDLE);
+      throw e;
+    }
+    return true;
+  }
+
+  /**
+   * A PUBREC arrived, the receiver has the message.
+   *
+   * @param pubrec the acknowledgement
+   * @return the PUBREL to send, or null if no PUBLISH with the identifier is
+   * waiting for a PUBREC
+   * @throws IllegalStateException if the helper can't journal the PUBREL, the
+   *                               PUBLISH then still waits for a PUBREC
+   */
+  public MQTTPubrel pubrec(MQTTPubrec pubrec) {
+    int identifier = pubrec.getPackageIdentifier();
+    if (!isValid(identifier))
+      return null;
+
+    if (transition(sender, identifier, PUBLISHED, RELEASED)) {
+      // Replacing the PUBLISH releases its payload
+      MQTTPubrel pubrel = MQTTPubrel.newInstance(identifier);
+      try {
+        helper.addSentPackage(pubrel);
+      } catch (RuntimeException e) {
+        transition(sender, identifier, RELEASED, PUBLISHED);
+        throw e;
+      }
+      return pubrel;
+    }
+
+    if (state(sender, identifier) == RELEASED) {
+      // The PUBREL was lost, send it again
+      MQTTMessage pubrel = helper.getSentPackages().get(identifier);
+      if (pubrel instanceof MQTTPubrel)
+        return (MQTTPubrel) pubrel;
+    }
+
+    return null;
+  }
+
+  /**
+   * A PUBCOMP arrived, the exchange is complete and the identifier is free.
+   *
+   * @param pubcomp the acknowledgement
+   * @return true if it completed an exchange, false if no PUBREL with the
+   * identifier is waiting for a PUBCOMP
+   */
+  public boolean pubcomp(MQTTPubcomp pubcomp) {
+    int identifier = pubcomp.getPackageIdentifier();
+    if (!isValid(identifier))
+      return false;
+
+    MQTTMessage pubrel = helper.getSentPackages().get(identifier);
+    if (!transition(sender, identifier, RELEASED, IDLE))
+      return false;
+
+    if (pubrel != null)
+      helper.removeSentPackage(pubrel);
+    return true;
+  }
+
+  /**
+   * A PUBLISH arrived. A PUBREC MUST be sent for it either way [MQTT-4.3.3-2].
+   *
+   * @param publish the message
+   * @return true if the message is new and should be delivered, false if it
+   * is a redelivery of a message that was already delivered
+   */
+  public boolean received(MQTTPublish publish) {
+    int identifier = publish.getPackageIdentifier();
+    return isValid(identifier) && transition(receiver, identifier, IDLE, RECEIVED);
+  }
+
+  /**
+   * A PUBREL arrived, the identifier may be reused by the sender. A PUBCOMP
+   * MUST be sent for it either way [MQTT-4.3.3-2].
+   *
+   * @param pubrel the release
+   * @return true if it completed an exchange, false if no PUBLISH with the
+   * identifier was waiting for it
+   */
+  public boolean pubrel(MQTTPubrel pubrel) {
+    int identifier = pubrel.getPackageIdentifier();
+    if (!isValid(identifier) || !transition(receiver, identifier, RECEIVED, IDLE))
+      return false;
+
+    MQTTDuplicateFilter filter = duplicateFilter;
+    if (filter != null)
+      filter.completed(identifier);
+    return true;
+  }
+
+  /**
+   * @param identifier the package identifier
+   * @return the stage of the sending side, {@link #IDLE}, {@link #PUBLISHED}
+   * or {@link #RELEASED}
+   */
+  public int getSenderState(int identifier) {
+    return state(sender, check(identifier));
+  }
+
+  /**
+   * @param identifier the package identifier
+   * @return the stage of the receiving side, {@link #IDLE} or
+   * {@link #RECEIVED}
+   */
+  public int getReceiverState(int identifier) {
+    return state(receiver, check(identifier));
+  }
+
+  /**
+   * Rebuild the sending side from the messages in the helper, after they have
+   * been restored from a {@link MQTTJournal}.
+   */
+  public void recover() {
+    helper.getSentPackages().forEach(new MQTTInflightTable.Visitor() {
+      @Override
+      public boolean visit(int identifier, MQTTMessage message) {
+        if (message instanceof MQTTPubrel)
+          transition(sender, identifier, IDLE, RELEASED);
+        else if (message instanceof MQTTPublish && ((MQTTPublish) message).getQoS() == EXACTLY_ONCE)
+          transition(sender, identifier, IDLE, PUBLISHED);
+        return true;
+      }
+    });
+  }
+
+  private static int state(AtomicLongArray states, int identifier) {
+    return (int) (states.get(identifier >>> 5) >>> ((identifier & 31) << 1)) & 0x03;
+  }
+
+  private static boolean transition(AtomicLongArray states, int identifier, int from, int to) {
+    int word = identifier >>> 5;
+    int shift = (identifier & 31) << 1;
+
+    long value;
+    long updated;
+    do {
+      value = states.get(word);
+      if ((int) ((value >>> shift) & 0x03) != from)
+        return false;
+
+      updated = (value & ~(0x03L << shift)) | ((long) to << shift);
+    } while (!states.compareAndSet(word, value, updated));
+
+    return true;
+  }
+
+  private static boolean isValid(int identifier) {
+    return identifier >= 1 && identifier <= MQTTIdentifierAllocator.MAX_IDENTIFIER;
+  }
+
+  private static int check(int identifier) {
+    if (!isValid(identifier))
+      throw new IllegalArgumentException("Invalid package identifier " + identifier);
+    return identifier;
+  }
+
+}
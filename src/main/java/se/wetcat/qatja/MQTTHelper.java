@@ -16,7 +16,9 @@ package se.wetcat.qatja;
  * limitations under the License.
  */
 
-import org.mozilla.universalchardet.UniversalDetector;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 import se.wetcat.qatja.messages.MQTTMessage;
 
 import static se.wetcat.qatja.MQTTConstants.CONNECT;
@@ -33,6 +35,7 @@ import static se.wetcat.qatja.MQTTConstants.UNSUBACK;
 import static se.wetcat.qatja.MQTTConstants.PINGREQ;
 import static se.wetcat.qatja.MQTTConstants.PINGRESP;
 import static se.wetcat.qatja.MQTTConstants.DISCONNECT;
+import static se.wetcat.qatja.MQTTConstants.MAX_LENGTH;
 
 /**
  * Helper methods for MQTT
@@ -45,23 +48,161 @@ public class MQTTHelper {
 
 //  private static int lastPackageIdentifier = 1;
 
-  private static final String UTF8 = "UTF-8";
-
   /**
-   * Detects if string is encoded with UTF-8
+   * Detects if a byte array is a well-formed MQTT UTF-8 encoded string; valid
+   * UTF-8 without U+0000 or surrogates, no longer than 65535 bytes [MQTT-1.5.3].
    *
    * @param buffer String
    * @return true if UTF-8, false otherwise
    */
   public static boolean isUTF8(byte[] buffer) {
-    UniversalDetector detector = new UniversalDetector(null);
-    detector.handleData(buffer, 0, buffer.length);
-    detector.dataEnd();
+    return isUTF8(buffer, 0, buffer.length);
+  }
+
+  /**
+   * Detects if a range of a byte array is a well-formed MQTT UTF-8 encoded
+   * string, see {@link #isUTF8(byte[])}.
+   *
+   * @param buffer the bytes
+   * @param offset start of the string
+   * @param length number of bytes in the string
+   * @return true if UTF-8, false otherwise
+   */
+  public static boolean isUTF8(byte[] buffer, int offset, int length) {
+    if (length > MAX_LENGTH)
+      return false;
+
+    int i = offset;
+    int end = offset + length;
+    while (i < end) {
+      int b = buffer[i++];
+
+      // U+0001 to U+007F, the common case
+      if (b > 0)
+        continue;
+
+      int n = continuationBytes(b);
+      if (n < 0 || end - i < n || !isSecondByte(b & 0xFF, buffer[i] & 0xFF))
+        return false;
+      for (int j = 1; j < n; j++) {
+        if ((buffer[i + j] & 0xC0) != 0x80)
+          return false;
+      }
+      i += n;
+    }
+
+    return true;
+  }
+
+  /**
+   * Detects if the bytes between position and limit of a buffer are a
+   * well-formed MQTT UTF-8 encoded string, see {@link #isUTF8(byte[])}. The
+   * position of the buffer is not changed.
+   *
+   * @param buffer the bytes
+   * @return true if UTF-8, false otherwise
+   */
+  public static boolean isUTF8(ByteBuffer buffer) {
+    if (buffer.hasArray())
+      return isUTF8(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+
+    if (buffer.remaining() > MAX_LENGTH)
+      return false;
+
+    // Direct and read only buffers are read in place with absolute gets
+    int i = buffer.position();
+    int end = buffer.limit();
+    while (i < end) {
+      int b = buffer.get(i++);
+
+      // U+0001 to U+007F, the common case
+      if (b > 0)
+        continue;
+
+      int n = continuationBytes(b);
+      if (n < 0 || end - i < n || !isSecondByte(b & 0xFF, buffer.get(i) & 0xFF))
+        return false;
+      for (int j = 1; j < n; j++) {
+        if ((buffer.get(i + j) & 0xC0) != 0x80)
+          return false;
+      }
+      i += n;
+    }
+
+    return true;
+  }
 
-    String encoding = detector.getDetectedCharset();
-    detector.reset();
+  /**
+   * Number of continuation bytes that follow a lead byte outside of U+0001 to
+   * U+007F, shared by the isUTF8 loops
+   *
+   * @param b the lead byte, as a signed byte
+   * @return 1 to 3, or -1 if the byte can't start a sequence
+   */
+  private static int continuationBytes(int b) {
+    b &= 0xFF;
+    if (b < 0xC2) {
+      // U+0000, a continuation byte, or an overlong two byte sequence
+      return -1;
+    } else if (b < 0xE0) {
+      return 1;
+    } else if (b < 0xF0) {
+      return 2;
+    } else if (b < 0xF5) {
+      return 3;
+    } else {
+      return -1;
+    }
+  }
 
-    return (UTF8.equals(encoding));
+  /**
+   * Checks the byte after a lead byte, which alone decides if a sequence is
+   * overlong, a surrogate or above U+10FFFF
+   *
+   * @param b  the lead byte, unsigned
+   * @param b1 the byte after it, unsigned
+   * @return true if the sequence may continue
+   */
+  private static boolean isSecondByte(int b, int b1) {
+    if ((b1 & 0xC0) != 0x80)
+      return false;
+    // Overlong, or surrogate U+D800 to U+DFFF
+    if ((b == 0xE0 && b1 < 0xA0) || (b == 0xED && b1 >= 0xA0))
+      return false;
+    // Overlong, or above U+10FFFF
+    if ((b == 0xF0 && b1 < 0x90) || (b == 0xF4 && b1 >= 0x90))
+      return false;
+    return true;
+  }
+
+  /**
+   * Detects if a string can be sent as an MQTT UTF-8 encoded string; no
+   * U+0000, no unpaired surrogates and no longer than 65535 bytes once encoded.
+   *
+   * @param string the string
+   * @return true if it can be encoded, false otherwise
+   */
+  public static boolean isUTF8(String string) {
+    int length = 0;
+    for (int i = 0, n = string.length(); i < n; i++) {
+      char c = string.charAt(i);
+      if (c == 0) {
+        return false;
+      } else if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isSurrogate(c)) {
+        // Only a high surrogate followed by a low surrogate is a code point
+        if (!Character.isHighSurrogate(c) || i + 1 >= n || !Character.isLowSurrogate(string.charAt(i + 1)))
+          return false;
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length <= MAX_LENGTH;
   }
 
   public static boolean hasWildcards(String topic) {
@@ -113,6 +254,180 @@ public class MQTTHelper {
     return (byte) ((val & 0xffff) & 0xFF);
   }
 
+  /**
+   * Number of bytes needed to encode a remaining length
+   *
+   * @param length the remaining length
+   * @return number of bytes, between 1 and 4
+   */
+  public static int remainingLengthSize(int length) {
+    if (length < 128)
+      return 1;
+    else if (length < 16384)
+      return 2;
+    else if (length < 2097152)
+      return 3;
+    else
+      return 4;
+  }
+
+  /**
+   * Write a remaining length using the MQTT variable length encoding
+   *
+   * @param out    the buffer to write to
+   * @param length the remaining length
+   */
+  public static void writeRemainingLength(ByteBuffer out, int length) {
+    do {
+      byte digit = (byte) (length % 128);
+      length /= 128;
+      if (length > 0)
+        digit = (byte) (digit | 0x80);
+      out.put(digit);
+    } while (length > 0);
+  }
+
+  /**
+   * Read a remaining length using the MQTT variable length encoding, advances
+   * the position of the buffer past the length.
+   *
+   * @param in the buffer to read from
+   * @return the remaining length
+   * @throws MQTTException if the length is longer than four bytes
+   */
+  public static int readRemainingLength(ByteBuffer in) throws MQTTException {
+    int multiplier = 1;
+    int length = 0;
+    int read = 0;
+    byte digit = 0;
+    do {
+      if (read++ == 4)
+        throw new MQTTException("Malformed remaining length");
+      digit = in.get();
+      length += (digit & 127) * multiplier;
+      multiplier *= 128;
+    } while ((digit & 128) != 0);
+    return length;
+  }
+
+  /**
+   * Number of bytes a string occupies when encoded as UTF-8, without the two
+   * byte length prefix. Unpaired surrogates count as one byte, the same as
+   * {@link String#getBytes(java.nio.charset.Charset)} replacing them.
+   *
+   * @param string the string
+   * @return the encoded length
+   */
+  public static int utf8Length(String string) {
+    int length = 0;
+    for (int i = 0, n = string.length(); i < n; ) {
+      int bytes = utf8Bytes(utf8Encode(string, i));
+      length += bytes;
+      i += utf8Chars(bytes);
+    }
+    return length;
+  }
+
+  /**
+   * Write a string as a length prefixed UTF-8 encoded string, straight into the
+   * buffer.
+   *
+   * @param out    the buffer to write to
+   * @param string the string
+   */
+  public static void writeUTF8(ByteBuffer out, String string) {
+    int length = utf8Length(string);
+    out.put(MSB(length));
+    out.put(LSB(length));
+
+    for (int i = 0, n = string.length(); i < n; ) {
+      int encoded = utf8Encode(string, i);
+      int bytes = utf8Bytes(encoded);
+      for (int b = 0; b < bytes; b++, encoded >>>= 8) {
+        out.put((byte) encoded);
+      }
+      i += utf8Chars(bytes);
+    }
+  }
+
+  /**
+   * Encode the code point at an index of a string as UTF-8, the walk behind
+   * {@link #utf8Length(String)} and {@link #writeUTF8(ByteBuffer, String)}
+   * for anyone that needs the same bytes without writing them. A surrogate
+   * pair is one code point, an unpaired surrogate is encoded as '?'.
+   *
+   * @param string the string
+   * @param index  the index of the character
+   * @return the one to four bytes, the first in the lowest eight bits, see
+   * {@link #utf8Bytes(int)} and {@link #utf8Chars(int)}
+   */
+  public static int utf8Encode(String string, int index) {
+    char c = string.charAt(index);
+    if (c < 0x80)
+      return c;
+
+    if (c < 0x800)
+      return (0xC0 | (c >> 6)) | (0x80 | (c & 0x3F)) << 8;
+
+    if (Character.isHighSurrogate(c) && index + 1 < string.length() && Character.isLowSurrogate(string.charAt(index + 1))) {
+      int codePoint = Character.toCodePoint(c, string.charAt(index + 1));
+      return (0xF0 | (codePoint >> 18))
+          | (0x80 | ((codePoint >> 12) & 0x3F)) << 8
+          | (0x80 | ((codePoint >> 6) & 0x3F)) << 16
+          | (0x80 | (codePoint & 0x3F)) << 24;
+    }
+
+    if (Character.isSurrogate(c))
+      return '?';
+
+    return (0xE0 | (c >> 12)) | (0x80 | ((c >> 6) & 0x3F)) << 8 | (0x80 | (c & 0x3F)) << 16;
+  }
+
+  /**
+   * @param encoded a code point from {@link #utf8Encode(String, int)}
+   * @return the number of bytes it is encoded in, told by its first byte
+   */
+  public static int utf8Bytes(int encoded) {
+    int first = encoded & 0xFF;
+    if (first < 0x80)
+      return 1;
+    if (first < 0xE0)
+      return 2;
+    return first < 0xF0 ? 3 : 4;
+  }
+
+  /**
+   * @param bytes the number of bytes from {@link #utf8Bytes(int)}
+   * @return the number of characters of the string they encode, 2 for a
+   * surrogate pair
+   */
+  public static int utf8Chars(int bytes) {
+    return bytes == 4 ? 2 : 1;
+  }
+
+  /**
+   * Read a length prefixed UTF-8 encoded string, advances the position of the
+   * buffer past the string.
+   *
+   * @param in the buffer to read from
+   * @return the string
+   */
+  public static String readUTF8(ByteBuffer in) {
+    int length = ((in.get() & 0xFF) << 8) | (in.get() & 0xFF);
+
+    String string;
+    if (in.hasArray()) {
+      string = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+      in.position(in.position() + length);
+    } else {
+      byte[] bytes = new byte[length];
+      in.get(bytes);
+      string = new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    return string;
+  }
+
   public static void decodeFlags(byte flags) {
     boolean username = ((flags >> 7) == 1 ? true : false);
 
@@ -129,6 +444,16 @@ public class MQTTHelper {
     return (byte) ((buffer[0] >> 4) & 0x0F);
   }
 
+  /**
+   * Decode message type, without moving the position of the buffer
+   *
+   * @param buffer The buffer positioned at the start of a message
+   * @return The message type
+   */
+  public static byte decodeType(ByteBuffer buffer) {
+    return (byte) ((buffer.get(buffer.position()) >> 4) & 0x0F);
+  }
+
   /**
    * Get the human readable name of a message type
    *
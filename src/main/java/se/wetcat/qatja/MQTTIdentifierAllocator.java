@@ -0,0 +1,188 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free allocator of package identifiers, 1 to 65535.
+ * <p>
+ * Every identifier is one bit of a bitmap, claimed and released with a single
+ * compare-and-set. The bitmap is split in stripes, one per processor, and
+ * every thread allocates from its own stripe first, so threads that publish
+ * at the same time don't contend for the same words; a thread only moves on
+ * to the other stripes once its own is full. Within a stripe allocation
+ * continues after the identifier that was claimed last, so identifiers are
+ * handed out in rising order and a released identifier isn't reused until
+ * the rest of the stripe has been passed; the search is bounded by the 1024
+ * words of the bitmap no matter how many identifiers are in use.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTIdentifierAllocator {
+
+  /**
+   * Largest package identifier
+   */
+  public static final int MAX_IDENTIFIER = 65535;
+
+  private static final int WORDS = (MAX_IDENTIFIER + 1) / 64;
+
+  /**
+   * Bit n of word w is identifier w * 64 + n, identifier 0 is always taken
+   */
+  private final AtomicLongArray bits = new AtomicLongArray(WORDS);
+
+  private static final int STRIPE_WORDS = WORDS / MQTTStripedCounter.STRIPES;
+
+  /**
+   * Ints per 64 byte cache line
+   */
+  private static final int PAD = 16;
+
+  /**
+   * Where the next search of every stripe starts, the identifier after the
+   * last one claimed
+   */
+  private final AtomicIntegerArray cursors = new AtomicIntegerArray(MQTTStripedCounter.STRIPES * PAD);
+
+  private final MQTTStripedCounter allocated = new MQTTStripedCounter();
+
+  public MQTTIdentifierAllocator() {
+    bits.set(0, 1L);
+
+    for (int stripe = 0; stripe < MQTTStripedCounter.STRIPES; stripe++) {
+      cursors.set(stripe * PAD, stripe * STRIPE_WORDS << 6);
+    }
+  }
+
+  /**
+   * Claim a free identifier
+   *
+   * @return the identifier, or 0 if all 65535 identifiers are in use
+   */
+  public int allocate() {
+    int home = MQTTStripedCounter.stripe();
+
+    for (int n = 0; n < MQTTStripedCounter.STRIPES; n++) {
+      int identifier = allocate((home + n) & (MQTTStripedCounter.STRIPES - 1));
+      if (identifier != 0)
+        return identifier;
+    }
+
+    return 0;
+  }
+
+  /**
+   * Claim a specific identifier, for instance one restored from a previous
+   * session
+   *
+   * @param identifier the identifier
+   * @return true if it was claimed, false if it was already in use
+   */
+  public boolean reserve(int identifier) {
+    check(identifier);
+
+    int word = identifier >>> 6;
+    long bit = 1L << (identifier & 63);
+
+    long value;
+    do {
+      value = bits.get(word);
+      if ((value & bit) != 0)
+        return false;
+    } while (!bits.compareAndSet(word, value, value | bit));
+
+    allocated.increment();
+    return true;
+  }
+
+  /**
+   * Release an identifier so that it can be allocated again
+   *
+   * @param identifier the identifier
+   * @return true if it was released, false if it wasn't in use
+   */
+  public boolean release(int identifier) {
+    check(identifier);
+
+    int word = identifier >>> 6;
+    long bit = 1L << (identifier & 63);
+
+    long value;
+    do {
+      value = bits.get(word);
+      if ((value & bit) == 0)
+        return false;
+    } while (!bits.compareAndSet(word, value, value & ~bit));
+
+    allocated.decrement();
+    return true;
+  }
+
+  /**
+   * @param identifier the identifier
+   * @return true if the identifier is in use
+   */
+  public boolean isAllocated(int identifier) {
+    check(identifier);
+
+    return (bits.get(identifier >>> 6) & (1L << (identifier & 63))) != 0;
+  }
+
+  /**
+   * @return The number of identifiers in use
+   */
+  public int getAllocated() {
+    return (int) Math.max(0, allocated.sum());
+  }
+
+  private int allocate(int stripe) {
+    int first = stripe * STRIPE_WORDS;
+    int start = cursors.get(stripe * PAD);
+
+    // The first word is searched from the cursor, and once more from its
+    // beginning after every other word of the stripe
+    for (int n = 0; n <= STRIPE_WORDS; n++) {
+      int word = first + ((start >>> 6) - first + n) % STRIPE_WORDS;
+      long skip = n == 0 ? (1L << (start & 63)) - 1 : 0L;
+
+      long value;
+      while (((value = bits.get(word)) | skip) != -1L) {
+        long bit = Long.lowestOneBit(~(value | skip));
+
+        if (bits.compareAndSet(word, value, value | bit)) {
+          int identifier = (word << 6) + Long.numberOfTrailingZeros(bit);
+          cursors.set(stripe * PAD, identifier + 1);
+          allocated.increment();
+          return identifier;
+        }
+      }
+    }
+
+    return 0;
+  }
+
+  private static void check(int identifier) {
+    if (identifier < 1 || identifier > MAX_IDENTIFIER)
+      throw new IllegalArgumentException("Invalid package identifier " + identifier);
+  }
+
+}
@@ -16,10 +16,7 @@ package se.wetcat.qatja;
  * limitations under the License.
  */
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
 
 import se.wetcat.qatja.messages.MQTTMessage;
 
@@ -30,50 +27,156 @@ import se.wetcat.qatja.messages.MQTTMessage;
  */
 public class MQTTIdentifierHelper {
 
-  private ConcurrentHashMap<Integer, MQTTMessage> sentPackages = new ConcurrentHashMap<>();
-  private ConcurrentHashMap<Integer, MQTTMessage> receivedPackages = new ConcurrentHashMap<>();
+  private final MQTTInflightTable sentPackages = new MQTTInflightTable();
+  private final MQTTInflightTable receivedPackages = new MQTTInflightTable();
 
-  private List<Integer> availablePackageIdentifiers = new ArrayList<>();
+  private final MQTTIdentifierAllocator identifiers = new MQTTIdentifierAllocator();
 
-  private final Object lock = new Object();
+  private volatile MQTTRetransmitScheduler retransmitScheduler;
+
+  private volatile MQTTJournal journal;
+
+  private volatile MQTTAckLatencyRecorder latencyRecorder;
+
+  /**
+   * Persist the packages in flight. The packages the journal already holds
+   * are restored first, as if they had been added again.
+   *
+   * @param journal the journal, or null to stop journaling
+   * @throws MQTTException if the journal holds a message that can't be decoded
+   */
+  public synchronized void setJournal(MQTTJournal journal) throws MQTTException {
+    this.journal = null;
+
+    if (journal != null)
+      journal.recover(this);
+
+    this.journal = journal;
+  }
+
+  /**
+   * @return The journal, or null
+   */
+  public MQTTJournal getJournal() {
+    return journal;
+  }
+
+  /**
+   * Retransmit sent packages that aren't acknowledged in time. Packages are
+   * scheduled when they are added and cancelled when they are removed.
+   *
+   * @param retransmitScheduler the scheduler, or null to stop scheduling
+   */
+  public void setRetransmitScheduler(MQTTRetransmitScheduler retransmitScheduler) {
+    this.retransmitScheduler = retransmitScheduler;
+  }
+
+  /**
+   * @return The retransmit scheduler, or null
+   */
+  public MQTTRetransmitScheduler getRetransmitScheduler() {
+    return retransmitScheduler;
+  }
+
+  /**
+   * Measure the time from adding a sent package until it is removed.
+   *
+   * @param latencyRecorder the recorder, or null to stop measuring
+   */
+  public void setLatencyRecorder(MQTTAckLatencyRecorder latencyRecorder) {
+    this.latencyRecorder = latencyRecorder;
+  }
+
+  /**
+   * @return The latency recorder, or null
+   */
+  public MQTTAckLatencyRecorder getLatencyRecorder() {
+    return latencyRecorder;
+  }
 
   /**
    * Add MQTTMessage to the list of sent packages, used for QoS
    * {@link se.wetcat.qatja.MQTTConstants#AT_MOST_ONCE} and
-   * {@link se.wetcat.qatja.MQTTConstants#EXACTLY_ONCE}
+   * {@link se.wetcat.qatja.MQTTConstants#EXACTLY_ONCE}. The package is
+   * journaled first, if that fails nothing is changed.
    *
    * @param msg the MQTTMessage
+   * @throws IllegalStateException if the package can't be journaled
    */
   public void addSentPackage(MQTTMessage msg) {
-    synchronized (lock) {
-      sentPackages.put(msg.getPackageIdentifier(), msg);
+    int identifier = msg.getPackageIdentifier();
+    boolean valid = identifier > 0 && identifier <= MQTTIdentifierAllocator.MAX_IDENTIFIER;
+
+    MQTTJournal journal = this.journal;
+    if (journal != null && valid) {
+      try {
+        journal.addSent(msg);
+      } catch (IOException | MQTTException e) {
+        throw new IllegalStateException("Failed to journal package " + identifier, e);
+      }
+    }
+
+    sentPackages.put(msg);
+
+    // Identifiers not handed out by getIdentifier() are claimed here
+    if (valid) {
+      identifiers.reserve(identifier);
+
+      MQTTRetransmitScheduler scheduler = retransmitScheduler;
+      if (scheduler != null)
+        scheduler.schedule(msg);
+
+      MQTTAckLatencyRecorder recorder = latencyRecorder;
+      if (recorder != null)
+        recorder.sent(msg);
     }
   }
 
   /**
    * Remove MQTTMessage from the list of sent packages, used for QoS
    * {@link se.wetcat.qatja.MQTTConstants#AT_MOST_ONCE} and
-   * {@link se.wetcat.qatja.MQTTConstants#EXACTLY_ONCE}
+   * {@link se.wetcat.qatja.MQTTConstants#EXACTLY_ONCE}. The package is
+   * removed and its identifier released even if the journal fails, the
+   * journal then still holds it and recovers it as a duplicate.
    *
    * @param msg the MQTTMessage
+   * @throws IllegalStateException if the removal can't be journaled
    */
-  public synchronized void removeSentPackage(MQTTMessage msg) {
-    synchronized (lock) {
-      sentPackages.remove(msg.getPackageIdentifier());
-      availablePackageIdentifiers.add(msg.getPackageIdentifier());
+  public void removeSentPackage(MQTTMessage msg) {
+    int identifier = msg.getPackageIdentifier();
+    sentPackages.remove(identifier);
+
+    MQTTRetransmitScheduler scheduler = retransmitScheduler;
+    if (scheduler != null && identifier > 0 && identifier <= MQTTIdentifierAllocator.MAX_IDENTIFIER)
+      scheduler.cancel(identifier);
+
+    MQTTAckLatencyRecorder recorder = latencyRecorder;
+    if (recorder != null)
+      recorder.acknowledged(identifier);
+
+    try {
+      MQTTJournal journal = this.journal;
+      if (journal != null)
+        journal.removeSent(identifier);
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to journal package " + identifier, e);
+    } finally {
+      releaseIdentifier(identifier);
     }
   }
 
-  public ConcurrentHashMap<Integer, MQTTMessage> getSentPackages() {
-    synchronized (lock) {
-      return sentPackages;
-    }
+  /**
+   * @return The sent packages that haven't been acknowledged, read only
+   */
+  public MQTTInflightTable getSentPackages() {
+    return sentPackages;
   }
 
-  public ConcurrentHashMap<Integer, MQTTMessage> getReceivedPackages() {
-    synchronized (lock) {
-      return receivedPackages;
-    }
+  /**
+   * @return The received packages that haven't been completed, read only
+   */
+  public MQTTInflightTable getReceivedPackages() {
+    return receivedPackages;
   }
 
   /**
@@ -81,11 +184,20 @@ public class MQTTIdentifierHelper {
    * {@link MQTTConstants#AT_MOST_ONCE} and {@link MQTTConstants#EXACTLY_ONCE}
    *
    * @param msg the MQTTMessage
+   * @throws IllegalStateException if the package can't be journaled, it is
+   *                               then not added
    */
   public void addReceivedPackage(MQTTMessage msg) {
-    synchronized (lock) {
-      receivedPackages.put(msg.getPackageIdentifier(), msg);
+    MQTTJournal journal = this.journal;
+    if (journal != null) {
+      try {
+        journal.addReceived(msg);
+      } catch (IOException | MQTTException e) {
+        throw new IllegalStateException("Failed to journal package " + msg.getPackageIdentifier(), e);
+      }
     }
+
+    receivedPackages.put(msg);
   }
 
   /**
@@ -95,49 +207,62 @@ public class MQTTIdentifierHelper {
    * @param msg the MQTTMessage
    */
   public void removeReceivedPackage(MQTTMessage msg) {
-    synchronized (lock) {
-      receivedPackages.remove(msg.getPackageIdentifier());
+    receivedPackages.remove(msg.getPackageIdentifier());
+
+    MQTTJournal journal = this.journal;
+    if (journal != null) {
+      try {
+        journal.removeReceived(msg.getPackageIdentifier());
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to journal package " + msg.getPackageIdentifier(), e);
+      }
     }
   }
 
   /**
-   * @return The next available identifier
+   * Periodic work on the packages in flight, call it regularly from whoever
+   * drives the connection: retransmits the sent packages that are due, and
+   * compacts the journal once most of it is dead records.
+   *
+   * @return the number of packages that were due for retransmission
+   * @throws IllegalStateException if the journal can't be compacted, it is
+   *                               then left as it was
    */
-  public synchronized int getIdentifier() {
-    synchronized (lock) {
-      int identifier = 1;
-
-      if (availablePackageIdentifiers.size() > 0) {
-        // Reuse an identifier
-        identifier = availablePackageIdentifiers.remove(0);
-      } else if (sentPackages.size() > 0) {
-        // Generate the next, new, identifier by looping through the map and find the next biggest id
-//        int lastPackage = sentPackages.size() - 1;
-//        identifier = sentPackages.get(lastPackage).getPackageIdentifier() + 1;
-
-//        boolean idFound = true;
-//        do {
-//          for (int id : Collections.list(sentPackages.keys())) {
-//            if (identifier == id) {
-//              idFound = true;
-//            }
-//          }
-//        } while (idFound);
-
-        List<Integer> keys = Collections.list(sentPackages.keys());
-        for (int i = 0; i < keys.size(); i++) {
-          if (identifier == keys.get(i)) {
-            identifier++;
-            i = 0;
-          }
-        }
-      } else {
-        // Generate first identifier
-        identifier = 1;
+  public int tick() {
+    MQTTRetransmitScheduler scheduler = retransmitScheduler;
+    int due = scheduler != null ? scheduler.tick() : 0;
+
+    MQTTJournal journal = this.journal;
+    if (journal != null) {
+      try {
+        journal.compactIfSparse();
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to compact journal", e);
       }
+    }
 
+    return due;
+  }
 
-      return identifier;
-    }
+  /**
+   * Claim the next free identifier. The identifier stays in use until the
+   * message is removed with {@link #removeSentPackage(MQTTMessage)}, or until
+   * {@link #releaseIdentifier(int)} if the message is never sent.
+   *
+   * @return The next available identifier, or 0 if all 65535 identifiers are
+   * in use
+   */
+  public int getIdentifier() {
+    return identifiers.allocate();
+  }
+
+  /**
+   * Release an identifier from {@link #getIdentifier()} that was never used
+   *
+   * @param identifier the identifier
+   */
+  public void releaseIdentifier(int identifier) {
+    if (identifier > 0 && identifier <= MQTTIdentifierAllocator.MAX_IDENTIFIER)
+      identifiers.release(identifier);
   }
 }
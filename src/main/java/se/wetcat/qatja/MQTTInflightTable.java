@@ -0,0 +1,175 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import se.wetcat.qatja.messages.MQTTMessage;
+
+/**
+ * Messages in flight, indexed directly by their package identifier.
+ * <p>
+ * Package identifiers are dense 16 bit values, so every identifier has its
+ * own slot; adding, removing and looking up a message is a single atomic
+ * operation on that slot and allocates nothing. The size is a striped
+ * counter, so threads adding and removing messages at the same time only
+ * share the slots they touch. The table is thread safe, only
+ * {@link MQTTIdentifierHelper} changes it.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTInflightTable {
+
+  /**
+   * Receives the messages of the table, see {@link #forEach(Visitor)}
+   */
+  public interface Visitor {
+
+    /**
+     * @param identifier the package identifier
+     * @param message    the message
+     * @return true to continue, false to stop
+     */
+    boolean visit(int identifier, MQTTMessage message);
+
+  }
+
+  private static final int SLOTS = MQTTIdentifierAllocator.MAX_IDENTIFIER + 1;
+
+  private final AtomicReferenceArray<MQTTMessage> slots = new AtomicReferenceArray<MQTTMessage>(SLOTS);
+
+  private final MQTTStripedCounter size = new MQTTStripedCounter();
+
+  /**
+   * @param identifier the package identifier
+   * @return the message, or null if there is none
+   */
+  public MQTTMessage get(int identifier) {
+    return slots.get(check(identifier));
+  }
+
+  /**
+   * @param identifier the package identifier
+   * @return true if a message with the identifier is in flight
+   */
+  public boolean contains(int identifier) {
+    return get(identifier) != null;
+  }
+
+  /**
+   * @return The number of messages in flight
+   */
+  public int size() {
+    return (int) Math.max(0, size.sum());
+  }
+
+  /**
+   * @return true if no message is in flight
+   */
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Visit every message in identifier order, without copying the table.
+   * Messages added or removed while visiting may or may not be seen. Every
+   * slot is read, the striped size may lag behind a message that was just
+   * added and can't be used to stop early.
+   *
+   * @param visitor the visitor
+   */
+  public void forEach(Visitor visitor) {
+    for (int identifier = 0; identifier < SLOTS; identifier++) {
+      MQTTMessage message = slots.get(identifier);
+      if (message != null && !visitor.visit(identifier, message))
+        return;
+    }
+  }
+
+  /**
+   * Store the message in the slot of its identifier
+   *
+   * @param message the message
+   * @return the message it replaced, or null
+   */
+  MQTTMessage put(MQTTMessage message) {
+    MQTTMessage previous = slots.getAndSet(check(message.getPackageIdentifier()), message);
+    if (previous == null)
+      size.increment();
+    return previous;
+  }
+
+  /**
+   * Claim the slot of the identifier for the message
+   *
+   * @param message the message
+   * @return true if it was stored, false if the slot was taken
+   */
+  boolean putIfAbsent(MQTTMessage message) {
+    if (!slots.compareAndSet(check(message.getPackageIdentifier()), null, message))
+      return false;
+
+    size.increment();
+    return true;
+  }
+
+  /**
+   * Release the slot of the identifier
+   *
+   * @param identifier the package identifier
+   * @return the message that was removed, or null
+   */
+  MQTTMessage remove(int identifier) {
+    MQTTMessage previous = slots.getAndSet(check(identifier), null);
+    if (previous != null)
+      size.decrement();
+    return previous;
+  }
+
+  /**
+   * Release the slot of the identifier, only if it holds the message
+   *
+   * @param identifier the package identifier
+   * @param message    the message
+   * @return true if it was removed
+   */
+  boolean remove(int identifier, MQTTMessage message) {
+    if (!slots.compareAndSet(check(identifier), message, null))
+      return false;
+
+    size.decrement();
+    return true;
+  }
+
+  /**
+   * Release every slot, all of them are visited
+   */
+  void clear() {
+    for (int identifier = 0; identifier < SLOTS; identifier++) {
+      remove(identifier);
+    }
+  }
+
+  private static int check(int identifier) {
+    if (identifier < 0 || identifier >= SLOTS)
+      throw new IllegalArgumentException("Invalid package identifier " + identifier);
+    return identifier;
+  }
+
+}
@@ -0,0 +1,259 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import se.wetcat.qatja.messages.MQTTMessage;
+
+/**
+ * Limits the number of QoS 1 and QoS 2 messages in flight, like the receive
+ * maximum of MQTT 5, so that publishers are held back when the peer is slow
+ * instead of queueing messages without bound.
+ * <p>
+ * A slot is acquired together with the package identifier of the message,
+ * and freed when the message is acknowledged. Acquire blocks, waits for a
+ * limited time, fails immediately or calls back once a slot is free; a freed
+ * slot goes to the thread that has waited longest in {@link #acquire()}, or
+ * else straight to the oldest waiting callback, on the thread that freed it.
+ * The window is thread safe.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTInflightWindow {
+
+  /**
+   * Receives a slot once one is free, see {@link #acquire(Callback)}
+   */
+  public interface Callback {
+
+    /**
+     * @param identifier the package identifier of the slot, release it with
+     *                   {@link #complete(MQTTMessage)} or
+     *                   {@link #release(int)}
+     */
+    void acquired(int identifier);
+
+  }
+
+  private final MQTTIdentifierHelper helper;
+
+  private final int capacity;
+
+  private final Semaphore permits;
+
+  /**
+   * Identifiers that hold a slot, so that a slot is never freed twice
+   */
+  private final MQTTIdentifierAllocator held = new MQTTIdentifierAllocator();
+
+  private final Deque<Callback> waiting = new ConcurrentLinkedDeque<Callback>();
+
+  /**
+   * @param helper   hands out the identifiers and holds the sent messages
+   * @param capacity the largest number of messages in flight
+   */
+  public MQTTInflightWindow(MQTTIdentifierHelper helper, int capacity) {
+    if (capacity < 1 || capacity > MQTTIdentifierAllocator.MAX_IDENTIFIER)
+      throw new IllegalArgumentException("Capacity must be between 1 and " + MQTTIdentifierAllocator.MAX_IDENTIFIER + ", " + capacity);
+
+    this.helper = helper;
+    this.capacity = capacity;
+    this.permits = new Semaphore(capacity, true);
+  }
+
+  /**
+   * Wait for a free slot
+   *
+   * @return the package identifier
+   * @throws InterruptedException  if interrupted while waiting
+   * @throws IllegalStateException if no package identifier is free
+   */
+  public int acquire() throws InterruptedException {
+    permits.acquire();
+
+    int identifier = identifier();
+    if (identifier == 0)
+      throw new IllegalStateException("No free package identifier");
+    return identifier;
+  }
+
+  /**
+   * Take a free slot, without waiting
+   *
+   * @return the package identifier, or 0 if the window is full or no
+   * package identifier is free
+   */
+  public int tryAcquire() {
+    return permits.tryAcquire() ? identifier() : 0;
+  }
+
+  /**
+   * Wait a limited time for a free slot
+   *
+   * @param timeout the longest time to wait
+   * @param unit    the unit of the timeout
+   * @return the package identifier, or 0 if no slot was freed in time or no
+   * package identifier is free
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public int tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+    return permits.tryAcquire(timeout, unit) ? identifier() : 0;
+  }
+
+  /**
+   * Call back with a slot once one is free, immediately if there is one and
+   * no thread is waiting in {@link #acquire()}. The callback shouldn't block,
+   * it may run on the thread that handles the acknowledgements. If it throws
+   * before adding its message to the helper, its slot is freed again.
+   *
+   * @param callback receives the slot
+   */
+  public void acquire(Callback callback) {
+    waiting.offer(callback);
+    drain();
+  }
+
+  /**
+   * The message was acknowledged, remove it from the helper and free its
+   * slot. Used for the PUBACK of QoS 1.
+   *
+   * @param message the message
+   */
+  public void complete(MQTTMessage message) {
+    helper.removeSentPackage(message);
+    release(message.getPackageIdentifier());
+  }
+
+  /**
+   * Free the slot of an identifier, when the helper is already done with it;
+   * for instance after {@link MQTTExactlyOnce#pubcomp(se.wetcat.qatja.messages.MQTTPubcomp)}.
+   *
+   * @param identifier the package identifier
+   */
+  public void release(int identifier) {
+    if (identifier < 1 || identifier > MQTTIdentifierAllocator.MAX_IDENTIFIER || !held.release(identifier))
+      return;
+
+    permits.release();
+    drain();
+  }
+
+  /**
+   * @return The largest number of messages in flight
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return The number of free slots
+   */
+  public int getAvailable() {
+    return permits.availablePermits();
+  }
+
+  /**
+   * @return The number of callbacks waiting for a slot
+   */
+  public int getWaiting() {
+    return waiting.size();
+  }
+
+  /**
+   * Hand free slots to waiting callbacks, after any thread blocked in
+   * {@link #acquire()}. A callback that throws before its message was added
+   * to the helper gets its slot freed, the others are still served and the
+   * first failure is thrown at the end.
+   */
+  private void drain() {
+    RuntimeException failure = null;
+
+    while (!waiting.isEmpty() && tryAcquireFair()) {
+      Callback callback = waiting.poll();
+      if (callback == null) {
+        // Taken by another thread, look again in case one was queued since
+        permits.release();
+        continue;
+      }
+
+      int identifier = identifier();
+      if (identifier == 0) {
+        // Its turn comes again with the next freed slot
+        waiting.offerFirst(callback);
+        break;
+      }
+
+      try {
+        callback.acquired(identifier);
+      } catch (RuntimeException e) {
+        // A message that was added keeps its slot until it is acknowledged
+        if (!helper.getSentPackages().contains(identifier)) {
+          held.release(identifier);
+          helper.releaseIdentifier(identifier);
+          permits.release();
+        }
+        if (failure == null)
+          failure = e;
+      }
+    }
+
+    if (failure != null)
+      throw failure;
+  }
+
+  /**
+   * Unlike {@link Semaphore#tryAcquire()}, a timed try honours the fair
+   * ordering, so a slot never goes to a callback ahead of a waiting thread
+   */
+  private boolean tryAcquireFair() {
+    // An interrupted caller still hands out slots, the flag is kept for it
+    boolean interrupted = Thread.interrupted();
+    try {
+      return permits.tryAcquire(0, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      interrupted = true;
+      return false;
+    } finally {
+      if (interrupted)
+        Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Claim an identifier for a slot that was just acquired, the slot is
+   * freed again if there is none
+   *
+   * @return the package identifier, or 0 if none is free
+   */
+  private int identifier() {
+    int identifier = helper.getIdentifier();
+    if (identifier == 0) {
+      permits.release();
+      return 0;
+    }
+
+    held.reserve(identifier);
+    return identifier;
+  }
+
+}
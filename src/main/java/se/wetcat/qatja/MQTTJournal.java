@@ -0,0 +1,426 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import se.wetcat.qatja.messages.MQTTDecoder;
+import se.wetcat.qatja.messages.MQTTMessage;
+import se.wetcat.qatja.messages.MQTTPublish;
+
+/**
+ * Append-only, memory mapped journal of the packages in flight, so that QoS 1
+ * and QoS 2 state survives a restart.
+ * <p>
+ * Every add is journaled as the encoded message, every remove as a short
+ * record naming the identifier. The length of a record is written after the
+ * rest of it, so a process that dies mid-write never leaves a partial record
+ * behind; use {@link #force()} to also survive a crash of the machine. When
+ * the file is full the live records are copied to a new file, which replaces
+ * the old one; {@link #compactIfSparse()} does the same once enough records
+ * are dead, and {@link #compact()} on demand.
+ * <p>
+ * Opening a journal only scans the file, the messages are decoded once, by
+ * {@link MQTTIdentifierHelper#setJournal(MQTTJournal)}. All methods are
+ * thread safe.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTJournal implements Closeable {
+
+  public static final int DEFAULT_CAPACITY = 16 * 1024 * 1024;
+
+  /**
+   * "MQJ1"
+   */
+  private static final int MAGIC = 0x4D514A31;
+
+  private static final int FILE_HEADER_LENGTH = 8;
+
+  /**
+   * Length, operation, direction and identifier
+   */
+  private static final int RECORD_HEADER_LENGTH = 8;
+
+  private static final byte ADD = 1;
+  private static final byte REMOVE = 2;
+
+  private static final int SENT = 0;
+  private static final int RECEIVED = 1;
+
+  private static final int SLOTS = MQTTIdentifierAllocator.MAX_IDENTIFIER + 1;
+
+  private final File file;
+
+  private FileChannel channel;
+  private MappedByteBuffer map;
+
+  private int position;
+
+  /**
+   * Offset of the live add record of every identifier, 0 if there is none
+   */
+  private int[][] offsets = new int[2][SLOTS];
+
+  private int liveBytes;
+
+  /**
+   * Open a journal, creating it if it doesn't exist
+   *
+   * @param file the journal file
+   * @return the journal
+   * @throws IOException if the file can't be opened or isn't a journal
+   */
+  public static MQTTJournal open(File file) throws IOException {
+    return open(file, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param file     the journal file
+   * @param capacity initial size of a new file, an existing file keeps its
+   *                 size
+   * @return the journal
+   * @throws IOException if the file can't be opened or isn't a journal
+   * @see #open(File)
+   */
+  public static MQTTJournal open(File file, int capacity) throws IOException {
+    MQTTJournal journal = new MQTTJournal(file);
+    journal.map(capacity);
+    journal.scan();
+    return journal;
+  }
+
+  private MQTTJournal(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Journal a package that was sent and awaits acknowledgement
+   *
+   * @param message the message
+   */
+  public void addSent(MQTTMessage message) throws IOException, MQTTException {
+    add(SENT, message);
+  }
+
+  /**
+   * Journal the acknowledgement of a sent package
+   *
+   * @param identifier the package identifier
+   */
+  public void removeSent(int identifier) throws IOException {
+    remove(SENT, identifier);
+  }
+
+  /**
+   * Journal a package that was received and awaits completion
+   *
+   * @param message the message
+   */
+  public void addReceived(MQTTMessage message) throws IOException, MQTTException {
+    add(RECEIVED, message);
+  }
+
+  /**
+   * Journal the completion of a received package
+   *
+   * @param identifier the package identifier
+   */
+  public void removeReceived(int identifier) throws IOException {
+    remove(RECEIVED, identifier);
+  }
+
+  /**
+   * Decode the live messages into the helper, sent messages are marked as
+   * duplicates since they may have reached the peer already. The helper
+   * must not have a journal attached while recovering.
+   *
+   * @param helper the helper to restore
+   * @throws MQTTException if a journaled message can't be decoded
+   */
+  synchronized void recover(MQTTIdentifierHelper helper) throws MQTTException {
+    for (int direction = SENT; direction <= RECEIVED; direction++) {
+      for (int identifier = 1; identifier < SLOTS; identifier++) {
+        int offset = offsets[direction][identifier];
+        if (offset == 0)
+          continue;
+
+        ByteBuffer frame = map.duplicate();
+        frame.limit(offset + 4 + map.getInt(offset));
+        frame.position(offset + RECORD_HEADER_LENGTH);
+
+        MQTTMessage message = MQTTDecoder.decode(frame);
+        if (message == null)
+          throw new MQTTException("Truncated message in journal, identifier " + identifier);
+
+        if (direction == SENT) {
+          if (message instanceof MQTTPublish)
+            ((MQTTPublish) message).setDup();
+          helper.addSentPackage(message);
+        } else {
+          helper.addReceivedPackage(message);
+        }
+      }
+    }
+  }
+
+  /**
+   * Rewrite the journal with only its live records
+   */
+  public synchronized void compact() throws IOException {
+    compact(0);
+  }
+
+  /**
+   * Compact the journal once dead records take up more than a quarter of the
+   * file and more room than the live ones, cheap enough to call on every
+   * tick, see {@link MQTTIdentifierHelper#tick()}
+   *
+   * @return true if the journal was compacted
+   */
+  public synchronized boolean compactIfSparse() throws IOException {
+    int dead = position - FILE_HEADER_LENGTH - liveBytes;
+    if (dead < map.capacity() / 4 || dead <= liveBytes)
+      return false;
+
+    compact(0);
+    return true;
+  }
+
+  /**
+   * Write the journal to the storage device
+   */
+  public synchronized void force() {
+    map.force();
+  }
+
+  /**
+   * @return The number of bytes written, live or not
+   */
+  public synchronized int size() {
+    return position;
+  }
+
+  /**
+   * @return The number of bytes of live records
+   */
+  public synchronized int getLiveBytes() {
+    return liveBytes;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (channel != null) {
+      map.force();
+      channel.close();
+      channel = null;
+    }
+  }
+
+  private synchronized void add(int direction, MQTTMessage message) throws IOException, MQTTException {
+    int identifier = message.getPackageIdentifier();
+    if (identifier < 1 || identifier >= SLOTS)
+      return;
+
+    int length = RECORD_HEADER_LENGTH + message.encodedSize();
+    reserve(length);
+
+    int offset = position;
+    map.put(offset + 4, ADD);
+    map.put(offset + 5, (byte) direction);
+    map.putShort(offset + 6, (short) identifier);
+    map.position(offset + RECORD_HEADER_LENGTH);
+    message.writeTo(map);
+    commit(offset, length);
+
+    kill(direction, identifier);
+    offsets[direction][identifier] = offset;
+    liveBytes += length;
+  }
+
+  private synchronized void remove(int direction, int identifier) throws IOException {
+    if (identifier < 1 || identifier >= SLOTS || offsets[direction][identifier] == 0)
+      return;
+
+    reserve(RECORD_HEADER_LENGTH);
+
+    int offset = position;
+    map.put(offset + 4, REMOVE);
+    map.put(offset + 5, (byte) direction);
+    map.putShort(offset + 6, (short) identifier);
+    commit(offset, RECORD_HEADER_LENGTH);
+
+    kill(direction, identifier);
+  }
+
+  /**
+   * Make the record visible by writing its length, last. The length of the
+   * next record is zeroed first, it may hold part of a record that was never
+   * completed before a restart.
+   */
+  private void commit(int offset, int length) {
+    map.putInt(offset + length, 0);
+    map.putInt(offset, length - 4);
+    position = offset + length;
+  }
+
+  private void kill(int direction, int identifier) {
+    int offset = offsets[direction][identifier];
+    if (offset != 0) {
+      liveBytes -= 4 + map.getInt(offset);
+      offsets[direction][identifier] = 0;
+    }
+  }
+
+  /**
+   * Make room for a record, compacting and growing the file when needed
+   */
+  private void reserve(int length) throws IOException {
+    // Room for the record and the zero length that ends the journal
+    if (position + length + 4 <= map.capacity())
+      return;
+
+    compact(length);
+  }
+
+  private void compact(int extra) throws IOException {
+    long required = (long) FILE_HEADER_LENGTH + liveBytes + extra + 4;
+    long capacity = map.capacity();
+    while (capacity < required * 2 && capacity < Integer.MAX_VALUE)
+      capacity = Math.min(capacity * 2, Integer.MAX_VALUE);
+    if (required > capacity)
+      throw new IOException("Journal full, " + required + " bytes needed");
+
+    // Nothing changes until the compacted file has replaced the journal
+    int[][] moved = new int[2][SLOTS];
+
+    File compacted = new File(file.getPath() + ".compact");
+    RandomAccessFile raf = new RandomAccessFile(compacted, "rw");
+    try {
+      raf.setLength(0);
+      FileChannel target = raf.getChannel();
+      MappedByteBuffer out = target.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      out.putInt(MAGIC);
+      out.putInt(0);
+
+      for (int direction = SENT; direction <= RECEIVED; direction++) {
+        for (int identifier = 1; identifier < SLOTS; identifier++) {
+          int offset = offsets[direction][identifier];
+          if (offset == 0)
+            continue;
+
+          ByteBuffer record = map.duplicate();
+          record.limit(offset + 4 + map.getInt(offset));
+          record.position(offset);
+
+          moved[direction][identifier] = out.position();
+          out.put(record);
+        }
+      }
+
+      int end = out.position();
+      out.force();
+
+      // The mapping stays valid once the file is renamed
+      Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+      channel.close();
+      channel = target;
+      map = out;
+      position = end;
+      offsets = moved;
+    } catch (IOException e) {
+      raf.close();
+      compacted.delete();
+      throw e;
+    }
+  }
+
+  private void map(int capacity) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      long length = raf.length() > 0 ? raf.length() : capacity;
+      if (length > Integer.MAX_VALUE)
+        throw new IOException("Journal too large, " + length + " bytes");
+
+      channel = raf.getChannel();
+      map = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+    } catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Rebuild the index from the file
+   */
+  private void scan() throws IOException {
+    int magic = map.getInt(0);
+    if (magic == 0) {
+      // New file
+      map.putInt(0, MAGIC);
+      position = FILE_HEADER_LENGTH;
+      return;
+    }
+    if (magic != MAGIC)
+      throw new IOException("Not a journal, " + file);
+
+    int offset = FILE_HEADER_LENGTH;
+    while (offset + RECORD_HEADER_LENGTH <= map.capacity()) {
+      int length = map.getInt(offset);
+      // Zero ends the journal, anything else that doesn't fit was never
+      // completely written
+      if (length < RECORD_HEADER_LENGTH - 4 || offset + 4 + length > map.capacity())
+        break;
+
+      byte operation = map.get(offset + 4);
+      int direction = map.get(offset + 5);
+      int identifier = map.getShort(offset + 6) & 0xFFFF;
+      if (direction != SENT && direction != RECEIVED || identifier == 0)
+        break;
+
+      if (operation == ADD) {
+        kill(direction, identifier);
+        offsets[direction][identifier] = offset;
+        liveBytes += 4 + length;
+      } else if (operation == REMOVE) {
+        kill(direction, identifier);
+      } else {
+        break;
+      }
+
+      offset += 4 + length;
+    }
+
+    position = offset;
+    // Anything after the last complete record is overwritten, make sure the
+    // journal still ends there if it is reopened before that happens
+    if (offset + 4 <= map.capacity())
+      map.putInt(offset, 0);
+  }
+
+}
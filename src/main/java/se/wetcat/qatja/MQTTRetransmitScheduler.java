@@ -0,0 +1,401 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import se.wetcat.qatja.messages.MQTTMessage;
+import se.wetcat.qatja.messages.MQTTPublish;
+
+/**
+ * Retransmits messages that haven't been acknowledged in time, using a hashed
+ * timer wheel.
+ * <p>
+ * Every package identifier has its own slot in a set of primitive arrays and
+ * the slots of one wheel bucket are chained through those arrays, so
+ * scheduling and cancelling are O(1) and allocate nothing. The wheel doesn't
+ * run a thread of its own, whoever drives the connection calls
+ * {@link #tick()} regularly, at least once per tick duration for accurate
+ * timing.
+ * <p>
+ * All methods are thread safe. The callback is invoked from {@link #tick()}
+ * with the scheduler locked, so it may schedule and cancel but shouldn't
+ * block.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTRetransmitScheduler {
+
+  /**
+   * Receives the messages that are due
+   */
+  public interface Callback {
+
+    /**
+     * Send the message again. A {@link MQTTPublish} has already been marked
+     * as duplicate.
+     *
+     * @param message the message
+     * @param attempt the retransmission, starting at 1
+     */
+    void retransmit(MQTTMessage message, int attempt);
+
+    /**
+     * The message was retransmitted the maximum number of times without
+     * being acknowledged, and is no longer scheduled.
+     *
+     * @param message the message
+     */
+    void expired(MQTTMessage message);
+
+  }
+
+  public static final long DEFAULT_TIMEOUT = 10000;
+
+  public static final double DEFAULT_BACKOFF = 2.0;
+
+  /**
+   * Longest wait between two retransmissions, however many times the
+   * backoff has been applied
+   */
+  public static final long DEFAULT_MAX_TIMEOUT = 300000;
+
+  public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+  public static final long DEFAULT_TICK_DURATION = 100;
+
+  private static final int WHEEL_SIZE = 512;
+
+  private static final int SLOTS = MQTTIdentifierAllocator.MAX_IDENTIFIER + 1;
+
+  /**
+   * End of a bucket chain, package identifier 0 is never scheduled
+   */
+  private static final char NONE = 0;
+
+  private final Callback callback;
+
+  private final long timeout;
+  private final long maxTimeout;
+  private final double backoff;
+  private final int maxAttempts;
+  private final long tickDuration;
+
+  private final char[] buckets = new char[WHEEL_SIZE];
+
+  private final char[] next = new char[SLOTS];
+  private final char[] prev = new char[SLOTS];
+
+  private final long[] deadlines = new long[SLOTS];
+  private final byte[] attempts = new byte[SLOTS];
+  private final boolean[] linked = new boolean[SLOTS];
+
+  private final MQTTMessage[] messages = new MQTTMessage[SLOTS];
+
+  /**
+   * Identifiers that are due, collected before any callback is made
+   */
+  private int[] due = new int[16];
+
+  private final long origin = System.nanoTime();
+
+  private boolean started;
+  private long lastTick;
+
+  /**
+   * The earliest tick linked before the first {@link #tick(long)}, where
+   * the first sweep starts
+   */
+  private long earliest = Long.MAX_VALUE;
+
+  private int size;
+
+  public MQTTRetransmitScheduler(Callback callback) {
+    this(callback, DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS, DEFAULT_BACKOFF, DEFAULT_MAX_ATTEMPTS);
+  }
+
+  /**
+   * @param callback    receives the messages that are due
+   * @param timeout     time to wait for the first acknowledgement
+   * @param unit        the unit of the timeout
+   * @param backoff     every retransmission waits this many times longer
+   *                    than the previous one, 1 for a fixed timeout
+   * @param maxAttempts the number of retransmissions before a message expires
+   */
+  public MQTTRetransmitScheduler(Callback callback, long timeout, TimeUnit unit, double backoff, int maxAttempts) {
+    this(callback, timeout, unit, backoff, maxAttempts, DEFAULT_TICK_DURATION);
+  }
+
+  /**
+   * @param callback     receives the messages that are due
+   * @param timeout      time to wait for the first acknowledgement
+   * @param unit         the unit of the timeout
+   * @param backoff      every retransmission waits this many times longer
+   *                     than the previous one, 1 for a fixed timeout
+   * @param maxAttempts  the number of retransmissions before a message
+   *                     expires
+   * @param tickDuration resolution of the wheel in milliseconds
+   */
+  public MQTTRetransmitScheduler(Callback callback, long timeout, TimeUnit unit, double backoff, int maxAttempts, long tickDuration) {
+    this(callback, timeout, Math.max(timeout, unit.convert(DEFAULT_MAX_TIMEOUT, TimeUnit.MILLISECONDS)), unit,
+        backoff, maxAttempts, tickDuration);
+  }
+
+  /**
+   * @param callback     receives the messages that are due
+   * @param timeout      time to wait for the first acknowledgement
+   * @param maxTimeout   longest time to wait for any acknowledgement, caps
+   *                     the backoff
+   * @param unit         the unit of both timeouts
+   * @param backoff      every retransmission waits this many times longer
+   *                     than the previous one, 1 for a fixed timeout
+   * @param maxAttempts  the number of retransmissions before a message
+   *                     expires
+   * @param tickDuration resolution of the wheel in milliseconds
+   */
+  public MQTTRetransmitScheduler(Callback callback, long timeout, long maxTimeout, TimeUnit unit, double backoff, int maxAttempts, long tickDuration) {
+    if (timeout < 0 || maxTimeout < timeout)
+      throw new IllegalArgumentException("Max timeout " + maxTimeout + " must be at least the timeout " + timeout + ", which can't be negative");
+    if (backoff < 1.0)
+      throw new IllegalArgumentException("Backoff must be at least 1, " + backoff);
+    if (maxAttempts < 0 || maxAttempts > Byte.MAX_VALUE)
+      throw new IllegalArgumentException("Max attempts must be between 0 and " + Byte.MAX_VALUE + ", " + maxAttempts);
+    if (tickDuration < 1)
+      throw new IllegalArgumentException("Tick duration must be positive, " + tickDuration);
+
+    this.callback = callback;
+    this.timeout = unit.toMillis(timeout);
+    this.maxTimeout = unit.toMillis(maxTimeout);
+    this.backoff = backoff;
+    this.maxAttempts = maxAttempts;
+    this.tickDuration = tickDuration;
+  }
+
+  /**
+   * Schedule the retransmission of a message that was just sent, replacing
+   * any message scheduled with the same identifier.
+   *
+   * @param message the message, with a package identifier
+   */
+  public void schedule(MQTTMessage message) {
+    schedule(message, now());
+  }
+
+  /**
+   * @param message the message, with a package identifier
+   * @param now     the current time in milliseconds, from the same clock as
+   *                {@link #tick(long)}
+   * @see #schedule(MQTTMessage)
+   */
+  public synchronized void schedule(MQTTMessage message, long now) {
+    int identifier = check(message.getPackageIdentifier());
+
+    if (messages[identifier] == null)
+      size++;
+    else if (linked[identifier])
+      unlink(identifier);
+
+    messages[identifier] = message;
+    attempts[identifier] = 0;
+    link(identifier, deadline(now, timeout));
+  }
+
+  /**
+   * Stop retransmitting a message, when it has been acknowledged
+   *
+   * @param identifier the package identifier
+   * @return the message that was scheduled, or null
+   */
+  public synchronized MQTTMessage cancel(int identifier) {
+    check(identifier);
+
+    MQTTMessage message = messages[identifier];
+    if (message != null) {
+      if (linked[identifier])
+        unlink(identifier);
+      messages[identifier] = null;
+      size--;
+    }
+
+    return message;
+  }
+
+  /**
+   * @param identifier the package identifier
+   * @return true if a message with the identifier is scheduled
+   */
+  public synchronized boolean isScheduled(int identifier) {
+    return messages[check(identifier)] != null;
+  }
+
+  /**
+   * @return The number of scheduled messages
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * @return The resolution of the wheel in milliseconds, how often
+   * {@link #tick()} should be called
+   */
+  public long getTickDuration() {
+    return tickDuration;
+  }
+
+  /**
+   * Retransmit, or expire, every message that is due
+   *
+   * @return the number of messages that were due
+   */
+  public int tick() {
+    return tick(now());
+  }
+
+  /**
+   * @param now the current time in milliseconds, from the same clock as
+   *            {@link #schedule(MQTTMessage, long)}
+   * @return the number of messages that were due
+   * @see #tick()
+   */
+  public synchronized int tick(long now) {
+    long current = now / tickDuration;
+
+    long from = started ? lastTick + 1 : Math.min(earliest, current);
+    // One turn of the wheel visits every bucket
+    if (current - from >= WHEEL_SIZE)
+      from = current - WHEEL_SIZE + 1;
+    started = true;
+    lastTick = current;
+
+    int count = 0;
+    for (long tick = from; tick <= current; tick++) {
+      int identifier = buckets[(int) (tick & (WHEEL_SIZE - 1))];
+
+      while (identifier != NONE) {
+        int following = next[identifier];
+
+        if (deadlines[identifier] <= current) {
+          unlink(identifier);
+          if (count == due.length)
+            due = Arrays.copyOf(due, count * 2);
+          due[count++] = identifier;
+        }
+
+        identifier = following;
+      }
+    }
+
+    int fired = 0;
+    for (int i = 0; i < count; i++) {
+      int identifier = due[i];
+
+      // Skip messages the callback has cancelled or scheduled again
+      if (messages[identifier] != null && !linked[identifier]) {
+        fire(identifier, now);
+        fired++;
+      }
+    }
+
+    return fired;
+  }
+
+  private void fire(int identifier, long now) {
+    MQTTMessage message = messages[identifier];
+    // Unsigned, the attempt after Byte.MAX_VALUE is 128 and expires
+    int attempt = ++attempts[identifier] & 0xFF;
+
+    if (attempt > maxAttempts) {
+      messages[identifier] = null;
+      size--;
+      callback.expired(message);
+      return;
+    }
+
+    if (message instanceof MQTTPublish)
+      ((MQTTPublish) message).setDup();
+
+    link(identifier, deadline(now, delay(attempt)));
+    callback.retransmit(message, attempt);
+  }
+
+  /**
+   * @return the wait after a retransmission, never more than the max timeout
+   */
+  private long delay(int attempt) {
+    double delay = timeout * Math.pow(backoff, attempt);
+    return delay < maxTimeout ? (long) delay : maxTimeout;
+  }
+
+  /**
+   * @return now + delay, saturated at Long.MAX_VALUE
+   */
+  private static long deadline(long now, long delay) {
+    return now > Long.MAX_VALUE - delay ? Long.MAX_VALUE : now + delay;
+  }
+
+  private void link(int identifier, long deadline) {
+    // Round up, a message is never retransmitted early
+    long tick = deadline / tickDuration + (deadline % tickDuration == 0 ? 0 : 1);
+    if (started && tick <= lastTick)
+      tick = lastTick + 1;
+    else if (!started && tick < earliest)
+      earliest = tick;
+    deadlines[identifier] = tick;
+    linked[identifier] = true;
+
+    int bucket = (int) (tick & (WHEEL_SIZE - 1));
+    char head = buckets[bucket];
+
+    next[identifier] = head;
+    prev[identifier] = NONE;
+    if (head != NONE)
+      prev[head] = (char) identifier;
+    buckets[bucket] = (char) identifier;
+  }
+
+  private void unlink(int identifier) {
+    char before = prev[identifier];
+    char after = next[identifier];
+
+    if (before != NONE)
+      next[before] = after;
+    else
+      buckets[(int) (deadlines[identifier] & (WHEEL_SIZE - 1))] = after;
+
+    if (after != NONE)
+      prev[after] = before;
+
+    next[identifier] = NONE;
+    prev[identifier] = NONE;
+    linked[identifier] = false;
+  }
+
+  private long now() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - origin);
+  }
+
+  private static int check(int identifier) {
+    if (identifier < 1 || identifier >= SLOTS)
+      throw new IllegalArgumentException("Invalid package identifier " + identifier);
+    return identifier;
+  }
+
+}
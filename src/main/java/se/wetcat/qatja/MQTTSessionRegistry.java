@@ -0,0 +1,584 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+import se.wetcat.qatja.messages.MQTTMessage;
+
+/**
+ * Package identifiers and messages in flight for a large number of sessions,
+ * the same bookkeeping as one {@link MQTTIdentifierHelper} per session at a
+ * fraction of the memory.
+ * <p>
+ * A session is an int handle. Its own state is four ints in arrays shared by
+ * all sessions, allocated in slabs of 4096 sessions, so an idle session costs
+ * sixteen bytes. The messages in flight of all sessions are kept in one open
+ * addressing hash, keyed by session, direction and identifier and split in
+ * segments; a session always maps to the same segment, whose lock guards
+ * everything about the session. Closed handles are reused.
+ * <p>
+ * A session with few identifiers in use finds a free one within a few probes
+ * of its cursor. Once a session has 32 sent identifiers in use it gets a
+ * direct index, a bitmap of its sent identifiers, so a free identifier is
+ * found a word at a time without probing the hash; the bitmap is kept until
+ * the session is closed.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTSessionRegistry {
+
+  private static final int SLAB_SHIFT = 12;
+  private static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+  private static final int SLAB_MASK = SLAB_SIZE - 1;
+
+  private static final int SEGMENTS = 64;
+
+  private static final int SENT = 0;
+  private static final int RECEIVED = 1;
+
+  /**
+   * Sent identifiers in use before a session gets a direct index
+   */
+  private static final int DIRECT_INDEX_THRESHOLD = 32;
+
+  private static final int BITMAP_WORDS = (MQTTIdentifierAllocator.MAX_IDENTIFIER + 1) >>> 6;
+
+  /**
+   * Next identifier to try per session, 0 for a closed session
+   */
+  private volatile int[][] cursors = new int[0][];
+
+  /**
+   * Sent identifiers in use per session, reserved or in flight
+   */
+  private volatile int[][] sentCounts = new int[0][];
+
+  /**
+   * Entries per session, sent and received
+   */
+  private volatile int[][] entryCounts = new int[0][];
+
+  /**
+   * Bitmap of the direct index per session, within its segment, 0 for none
+   */
+  private volatile int[][] bitmaps = new int[0][];
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+
+  private int[] free = new int[16];
+  private int freeCount;
+
+  private int sessions;
+  private int open;
+
+  public MQTTSessionRegistry() {
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment();
+    }
+  }
+
+  /**
+   * Open a session
+   *
+   * @return the handle of the session
+   */
+  public int open() {
+    int session;
+
+    synchronized (this) {
+      if (freeCount > 0) {
+        session = free[--freeCount];
+      } else {
+        session = sessions++;
+        if ((session >>> SLAB_SHIFT) == cursors.length)
+          grow();
+      }
+      open++;
+    }
+
+    Segment segment = segment(session);
+    synchronized (segment) {
+      cursors[session >>> SLAB_SHIFT][session & SLAB_MASK] = 1;
+    }
+
+    return session;
+  }
+
+  /**
+   * Close a session, dropping everything it has in flight. The handle may be
+   * handed out again by {@link #open()}.
+   *
+   * @param session the handle
+   */
+  public void close(int session) {
+    Segment segment = segment(session);
+    synchronized (segment) {
+      check(session);
+
+      int slab = session >>> SLAB_SHIFT;
+      int index = session & SLAB_MASK;
+
+      if (entryCounts[slab][index] > 0)
+        segment.removeSession(session);
+      if (bitmaps[slab][index] != 0)
+        segment.releaseBitmap(bitmaps[slab][index]);
+
+      cursors[slab][index] = 0;
+      bitmaps[slab][index] = 0;
+      sentCounts[slab][index] = 0;
+      entryCounts[slab][index] = 0;
+    }
+
+    synchronized (this) {
+      if (freeCount == free.length)
+        free = Arrays.copyOf(free, freeCount * 2);
+      free[freeCount++] = session;
+      open--;
+    }
+  }
+
+  /**
+   * @return The number of open sessions
+   */
+  public synchronized int size() {
+    return open;
+  }
+
+  /**
+   * Claim the next free identifier of a session, see
+   * {@link MQTTIdentifierHelper#getIdentifier()}
+   *
+   * @param session the handle
+   * @return the identifier, or 0 if all 65535 identifiers are in use
+   */
+  public int getIdentifier(int session) {
+    Segment segment = segment(session);
+    synchronized (segment) {
+      check(session);
+
+      int slab = session >>> SLAB_SHIFT;
+      int index = session & SLAB_MASK;
+
+      if (sentCounts[slab][index] >= MQTTIdentifierAllocator.MAX_IDENTIFIER)
+        return 0;
+
+      int identifier = cursors[slab][index];
+      int bitmap = bitmaps[slab][index];
+      if (bitmap != 0) {
+        identifier = nextFree(segment.bitmaps[bitmap], identifier);
+      } else {
+        // Fewer than DIRECT_INDEX_THRESHOLD in use, as many probes at most
+        while (segment.find(key(session, SENT, identifier)) >= 0) {
+          identifier = identifier == MQTTIdentifierAllocator.MAX_IDENTIFIER ? 1 : identifier + 1;
+        }
+      }
+      cursors[slab][index] = identifier == MQTTIdentifierAllocator.MAX_IDENTIFIER ? 1 : identifier + 1;
+
+      // Reserved, without a message until it is sent
+      segment.put(key(session, SENT, identifier), null);
+      sentCounts[slab][index]++;
+      entryCounts[slab][index]++;
+      used(segment, session, identifier);
+
+      return identifier;
+    }
+  }
+
+  /**
+   * Release an identifier from {@link #getIdentifier(int)} that was never
+   * used
+   *
+   * @param session    the handle
+   * @param identifier the identifier
+   */
+  public void releaseIdentifier(int session, int identifier) {
+    remove(session, SENT, identifier);
+  }
+
+  /**
+   * @param session the handle
+   * @param msg     the message that was sent
+   * @see MQTTIdentifierHelper#addSentPackage(MQTTMessage)
+   */
+  public void addSentPackage(int session, MQTTMessage msg) {
+    add(session, SENT, msg);
+  }
+
+  /**
+   * @param session the handle
+   * @param msg     the message that was acknowledged
+   * @see MQTTIdentifierHelper#removeSentPackage(MQTTMessage)
+   */
+  public void removeSentPackage(int session, MQTTMessage msg) {
+    remove(session, SENT, msg.getPackageIdentifier());
+  }
+
+  /**
+   * @param session    the handle
+   * @param identifier the identifier
+   * @return the sent message, or null
+   */
+  public MQTTMessage getSentPackage(int session, int identifier) {
+    return get(session, SENT, identifier);
+  }
+
+  /**
+   * @param session the handle
+   * @param msg     the message that was received
+   * @see MQTTIdentifierHelper#addReceivedPackage(MQTTMessage)
+   */
+  public void addReceivedPackage(int session, MQTTMessage msg) {
+    add(session, RECEIVED, msg);
+  }
+
+  /**
+   * @param session the handle
+   * @param msg     the message that was completed
+   * @see MQTTIdentifierHelper#removeReceivedPackage(MQTTMessage)
+   */
+  public void removeReceivedPackage(int session, MQTTMessage msg) {
+    remove(session, RECEIVED, msg.getPackageIdentifier());
+  }
+
+  /**
+   * @param session    the handle
+   * @param identifier the identifier
+   * @return the received message, or null
+   */
+  public MQTTMessage getReceivedPackage(int session, int identifier) {
+    return get(session, RECEIVED, identifier);
+  }
+
+  /**
+   * @param session the handle
+   * @return the number of sent identifiers in use, reserved or in flight
+   */
+  public int getInFlight(int session) {
+    Segment segment = segment(session);
+    synchronized (segment) {
+      check(session);
+      return sentCounts[session >>> SLAB_SHIFT][session & SLAB_MASK];
+    }
+  }
+
+  private void add(int session, int direction, MQTTMessage msg) {
+    int identifier = msg.getPackageIdentifier();
+    if (identifier < 1 || identifier > MQTTIdentifierAllocator.MAX_IDENTIFIER)
+      return;
+
+    Segment segment = segment(session);
+    synchronized (segment) {
+      check(session);
+
+      if (segment.put(key(session, direction, identifier), msg)) {
+        int slab = session >>> SLAB_SHIFT;
+        int index = session & SLAB_MASK;
+
+        if (direction == SENT) {
+          sentCounts[slab][index]++;
+          used(segment, session, identifier);
+        }
+        entryCounts[slab][index]++;
+      }
+    }
+  }
+
+  private void remove(int session, int direction, int identifier) {
+    if (identifier < 1 || identifier > MQTTIdentifierAllocator.MAX_IDENTIFIER)
+      return;
+
+    Segment segment = segment(session);
+    synchronized (segment) {
+      check(session);
+
+      if (segment.remove(key(session, direction, identifier))) {
+        int slab = session >>> SLAB_SHIFT;
+        int index = session & SLAB_MASK;
+
+        if (direction == SENT) {
+          sentCounts[slab][index]--;
+          int bitmap = bitmaps[slab][index];
+          if (bitmap != 0)
+            segment.bitmaps[bitmap][identifier >>> 6] &= ~(1L << identifier);
+        }
+        entryCounts[slab][index]--;
+      }
+    }
+  }
+
+  private MQTTMessage get(int session, int direction, int identifier) {
+    if (identifier < 1 || identifier > MQTTIdentifierAllocator.MAX_IDENTIFIER)
+      return null;
+
+    Segment segment = segment(session);
+    synchronized (segment) {
+      check(session);
+
+      int slot = segment.find(key(session, direction, identifier));
+      return slot < 0 ? null : segment.values[slot];
+    }
+  }
+
+  /**
+   * A sent identifier of the session is in use, mark it in the direct index,
+   * giving the session one once it has enough identifiers in use. Called
+   * with the lock of the segment held.
+   */
+  private void used(Segment segment, int session, int identifier) {
+    int slab = session >>> SLAB_SHIFT;
+    int index = session & SLAB_MASK;
+
+    int bitmap = bitmaps[slab][index];
+    if (bitmap != 0)
+      segment.bitmaps[bitmap][identifier >>> 6] |= 1L << identifier;
+    else if (sentCounts[slab][index] >= DIRECT_INDEX_THRESHOLD)
+      bitmaps[slab][index] = segment.index(session);
+  }
+
+  /**
+   * @return the first identifier from the cursor on that isn't set in the
+   * bitmap, wrapping around; there always is one
+   */
+  private static int nextFree(long[] bitmap, int from) {
+    int word = from >>> 6;
+    // Bits below the cursor are looked at last, after wrapping around
+    long free = ~bitmap[word] & (-1L << from);
+
+    for (int i = 0; i < BITMAP_WORDS; i++) {
+      if (free != 0)
+        return (word << 6) + Long.numberOfTrailingZeros(free);
+
+      word = (word + 1) & (BITMAP_WORDS - 1);
+      free = ~bitmap[word];
+    }
+
+    return (word << 6) + Long.numberOfTrailingZeros(free);
+  }
+
+  /**
+   * Add a slab to the per session arrays, the slabs that exist never move
+   */
+  private void grow() {
+    int slabs = cursors.length + 1;
+
+    int[][] cursors = Arrays.copyOf(this.cursors, slabs);
+    int[][] sentCounts = Arrays.copyOf(this.sentCounts, slabs);
+    int[][] entryCounts = Arrays.copyOf(this.entryCounts, slabs);
+    int[][] bitmaps = Arrays.copyOf(this.bitmaps, slabs);
+
+    cursors[slabs - 1] = new int[SLAB_SIZE];
+    sentCounts[slabs - 1] = new int[SLAB_SIZE];
+    entryCounts[slabs - 1] = new int[SLAB_SIZE];
+    bitmaps[slabs - 1] = new int[SLAB_SIZE];
+
+    this.sentCounts = sentCounts;
+    this.entryCounts = entryCounts;
+    this.bitmaps = bitmaps;
+    this.cursors = cursors;
+  }
+
+  /**
+   * Called with the lock of the segment held
+   */
+  private void check(int session) {
+    int[][] cursors = this.cursors;
+    if (session < 0 || (session >>> SLAB_SHIFT) >= cursors.length || cursors[session >>> SLAB_SHIFT][session & SLAB_MASK] == 0)
+      throw new IllegalArgumentException("No open session " + session);
+  }
+
+  private Segment segment(int session) {
+    return segments[session & (SEGMENTS - 1)];
+  }
+
+  /**
+   * Never 0, which marks an empty slot
+   */
+  private static long key(int session, int direction, int identifier) {
+    return ((session + 1L) << 17) | ((long) direction << 16) | identifier;
+  }
+
+  private static int hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xFF51AFD7ED558CCDL;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+
+  /**
+   * Open addressing hash with linear probing, guarded by its own lock
+   */
+  private static final class Segment {
+
+    long[] keys = new long[16];
+    MQTTMessage[] values = new MQTTMessage[16];
+    int size;
+
+    /**
+     * The direct indexes of the sessions of the segment, from 1, and the
+     * released ones that can be reused
+     */
+    long[][] bitmaps = new long[1][];
+    int bitmapCount = 1;
+    int[] freeBitmaps = new int[4];
+    int freeBitmapCount;
+
+    int find(long key) {
+      int mask = keys.length - 1;
+      for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+        long k = keys[i];
+        if (k == key)
+          return i;
+        if (k == 0)
+          return -1;
+      }
+    }
+
+    /**
+     * @return true if the key is new
+     */
+    boolean put(long key, MQTTMessage value) {
+      int mask = keys.length - 1;
+      int i = hash(key) & mask;
+      while (keys[i] != 0) {
+        if (keys[i] == key) {
+          values[i] = value;
+          return false;
+        }
+        i = (i + 1) & mask;
+      }
+
+      keys[i] = key;
+      values[i] = value;
+      if (++size * 4 >= keys.length * 3)
+        resize(keys.length * 2);
+      return true;
+    }
+
+    /**
+     * @return true if the key was present
+     */
+    boolean remove(long key) {
+      int slot = find(key);
+      if (slot < 0)
+        return false;
+
+      delete(slot);
+      return true;
+    }
+
+    /**
+     * Build the direct index of a session from its entries
+     *
+     * @return the bitmap, from 1
+     */
+    int index(int session) {
+      int bitmap;
+      if (freeBitmapCount > 0) {
+        bitmap = freeBitmaps[--freeBitmapCount];
+      } else {
+        if (bitmapCount == bitmaps.length)
+          bitmaps = Arrays.copyOf(bitmaps, bitmapCount * 2);
+        bitmap = bitmapCount++;
+        bitmaps[bitmap] = new long[BITMAP_WORDS];
+      }
+
+      long[] bits = bitmaps[bitmap];
+      // Identifier 0 is never handed out
+      bits[0] = 1L;
+
+      long owner = session + 1L;
+      for (int i = 0; i < keys.length; i++) {
+        long key = keys[i];
+        if (key != 0 && (key >>> 17) == owner && ((key >>> 16) & 1) == SENT) {
+          int identifier = (int) (key & 0xFFFF);
+          bits[identifier >>> 6] |= 1L << identifier;
+        }
+      }
+
+      return bitmap;
+    }
+
+    void releaseBitmap(int bitmap) {
+      Arrays.fill(bitmaps[bitmap], 0L);
+      if (freeBitmapCount == freeBitmaps.length)
+        freeBitmaps = Arrays.copyOf(freeBitmaps, freeBitmapCount * 2);
+      freeBitmaps[freeBitmapCount++] = bitmap;
+    }
+
+    void removeSession(int session) {
+      long owner = session + 1L;
+
+      // Rebuild without the session, deleting in place would move entries
+      // that haven't been visited yet
+      long[] keys = this.keys;
+      MQTTMessage[] values = this.values;
+      this.keys = new long[keys.length];
+      this.values = new MQTTMessage[values.length];
+      size = 0;
+
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != 0 && (keys[i] >>> 17) != owner)
+          put(keys[i], values[i]);
+      }
+    }
+
+    /**
+     * Empty the slot, moving later entries of the probe sequence back so that
+     * lookups never need tombstones
+     */
+    private void delete(int slot) {
+      int mask = keys.length - 1;
+      int hole = slot;
+
+      for (int i = (slot + 1) & mask; keys[i] != 0; i = (i + 1) & mask) {
+        int ideal = hash(keys[i]) & mask;
+
+        // Move the entry if the hole lies between its ideal slot and its slot
+        boolean movable = hole <= i
+            ? (ideal <= hole || ideal > i)
+            : (ideal <= hole && ideal > i);
+        if (movable) {
+          keys[hole] = keys[i];
+          values[hole] = values[i];
+          hole = i;
+        }
+      }
+
+      keys[hole] = 0;
+      values[hole] = null;
+      size--;
+    }
+
+    private void resize(int capacity) {
+      long[] keys = this.keys;
+      MQTTMessage[] values = this.values;
+      this.keys = new long[capacity];
+      this.values = new MQTTMessage[capacity];
+      size = 0;
+
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != 0)
+          put(keys[i], values[i]);
+      }
+    }
+
+  }
+
+}
@@ -16,10 +16,12 @@ package se.wetcat.qatja.messages;
  * limitations under the License.
  */
 
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import se.wetcat.qatja.MQTTException;
 
+import static se.wetcat.qatja.MQTTConstants.CONNACK;
+
 /**
  * The {@link se.wetcat.qatja.MQTTConstants#CONNACK} Packet is the packet sent by the Server in
  * response to a {@link se.wetcat.qatja.MQTTConstants#CONNECT} Packet received from a Client. The
@@ -37,42 +39,62 @@ import se.wetcat.qatja.MQTTException;
  */
 public class MQTTConnack extends MQTTMessage {
 
-  @SuppressWarnings("unused")
   private byte RESERVED;
   private byte returnCode;
 
-  public static MQTTConnack fromBuffer(byte[] buffer) {
-    return new MQTTConnack(buffer);
+  /**
+   * @param sessionPresent true if the server already had a session for the
+   *                       client
+   * @param returnCode     the return code, see
+   *                       {@link se.wetcat.qatja.MQTTConstants#CONNECTION_ACCEPTED}
+   * @return the message
+   */
+  public static MQTTConnack newInstance(boolean sessionPresent, byte returnCode) {
+    return new MQTTConnack(sessionPresent, returnCode);
+  }
+
+  public static MQTTConnack fromBuffer(byte[] buffer) throws MQTTException {
+    return fromBuffer(ByteBuffer.wrap(buffer));
   }
 
-  private MQTTConnack(byte[] buffer) {
-    int i = 0;
+  /**
+   * Decode a complete {@link se.wetcat.qatja.MQTTConstants#CONNACK} frame, see
+   * {@link MQTTDecoder#decode(ByteBuffer)}
+   *
+   * @param buffer the frame, positioned at the fixed header
+   * @return the message
+   * @throws MQTTException if the frame is malformed, incomplete or of another type
+   */
+  public static MQTTConnack fromBuffer(ByteBuffer buffer) throws MQTTException {
+    return (MQTTConnack) MQTTDecoder.decode(buffer, CONNACK);
+  }
 
+  /**
+   * Construct a {@link se.wetcat.qatja.MQTTConstants#CONNACK} message
+   *
+   * @param sessionPresent true if the server already had a session
+   * @param returnCode     the return code
+   */
+  private MQTTConnack(boolean sessionPresent, byte returnCode) {
+    this.setType(CONNACK);
+    this.RESERVED = (byte) (sessionPresent ? 0x01 : 0x00);
+    this.returnCode = returnCode;
+  }
+
+  MQTTConnack(byte fixed, int remainingLength, ByteBuffer buffer) {
     // Type (just for clarity sake we'll set it...)
-    this.setType((byte) ((buffer[i++] >> 4) & 0x0F));
+    this.setType((byte) ((fixed >> 4) & 0x0F));
 
     // Remaining length
-    int multiplier = 1;
-    int len = 0;
-    byte digit = 0;
-    do {
-      digit = buffer[i++];
-      len += (digit & 127) * multiplier;
-      multiplier *= 128;
-    } while ((digit & 128) != 0);
-    this.setRemainingLength(len);
-
-    // Get length of protocol name
-    len = ((buffer[i] >> 8) & 0xFF) | (buffer[i + 1] & 0xFF);
+    this.setRemainingLength(remainingLength);
 
     // Get variable header (always length 2 in CONNACK)
     variableHeader = new byte[2];
-    System.arraycopy(buffer, i, variableHeader, 0, variableHeader.length);
+    buffer.get(variableHeader);
 
     // Get payload
     payload = new byte[remainingLength - variableHeader.length];
-    if (payload.length > 0)
-      System.arraycopy(buffer, i + variableHeader.length, payload, 0, remainingLength - variableHeader.length);
+    buffer.get(payload);
 
     RESERVED = variableHeader[0];
     returnCode = variableHeader[1];
@@ -85,22 +107,34 @@ public class MQTTConnack extends MQTTMessage {
     return returnCode;
   }
 
+  /**
+   * @return true if the server already had a session for the client
+   */
+  public boolean isSessionPresent() {
+    return (RESERVED & 0x01) != 0;
+  }
+
+  @Override
+  protected int variableHeaderLength() throws MQTTException {
+    // Acknowledge flags and return code
+    return 2;
+  }
+
   @Override
-  protected byte[] generateFixedHeader() throws MQTTException, IOException {
-    // Client doesn't generate CONNACK
-    return null;
+  protected int payloadLength() throws MQTTException {
+    // No payload for CONNACK
+    return 0;
   }
 
   @Override
-  protected byte[] generateVariableHeader() throws MQTTException, IOException {
-    // Client doesn't generate CONNACK
-    return null;
+  protected void writeVariableHeader(ByteBuffer out) throws MQTTException {
+    out.put(RESERVED);
+    out.put(returnCode);
   }
 
   @Override
-  protected byte[] generatePayload() throws MQTTException, IOException {
-    // Client doesn't generate CONNACK
-    return null;
+  protected void writePayload(ByteBuffer out) throws MQTTException {
+    // No payload for CONNACK
   }
 
 }
@@ -16,8 +16,8 @@ package se.wetcat.qatja.messages;
  * limitations under the License.
  */
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import se.wetcat.qatja.MQTTException;
 import se.wetcat.qatja.MQTTHelper;
@@ -26,6 +26,7 @@ import static se.wetcat.qatja.MQTTConstants.AT_MOST_ONCE;
 import static se.wetcat.qatja.MQTTConstants.CONNECT;
 import static se.wetcat.qatja.MQTTConstants.MAX_LENGTH;
 import static se.wetcat.qatja.MQTTConstants.MIN_LENGTH;
+import static se.wetcat.qatja.MQTTVersion.NAME_311;
 import static se.wetcat.qatja.MQTTVersion.VERSION_311;
 
 /**
@@ -97,8 +98,28 @@ public class MQTTConnect extends MQTTMessage {
     return new MQTTConnect(clientIdentifier, username, password, willRetain, willQoS, willTopic, willMessage, cleanSession, keepAlive);
   }
 
-  public static MQTTConnect fromButton(byte[] buffer) {
-    return new MQTTConnect(buffer);
+  public static MQTTConnect fromBuffer(byte[] buffer) throws MQTTException {
+    return fromBuffer(ByteBuffer.wrap(buffer));
+  }
+
+  /**
+   * Decode a complete {@link se.wetcat.qatja.MQTTConstants#CONNECT} frame, see
+   * {@link MQTTDecoder#decode(ByteBuffer)}
+   *
+   * @param buffer the frame, positioned at the fixed header
+   * @return the message
+   * @throws MQTTException if the frame is malformed, incomplete or of another type
+   */
+  public static MQTTConnect fromBuffer(ByteBuffer buffer) throws MQTTException {
+    return (MQTTConnect) MQTTDecoder.decode(buffer, CONNECT);
+  }
+
+  /**
+   * @deprecated Use {@link #fromBuffer(byte[])}
+   */
+  @Deprecated
+  public static MQTTConnect fromButton(byte[] buffer) throws MQTTException {
+    return fromBuffer(buffer);
   }
 
   /**
@@ -174,42 +195,53 @@ public class MQTTConnect extends MQTTMessage {
   }
 
   /**
-   * Create MQTT Connect message from a byte[].
+   * Create MQTT Connect message from a buffer, the fixed header has already
+   * been read.
    *
-   * @param buffer Buffer from which to create message
+   * @param fixed           The first byte of the fixed header
+   * @param remainingLength The remaining length
+   * @param buffer          Buffer from which to create message, positioned at the variable header
    */
-  private MQTTConnect(byte[] buffer) {
-    int i = 0;
+  MQTTConnect(byte fixed, int remainingLength, ByteBuffer buffer) {
     // Type (just for clarity sake we'll set it...)
-    this.setType((byte) ((buffer[i++] >> 4) & 0x0F));
+    this.setType((byte) ((fixed >> 4) & 0x0F));
 
     // Remaining length
-    int multiplier = 1;
-    int len = 0;
-    byte digit = 0;
-    do {
-      digit = buffer[i++];
-      len += (digit & 127) * multiplier;
-      multiplier *= 128;
-    } while ((digit & 128) != 0);
-    this.setRemainingLength(len);
+    this.setRemainingLength(remainingLength);
 
     // Get length of protocol name
-    len = ((buffer[i] >> 8) & 0xFF) | (buffer[i + 1] & 0xFF);
+    int len = ((buffer.get(buffer.position()) & 0xFF) << 8) | (buffer.get(buffer.position() + 1) & 0xFF);
 
-    // Get variable header (always length 10 in CONNECT)
-    variableHeader = new byte[10];
-    System.arraycopy(buffer, i, variableHeader, 0, variableHeader.length);
+    // Get variable header (protocol name, level, flags and keep alive)
+    variableHeader = new byte[2 + len + 1 + 1 + 2];
+    buffer.get(variableHeader);
 
     // Get payload
     payload = new byte[remainingLength - variableHeader.length];
-    System.arraycopy(buffer, i + variableHeader.length, payload, 0, remainingLength - variableHeader.length);
+    buffer.get(payload);
 
-    i = 2;
-    protocolName = new String(variableHeader, i, len);
+    int i = 2;
+    protocolName = new String(variableHeader, i, len, StandardCharsets.UTF_8);
     protocolVersion = variableHeader[(i += len)];
     flags = variableHeader[++i];
-    keepAlive = (variableHeader[++i] >> 8) & 0xFF | (variableHeader[++i] & 0xFF);
+    keepAlive = ((variableHeader[++i] & 0xFF) << 8) | (variableHeader[++i] & 0xFF);
+
+    // CONNECT FLAGS
+    cleanSession = ((flags >> 1) & 1) == 1;
+    willFlag = ((flags >> 2) & 1) == 1;
+    willQoS = (byte) ((flags >> 3) & 0x03);
+    willRetain = ((flags >> 5) & 1) == 1;
+
+    // Payload fields, in order, their presence is given by the flags
+    ByteBuffer in = ByteBuffer.wrap(payload);
+
+    clientIdentifier = MQTTHelper.readUTF8(in);
+
+    willTopic = willFlag ? MQTTHelper.readUTF8(in) : null;
+    willMessage = willFlag ? MQTTHelper.readUTF8(in) : null;
+
+    username = ((flags >> 7) & 1) == 1 ? MQTTHelper.readUTF8(in) : null;
+    password = ((flags >> 6) & 1) == 1 ? MQTTHelper.readUTF8(in) : null;
   }
 
   /**
@@ -224,94 +256,24 @@ public class MQTTConnect extends MQTTMessage {
     this.willFlag = true;
     this.willTopic = willTopic;
     this.willMessage = willMessage;
+    this.willRetain = willRetain;
     this.willQoS = willQoS;
+    invalidate();
   }
 
   @Override
-  protected byte[] generateFixedHeader() throws MQTTException, IOException {
-    // FIXED HEADER
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-    // Type
-    out.write((byte) (type << 4));
-
-    // Flags (none for CONNECT)
-
-    // Remaining length
-    int length = variableHeader.length + payload.length;
-    this.setRemainingLength(length);
-    do {
-      byte digit = (byte) (length % 128);
-      length /= 128;
-      if (length > 0)
-        digit = (byte) (digit | 0x80);
-      out.write(digit);
-    } while (length > 0);
-
-    return out.toByteArray();
-  }
-
-  @Override
-  protected byte[] generateVariableHeader() throws MQTTException, IOException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-    // Some packages has this
-    if (protocolName == null)
-      out.write(getProtocol());
-    else {
-      // For some reason I need to test this in the interop testing...
-      out.write((protocolName.getBytes("UTF-8").length >> 8) & 0xFF); // MSB
-      out.write(protocolName.getBytes("UTF-8").length & 0xFF); // LSB
-      out.write(protocolName.getBytes("UTF-8"));
-
-      // Protocol Level (Used by all messages)
-      out.write((byte) VERSION_311);
-    }
-
-    // CONNECT FLAGS
-    byte flags = (byte) (0x00);
-
-    byte username = (byte) ((this.username != null && this.username.length() >= 0) ? 0x01 : 0x00);
-    byte password = (byte) ((this.password != null && this.password.length() >= 0) ? 0x01 : 0x00);
-    byte willRetain = (byte) (this.willRetain ? 0x01 : 0x00);
-    byte willQoS = this.willQoS;
-    byte willFlag = (byte) ((this.willRetain && this.willFlag) ? 0x01 : 0x00);
-    byte cleanSession = (byte) (this.cleanSession ? 0x01 : 0x00);
-    byte RESERVED = (byte) 0x00;
-
-    flags = (byte) ((username << 7) | (password << 6) | (willRetain << 5) | (willQoS << 3) | (willFlag << 2)
-        | (cleanSession << 1) | (RESERVED << 0));
-
-    // Write flags
-    out.write(flags);
-
-    // Keep alive (Use lower two bytes of integer)
-    out.write(MQTTHelper.MSB(keepAlive));
-    out.write(MQTTHelper.LSB(keepAlive));
-
-    return out.toByteArray();
-  }
-
-  @Override
-  protected byte[] generatePayload() throws MQTTException, IOException {
-    // PAYLOAD
-    ByteArrayOutputStream payload = new ByteArrayOutputStream();
-
+  protected void validate() throws MQTTException {
     // CLIENT IDENTIFIER
     // ClientID MUST be present and MUST be the first field in payload
     if (clientIdentifier == null)
       throw new MQTTException("Client identifier invalid");
-    // ClientID MUST be UTF-8
-    if (MQTTHelper.isUTF8(clientIdentifier.getBytes("UTF-8")))
-      throw new MQTTException("Invalid identifier encoding");
     // ClientID MUST be length between 0 and 65535
-    if (clientIdentifier.getBytes("UTF-8").length < MIN_LENGTH
-        || clientIdentifier.getBytes("UTF-8").length > MAX_LENGTH)
+    if (MQTTHelper.utf8Length(clientIdentifier) < MIN_LENGTH
+        || MQTTHelper.utf8Length(clientIdentifier) > MAX_LENGTH)
       throw new MQTTException("Client identifier invalid length");
-
-    payload.write(MQTTHelper.MSB(clientIdentifier.getBytes("UTF-8"))); // MSB
-    payload.write(MQTTHelper.LSB(clientIdentifier.getBytes("UTF-8"))); // LSB
-    payload.write(clientIdentifier.getBytes("UTF-8"));
+    // ClientID MUST be UTF-8
+    if (!MQTTHelper.isUTF8(clientIdentifier))
+      throw new MQTTException("Invalid identifier encoding");
 
     // WILL
     if (willFlag) {
@@ -319,50 +281,103 @@ public class MQTTConnect extends MQTTMessage {
       if (willTopic == null)
         throw new MQTTException("Will flag set, will topic MUST be present");
       // Will topic MUST be UTF-8
-      if (MQTTHelper.isUTF8(willTopic.getBytes("UTF-8")))
+      if (!MQTTHelper.isUTF8(willTopic))
         throw new MQTTException("Invalid will topic encoding");
-      // Write Will topic
-      payload.write(MQTTHelper.MSB(willTopic.getBytes("UTF-8"))); // MSB
-      payload.write(MQTTHelper.LSB(willTopic.getBytes("UTF-8"))); // LSB
-      payload.write(willTopic.getBytes("UTF-8"));
 
       // Will message MUST be UTF-8
       if (willMessage == null)
         throw new MQTTException("Will flag set, will message MUST be present");
-      if (MQTTHelper.isUTF8(willMessage.getBytes("UTF-8")))
+      if (!MQTTHelper.isUTF8(willMessage))
         throw new MQTTException("Invalid will message encoding");
-      // Write Will message
-      payload.write(MQTTHelper.MSB(willMessage.getBytes("UTF-8"))); // MSB
-      payload.write(MQTTHelper.LSB(willMessage.getBytes("UTF-8"))); // LSB
-      payload.write(willMessage.getBytes("UTF-8"));
     }
 
     // USERNAME
-    if (username != null && username.length() >= 0) {
+    if (username != null) {
       // Username MUST be UTF-8
-      if (MQTTHelper.isUTF8(username.getBytes("UTF-8")))
+      if (!MQTTHelper.isUTF8(username))
         throw new MQTTException("Invalid username encoding");
-      // Write username
-      payload.write(MQTTHelper.MSB(username.getBytes("UTF-8"))); // MSB
-      payload.write(MQTTHelper.LSB(username.getBytes("UTF-8"))); // LSB
-      payload.write(username.getBytes("UTF-8"));
     }
 
     // PASSWORD
-    if (password != null && password.length() >= 0) {
-      // Password MUST be UTF-8
-      if (MQTTHelper.isUTF8(password.getBytes("UTF-8")))
-        throw new MQTTException("Invalid password encoding");
+    if (password != null) {
       // Password contains 0 to 65535 bytes
-      if (password.getBytes("UTF-8").length < MIN_LENGTH || password.getBytes("UTF-8").length > MAX_LENGTH)
+      if (MQTTHelper.utf8Length(password) < MIN_LENGTH || MQTTHelper.utf8Length(password) > MAX_LENGTH)
         throw new MQTTException("Password invalid length");
-      // Write password
-      payload.write(MQTTHelper.MSB(password.getBytes("UTF-8"))); // MSB
-      payload.write(MQTTHelper.LSB(password.getBytes("UTF-8"))); // LSB
-      payload.write(password.getBytes("UTF-8"));
+      // Password MUST be UTF-8
+      if (!MQTTHelper.isUTF8(password))
+        throw new MQTTException("Invalid password encoding");
+    }
+  }
+
+  @Override
+  protected int variableHeaderLength() throws MQTTException {
+    // Protocol name, protocol level, connect flags and keep alive
+    return 2 + MQTTHelper.utf8Length(protocolName == null ? NAME_311 : protocolName) + 1 + 1 + 2;
+  }
+
+  @Override
+  protected int payloadLength() throws MQTTException {
+    int length = 2 + MQTTHelper.utf8Length(clientIdentifier);
+
+    if (willFlag)
+      length += 2 + MQTTHelper.utf8Length(willTopic) + 2 + MQTTHelper.utf8Length(willMessage);
+
+    if (username != null)
+      length += 2 + MQTTHelper.utf8Length(username);
+
+    if (password != null)
+      length += 2 + MQTTHelper.utf8Length(password);
+
+    return length;
+  }
+
+  @Override
+  protected void writeVariableHeader(ByteBuffer out) throws MQTTException {
+    // Some packages has this
+    MQTTHelper.writeUTF8(out, protocolName == null ? NAME_311 : protocolName);
+
+    // Protocol Level (Used by all messages)
+    out.put(VERSION_311);
+
+    // CONNECT FLAGS
+    byte username = (byte) (this.username != null ? 0x01 : 0x00);
+    byte password = (byte) (this.password != null ? 0x01 : 0x00);
+    byte willFlag = (byte) (this.willFlag ? 0x01 : 0x00);
+    // If the Will Flag is set to 0, the Will QoS and Will Retain MUST be 0
+    byte willRetain = (byte) ((this.willFlag && this.willRetain) ? 0x01 : 0x00);
+    byte willQoS = this.willFlag ? this.willQoS : 0x00;
+    byte cleanSession = (byte) (this.cleanSession ? 0x01 : 0x00);
+    byte RESERVED = (byte) 0x00;
+
+    byte flags = (byte) ((username << 7) | (password << 6) | (willRetain << 5) | (willQoS << 3) | (willFlag << 2)
+        | (cleanSession << 1) | (RESERVED << 0));
+
+    // Write flags
+    out.put(flags);
+
+    // Keep alive (Use lower two bytes of integer)
+    out.put(MQTTHelper.MSB(keepAlive));
+    out.put(MQTTHelper.LSB(keepAlive));
+  }
+
+  @Override
+  protected void writePayload(ByteBuffer out) throws MQTTException {
+    // CLIENT IDENTIFIER
+    MQTTHelper.writeUTF8(out, clientIdentifier);
+
+    // WILL
+    if (willFlag) {
+      MQTTHelper.writeUTF8(out, willTopic);
+      MQTTHelper.writeUTF8(out, willMessage);
     }
 
-    return payload.toByteArray();
+    // USERNAME
+    if (username != null)
+      MQTTHelper.writeUTF8(out, username);
+
+    // PASSWORD
+    if (password != null)
+      MQTTHelper.writeUTF8(out, password);
   }
 
   /**
@@ -377,6 +392,7 @@ public class MQTTConnect extends MQTTMessage {
    */
   public void setClientIdentifier(String clientIdentifier) {
     this.clientIdentifier = clientIdentifier;
+    invalidate();
   }
 
   /**
@@ -391,6 +407,7 @@ public class MQTTConnect extends MQTTMessage {
    */
   public void setProtocolVersion(byte protocolVersion) {
     this.protocolVersion = protocolVersion;
+    invalidate();
   }
 
   /**
@@ -405,6 +422,7 @@ public class MQTTConnect extends MQTTMessage {
    */
   public void setProtocolName(String protocolName) {
     this.protocolName = protocolName;
+    invalidate();
   }
 
   /**
@@ -419,6 +437,7 @@ public class MQTTConnect extends MQTTMessage {
    */
   public void setWillRetain(boolean willRetain) {
     this.willRetain = willRetain;
+    invalidate();
   }
 
   /**
@@ -433,6 +452,7 @@ public class MQTTConnect extends MQTTMessage {
    */
   public void setWillFlag(boolean willFlag) {
     this.willFlag = willFlag;
+    invalidate();
   }
 
   /**
@@ -447,6 +467,7 @@ public class MQTTConnect extends MQTTMessage {
    */
   public void setWillTopic(String willTopic) {
     this.willTopic = willTopic;
+    invalidate();
   }
 
   /**
@@ -461,6 +482,7 @@ public class MQTTConnect extends MQTTMessage {
    */
   public void setWillMessage(String willMessage) {
     this.willMessage = willMessage;
+    invalidate();
   }
 
   /**
@@ -475,6 +497,7 @@ public class MQTTConnect extends MQTTMessage {
    */
   public void setWillQoS(byte willQoS) {
     this.willQoS = willQoS;
+    invalidate();
   }
 
   /**
@@ -489,6 +512,7 @@ public class MQTTConnect extends MQTTMessage {
    */
   public void setUsername(String username) {
     this.username = username;
+    invalidate();
   }
 
   /**
@@ -503,6 +527,7 @@ public class MQTTConnect extends MQTTMessage {
    */
   public void setPassword(String password) {
     this.password = password;
+    invalidate();
   }
 
   /**
@@ -517,6 +542,7 @@ public class MQTTConnect extends MQTTMessage {
    */
   public void setCleanSession(boolean cleanSession) {
     this.cleanSession = cleanSession;
+    invalidate();
   }
 
   /**
@@ -531,6 +557,7 @@ public class MQTTConnect extends MQTTMessage {
    */
   public void setKeepAlive(int keepAlive) {
     this.keepAlive = keepAlive;
+    invalidate();
   }
 
 }
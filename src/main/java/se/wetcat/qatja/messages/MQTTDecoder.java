@@ -0,0 +1,190 @@
+package se.wetcat.qatja.messages;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+import se.wetcat.qatja.MQTTException;
+import se.wetcat.qatja.MQTTHelper;
+
+import static se.wetcat.qatja.MQTTConstants.CONNACK;
+import static se.wetcat.qatja.MQTTConstants.CONNECT;
+import static se.wetcat.qatja.MQTTConstants.DISCONNECT;
+import static se.wetcat.qatja.MQTTConstants.PINGREQ;
+import static se.wetcat.qatja.MQTTConstants.PINGRESP;
+import static se.wetcat.qatja.MQTTConstants.PUBACK;
+import static se.wetcat.qatja.MQTTConstants.PUBCOMP;
+import static se.wetcat.qatja.MQTTConstants.PUBLISH;
+import static se.wetcat.qatja.MQTTConstants.PUBREC;
+import static se.wetcat.qatja.MQTTConstants.PUBREL;
+import static se.wetcat.qatja.MQTTConstants.SUBACK;
+import static se.wetcat.qatja.MQTTConstants.SUBSCRIBE;
+import static se.wetcat.qatja.MQTTConstants.UNSUBACK;
+import static se.wetcat.qatja.MQTTConstants.UNSUBSCRIBE;
+
+/**
+ * Decodes any of the fourteen Control Packets, for both client and server use.
+ * <p>
+ * The fixed header is read once, here, and handed to the constructor of the
+ * message type it names; the message classes never parse it again.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTDecoder {
+
+  private MQTTDecoder() {
+    // Only static methods
+  }
+
+  /**
+   * Decode one message starting at the current position of the buffer. On
+   * success the buffer is positioned after the message, if the buffer doesn't
+   * hold a complete message it is left untouched.
+   *
+   * @param in the buffer to read from
+   * @return the message, or null if the message isn't complete
+   * @throws MQTTException if the message is malformed
+   */
+  public static MQTTMessage decode(ByteBuffer in) throws MQTTException {
+    int start = in.position();
+    if (in.limit() - start < 2)
+      return null;
+
+    byte fixed = in.get(start);
+
+    // Remaining length
+    int i = start + 1;
+    int multiplier = 1;
+    int remainingLength = 0;
+    byte digit = 0;
+    do {
+      if (i - start > 4)
+        throw new MQTTException("Malformed remaining length");
+      if (i >= in.limit())
+        return null;
+
+      digit = in.get(i++);
+      remainingLength += (digit & 127) * multiplier;
+      multiplier *= 128;
+    } while ((digit & 128) != 0);
+
+    if (in.limit() - i < remainingLength)
+      return null;
+
+    byte type = (byte) ((fixed >> 4) & 0x0F);
+    validateFlags(type, (byte) (fixed & 0x0F));
+
+    // Keep the message from reading past its own end
+    int limit = in.limit();
+    in.limit(i + remainingLength);
+    in.position(i);
+    try {
+      return create(type, fixed, remainingLength, in);
+    } catch (RuntimeException e) {
+      throw new MQTTException("Malformed " + MQTTHelper.decodePackageName(type), e);
+    } finally {
+      in.limit(limit);
+      in.position(i + remainingLength);
+    }
+  }
+
+  /**
+   * Decode one complete message of a known type, for the fromBuffer
+   * factories of the messages.
+   *
+   * @param in       the buffer to read from
+   * @param expected the type of the message
+   * @return the message
+   * @throws MQTTException if the message is malformed, incomplete or of
+   *                       another type
+   */
+  static MQTTMessage decode(ByteBuffer in, byte expected) throws MQTTException {
+    if (in.hasRemaining()) {
+      byte type = (byte) ((in.get(in.position()) >> 4) & 0x0F);
+      if (type != expected)
+        throw new MQTTException("Expected " + MQTTHelper.decodePackageName(expected) + ", got "
+            + MQTTHelper.decodePackageName(type));
+    }
+
+    MQTTMessage message = decode(in);
+    if (message == null)
+      throw new MQTTException("Incomplete " + MQTTHelper.decodePackageName(expected));
+    return message;
+  }
+
+  private static MQTTMessage create(byte type, byte fixed, int remainingLength, ByteBuffer in) throws MQTTException {
+    switch (type) {
+    case CONNECT:
+      return new MQTTConnect(fixed, remainingLength, in);
+    case CONNACK:
+      return new MQTTConnack(fixed, remainingLength, in);
+    case PUBLISH:
+      return new MQTTPublish(fixed, remainingLength, in);
+    case PUBACK:
+      return new MQTTPuback(fixed, remainingLength, in);
+    case PUBREC:
+      return new MQTTPubrec(fixed, remainingLength, in);
+    case PUBREL:
+      return new MQTTPubrel(fixed, remainingLength, in);
+    case PUBCOMP:
+      return new MQTTPubcomp(fixed, remainingLength, in);
+    case SUBSCRIBE:
+      return new MQTTSubscribe(fixed, remainingLength, in);
+    case SUBACK:
+      return new MQTTSuback(fixed, remainingLength, in);
+    case UNSUBSCRIBE:
+      return new MQTTUnsubscribe(fixed, remainingLength, in);
+    case UNSUBACK:
+      return new MQTTUnsuback(fixed, remainingLength, in);
+    case PINGREQ:
+      return new MQTTPingreq(fixed, remainingLength, in);
+    case PINGRESP:
+      return new MQTTPingresp(fixed, remainingLength, in);
+    case DISCONNECT:
+      return new MQTTDisconnect(fixed, remainingLength, in);
+    default:
+      throw new MQTTException("Unknown message type " + type);
+    }
+  }
+
+  /**
+   * The reserved flag bits MUST be set to the values given by the
+   * specification [MQTT-2.2.2-1], and a PUBLISH MUST NOT have both QoS bits
+   * set [MQTT-3.3.1-4].
+   */
+  private static void validateFlags(byte type, byte flags) throws MQTTException {
+    switch (type) {
+    case PUBLISH:
+      if (((flags >> 1) & 0x03) == 0x03)
+        throw new MQTTException("Invalid QoS in PUBLISH");
+      break;
+    case PUBREL:
+    case SUBSCRIBE:
+    case UNSUBSCRIBE:
+      if (flags != 0x02)
+        throw new MQTTException("Invalid flags in " + MQTTHelper.decodePackageName(type));
+      break;
+    default:
+      if (flags != 0x00)
+        throw new MQTTException("Invalid flags in " + MQTTHelper.decodePackageName(type));
+      break;
+    }
+  }
+
+}
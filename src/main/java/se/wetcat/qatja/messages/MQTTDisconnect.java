@@ -16,8 +16,7 @@ package se.wetcat.qatja.messages;
  * limitations under the License.
  */
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import se.wetcat.qatja.MQTTException;
 
@@ -37,6 +36,22 @@ public class MQTTDisconnect extends MQTTMessage {
     return new MQTTDisconnect();
   }
 
+  public static MQTTDisconnect fromBuffer(byte[] buffer) throws MQTTException {
+    return fromBuffer(ByteBuffer.wrap(buffer));
+  }
+
+  /**
+   * Decode a complete {@link se.wetcat.qatja.MQTTConstants#DISCONNECT} frame, see
+   * {@link MQTTDecoder#decode(ByteBuffer)}
+   *
+   * @param buffer the frame, positioned at the fixed header
+   * @return the message
+   * @throws MQTTException if the frame is malformed, incomplete or of another type
+   */
+  public static MQTTDisconnect fromBuffer(ByteBuffer buffer) throws MQTTException {
+    return (MQTTDisconnect) MQTTDecoder.decode(buffer, DISCONNECT);
+  }
+
   /**
    * Construct a {@link se.wetcat.qatja.MQTTConstants#DISCONNECT} message
    */
@@ -44,40 +59,42 @@ public class MQTTDisconnect extends MQTTMessage {
     this.setType(DISCONNECT);
   }
 
-  @Override
-  protected byte[] generateFixedHeader() throws MQTTException, IOException {
-    // FIXED HEADER
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
+  /**
+   * Construct a {@link se.wetcat.qatja.MQTTConstants#DISCONNECT} message from a buffer, the fixed
+   * header has already been read
+   *
+   * @param fixed           The first byte of the fixed header
+   * @param remainingLength The remaining length (always 0 for DISCONNECT)
+   * @param buffer          The buffer, positioned after the fixed header
+   */
+  MQTTDisconnect(byte fixed, int remainingLength, ByteBuffer buffer) {
+    // Type (just for clarity sake we'll set it...)
+    this.setType((byte) ((fixed >> 4) & 0x0F));
 
-    // Type
-    out.write((byte) (type << 4));
+    // Remaining length
+    this.setRemainingLength(remainingLength);
+  }
 
-    // Flags (none for PING)
+  @Override
+  protected int variableHeaderLength() throws MQTTException {
+    // No variable header for DISCONNECT
+    return 0;
+  }
 
-    // Remaining length
-    int length = variableHeader.length + payload.length;
-    this.setRemainingLength(length);
-    do {
-      byte digit = (byte) (length % 128);
-      length /= 128;
-      if (length > 0)
-        digit = (byte) (digit | 0x80);
-      out.write(digit);
-    } while (length > 0);
-
-    return out.toByteArray();
+  @Override
+  protected int payloadLength() throws MQTTException {
+    // No payload for DISCONNECT
+    return 0;
   }
 
   @Override
-  protected byte[] generateVariableHeader() throws MQTTException, IOException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    return out.toByteArray();
+  protected void writeVariableHeader(ByteBuffer out) throws MQTTException {
+    // No variable header for DISCONNECT
   }
 
   @Override
-  protected byte[] generatePayload() throws MQTTException, IOException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    return out.toByteArray();
+  protected void writePayload(ByteBuffer out) throws MQTTException {
+    // No payload for DISCONNECT
   }
 
 }
@@ -0,0 +1,223 @@
+package se.wetcat.qatja.messages;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+
+import se.wetcat.qatja.MQTTException;
+
+import static se.wetcat.qatja.MQTTConstants.MAX_REMAINING_LENGTH;
+
+/**
+ * Incremental decoder that turns a stream of bytes, read in arbitrary chunks,
+ * into complete messages.
+ * <p>
+ * Frames that are complete within the buffer handed to
+ * {@link #decode(ByteBuffer)} are decoded in place, only frames that are split
+ * across reads are collected in an internal buffer until they are complete.
+ * A decoder holds the state of one stream and is not thread safe.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTFrameDecoder {
+
+  /**
+   * Largest possible frame, one type byte, four length bytes and the maximum
+   * remaining length
+   */
+  public static final int MAX_FRAME_SIZE = 1 + 4 + MAX_REMAINING_LENGTH;
+
+  private static final int DEFAULT_READ_BUFFER_SIZE = 8192;
+
+  private static final int INITIAL_PENDING_SIZE = 256;
+
+  /**
+   * Largest partial frame buffer kept once its frame is decoded, a larger
+   * one is dropped so an idle connection doesn't hold on to it
+   */
+  private static final int RETAINED_PENDING_SIZE = 1024;
+
+  private final int maxFrameSize;
+  private final int readBufferSize;
+
+  /**
+   * Partial frame collected across reads, in write mode
+   */
+  private ByteBuffer pending;
+
+  /**
+   * Size of the partial frame, -1 until its fixed header is complete
+   */
+  private int pendingFrameSize = -1;
+
+  private ByteBuffer readBuffer;
+
+  public MQTTFrameDecoder() {
+    this(MAX_FRAME_SIZE, DEFAULT_READ_BUFFER_SIZE);
+  }
+
+  /**
+   * @param maxFrameSize   frames larger than this are rejected before they
+   *                       are buffered
+   * @param readBufferSize size of the direct buffer used by
+   *                       {@link #read(ReadableByteChannel, List)}
+   */
+  public MQTTFrameDecoder(int maxFrameSize, int readBufferSize) {
+    this.maxFrameSize = maxFrameSize;
+    this.readBufferSize = readBufferSize;
+  }
+
+  /**
+   * Decode the next message from the buffer. The buffer is consumed up to the
+   * end of the decoded message, or completely if it only holds part of a
+   * message, in which case the part is kept until the rest arrives.
+   *
+   * @param in the bytes read from the stream
+   * @return the next message, or null if more bytes are needed
+   * @throws MQTTException if the stream holds a malformed or too large message
+   */
+  public MQTTMessage decode(ByteBuffer in) throws MQTTException {
+    if (pending == null || pending.position() == 0) {
+      int frameSize = frameSize(in, in.position(), in.limit());
+
+      if (frameSize >= 0 && in.remaining() >= frameSize) {
+        // Complete frame, decode it where it is
+        return MQTTDecoder.decode(in);
+      }
+    }
+
+    return decodePartial(in);
+  }
+
+  /**
+   * Read once from the channel and decode every complete message that is
+   * available.
+   *
+   * @param channel the channel to read from
+   * @param out     decoded messages are added to this list
+   * @return the number of bytes read, -1 at end of stream
+   */
+  public int read(ReadableByteChannel channel, List<MQTTMessage> out) throws IOException, MQTTException {
+    if (readBuffer == null)
+      readBuffer = ByteBuffer.allocateDirect(readBufferSize);
+
+    int read = channel.read(readBuffer);
+
+    readBuffer.flip();
+    try {
+      MQTTMessage message;
+      while ((message = decode(readBuffer)) != null) {
+        out.add(message);
+      }
+    } finally {
+      readBuffer.clear();
+    }
+
+    return read;
+  }
+
+  /**
+   * Drop any partial message, for instance when the connection is reset
+   */
+  public void reset() {
+    pending = null;
+    pendingFrameSize = -1;
+  }
+
+  /**
+   * @return true if part of a message is waiting for more bytes
+   */
+  public boolean hasPartialFrame() {
+    return pending != null && pending.position() > 0;
+  }
+
+  private MQTTMessage decodePartial(ByteBuffer in) throws MQTTException {
+    if (pending == null)
+      pending = ByteBuffer.allocate(INITIAL_PENDING_SIZE);
+
+    // The fixed header is at most five bytes, collect it first
+    while (pendingFrameSize < 0) {
+      if (!in.hasRemaining())
+        return null;
+
+      pending.put(in.get());
+      pendingFrameSize = frameSize(pending, 0, pending.position());
+    }
+
+    if (pending.capacity() < pendingFrameSize) {
+      ByteBuffer grown = ByteBuffer.allocate(Math.max(pendingFrameSize, Math.min(pending.capacity() * 2, maxFrameSize)));
+      pending.flip();
+      grown.put(pending);
+      pending = grown;
+    }
+
+    int count = Math.min(in.remaining(), pendingFrameSize - pending.position());
+    ByteBuffer chunk = in.duplicate();
+    chunk.limit(in.position() + count);
+    pending.put(chunk);
+    in.position(in.position() + count);
+
+    if (pending.position() < pendingFrameSize)
+      return null;
+
+    pending.flip();
+    try {
+      return MQTTDecoder.decode(pending);
+    } finally {
+      if (pending.capacity() > RETAINED_PENDING_SIZE)
+        pending = null;
+      else
+        pending.clear();
+      pendingFrameSize = -1;
+    }
+  }
+
+  /**
+   * Size of the frame starting at start, without moving the position of the
+   * buffer
+   *
+   * @return the size of the frame, or -1 if the fixed header is incomplete
+   */
+  private int frameSize(ByteBuffer buffer, int start, int end) throws MQTTException {
+    int multiplier = 1;
+    int length = 0;
+
+    for (int i = start + 1; i < end; i++) {
+      byte digit = buffer.get(i);
+      length += (digit & 127) * multiplier;
+
+      if ((digit & 128) == 0) {
+        int frameSize = (i - start + 1) + length;
+        if (frameSize > maxFrameSize)
+          throw new MQTTException("Message too large, " + frameSize + " bytes");
+        return frameSize;
+      }
+
+      if (i - start == 4)
+        throw new MQTTException("Malformed remaining length");
+      multiplier *= 128;
+    }
+
+    return -1;
+  }
+
+}
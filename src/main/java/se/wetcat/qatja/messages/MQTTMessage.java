@@ -18,10 +18,13 @@ package se.wetcat.qatja.messages;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 import se.wetcat.qatja.MQTTException;
 import se.wetcat.qatja.MQTTHelper;
 
+import static se.wetcat.qatja.MQTTConstants.MAX_REMAINING_LENGTH;
 import static se.wetcat.qatja.MQTTVersion.NAME_311;
 import static se.wetcat.qatja.MQTTVersion.VERSION_311;
 
@@ -45,11 +48,85 @@ public abstract class MQTTMessage {
   protected byte type;
   protected int remainingLength;
 
-  protected abstract byte[] generateFixedHeader() throws MQTTException, IOException;
+  /**
+   * Largest frame kept for retransmissions, larger messages are encoded again
+   * or written with {@link #getBuffers()}
+   */
+  private static final int MAX_CACHED_FRAME = 4096;
+
+  /**
+   * The encoded message, kept when a message that can be retransmitted is
+   * encoded a second time so that later retransmissions don't encode it
+   * again. A payload changed in place, rather than through a setter, is not
+   * noticed.
+   */
+  private byte[] frame;
+
+  /**
+   * True once the message has been encoded
+   */
+  private boolean encoded;
+
+  /**
+   * @return The number of bytes {@link #writeVariableHeader(ByteBuffer)} will write
+   */
+  protected abstract int variableHeaderLength() throws MQTTException;
+
+  /**
+   * @return The number of bytes {@link #writePayload(ByteBuffer)} will write
+   */
+  protected abstract int payloadLength() throws MQTTException;
+
+  /**
+   * Write the variable header straight into the buffer
+   *
+   * @param out the buffer to write to
+   */
+  protected abstract void writeVariableHeader(ByteBuffer out) throws MQTTException;
+
+  /**
+   * Write the payload straight into the buffer
+   *
+   * @param out the buffer to write to
+   */
+  protected abstract void writePayload(ByteBuffer out) throws MQTTException;
 
-  protected abstract byte[] generateVariableHeader() throws MQTTException, IOException;
+  /**
+   * The payload for {@link #getBuffers()}. By default the payload is encoded
+   * into a new buffer, messages that already hold their payload as an array
+   * return it by reference instead.
+   *
+   * @return the payload, positioned at its first byte
+   */
+  protected ByteBuffer payloadBuffer() throws MQTTException {
+    ByteBuffer buffer = ByteBuffer.allocate(payloadLength());
+    writePayload(buffer);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Verify that the message can be encoded, called once before anything is
+   * written.
+   */
+  protected void validate() throws MQTTException {
+    // Nothing to validate by default
+  }
+
+  /**
+   * @return true if the message may be sent again with the same package
+   * identifier, and is worth keeping encoded
+   */
+  protected boolean isRetransmittable() {
+    return false;
+  }
 
-  protected abstract byte[] generatePayload() throws MQTTException, IOException;
+  /**
+   * @return The lower four bits of the first byte of the fixed header
+   */
+  protected byte fixedHeaderFlags() {
+    return 0x00;
+  }
 
   /**
    * @return The packageIdentifier
@@ -63,6 +140,7 @@ public abstract class MQTTMessage {
    */
   public void setPackageIdentifier(int packageIdentifier) {
     this.packageIdentifier = packageIdentifier;
+    invalidate();
   }
 
   /**
@@ -105,6 +183,7 @@ public abstract class MQTTMessage {
    */
   public void setPayload(byte[] payload) {
     this.payload = payload;
+    invalidate();
   }
 
   /**
@@ -119,6 +198,7 @@ public abstract class MQTTMessage {
    */
   public void setType(byte type) {
     this.type = type;
+    invalidate();
   }
 
   /**
@@ -135,6 +215,23 @@ public abstract class MQTTMessage {
     this.remainingLength = remainingLength;
   }
 
+  /**
+   * Drop the cached frame, every setter that changes the encoded message MUST
+   * call this.
+   */
+  protected void invalidate() {
+    frame = null;
+  }
+
+  /**
+   * Rewrite the first byte of the cached frame after a change of
+   * {@link #fixedHeaderFlags()}, which never changes the size of the message.
+   */
+  protected void updateFixedHeaderFlags() {
+    if (frame != null)
+      frame[0] = (byte) ((type << 4) | (fixedHeaderFlags() & 0x0F));
+  }
+
   protected byte[] getProtocol() throws IOException {
     ByteArrayOutputStream out = new ByteArrayOutputStream();
 
@@ -149,18 +246,174 @@ public abstract class MQTTMessage {
     return out.toByteArray();
   }
 
+  /**
+   * Encode the message, compatibility wrapper around {@link #writeTo(ByteBuffer)}.
+   * Always returns a new array, retransmit with {@link #writeTo(ByteBuffer)}
+   * to copy a kept frame without allocating.
+   *
+   * @return the encoded message
+   */
   public byte[] get() throws IOException, MQTTException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    if (frame != null)
+      return frame.clone();
 
-    this.payload = generatePayload();
-    this.variableHeader = generateVariableHeader();
-    this.fixedHeader = generateFixedHeader();
+    validate();
 
-    out.write(fixedHeader);
-    out.write(variableHeader);
-    out.write(payload);
+    int length = remainingLength();
+    byte[] buffer = new byte[1 + MQTTHelper.remainingLengthSize(length) + length];
+    encode(ByteBuffer.wrap(buffer), length);
 
-    return out.toByteArray();
+    if (keepFrame(buffer.length))
+      frame = buffer.clone();
+
+    return buffer;
+  }
+
+  /**
+   * Encode the message straight into a heap or direct buffer in one pass,
+   * starting at the current position of the buffer. Nothing is written if the
+   * buffer doesn't have room for the whole message.
+   *
+   * @param out the buffer to write to
+   * @return the number of bytes written
+   * @throws MQTTException           if the message is invalid
+   * @throws BufferOverflowException if the message doesn't fit in the buffer
+   */
+  public int writeTo(ByteBuffer out) throws MQTTException {
+    if (frame != null) {
+      // Retransmission, nothing to validate or encode
+      out.put(frame);
+      return frame.length;
+    }
+
+    validate();
+
+    int length = remainingLength();
+    if (out.remaining() < 1 + MQTTHelper.remainingLengthSize(length) + length)
+      throw new BufferOverflowException();
+
+    int start = out.position();
+    int written = encode(out, length);
+
+    if (keepFrame(written)) {
+      ByteBuffer encoded = out.duplicate();
+      encoded.position(start);
+      frame = new byte[written];
+      encoded.get(frame);
+    }
+
+    return written;
+  }
+
+  /**
+   * Encode the message as {fixed header, variable header, payload}, for a
+   * {@link java.nio.channels.GatheringByteChannel}. Only the headers are
+   * encoded into new memory, the payload buffer shares its content with the
+   * payload of the message, which must not change until the buffers have been
+   * written.
+   *
+   * @return the three parts of the message, each positioned at its first byte
+   * @throws MQTTException if the message is invalid
+   */
+  public ByteBuffer[] getBuffers() throws MQTTException {
+    validate();
+
+    int length = remainingLength();
+    int fixedHeaderLength = 1 + MQTTHelper.remainingLengthSize(length);
+    int variableHeaderLength = variableHeaderLength();
+
+    // Both headers share one small array
+    ByteBuffer header = ByteBuffer.allocate(fixedHeaderLength + variableHeaderLength);
+    header.put((byte) ((type << 4) | (fixedHeaderFlags() & 0x0F)));
+    MQTTHelper.writeRemainingLength(header, length);
+    writeVariableHeader(header);
+    this.setRemainingLength(length);
+
+    encoded = true;
+
+    header.flip();
+    header.limit(fixedHeaderLength);
+    ByteBuffer fixed = header.slice();
+    header.limit(fixedHeaderLength + variableHeaderLength);
+    header.position(fixedHeaderLength);
+    ByteBuffer variable = header.slice();
+
+    return new ByteBuffer[]{fixed, variable, payloadBuffer()};
+  }
+
+  /**
+   * The remaining length the message will be encoded with, computed from its
+   * fields without encoding anything.
+   *
+   * @return the size of the variable header and payload
+   * @throws MQTTException if the message is too large to be encoded
+   */
+  public int remainingLength() throws MQTTException {
+    int length = variableHeaderLength() + payloadLength();
+    if (length > MAX_REMAINING_LENGTH)
+      throw new MQTTException("Message too large, remaining length " + length);
+    return length;
+  }
+
+  /**
+   * The exact number of bytes {@link #get()} or {@link #writeTo(ByteBuffer)}
+   * will produce, computed from its fields without encoding anything.
+   *
+   * @return the size of the encoded message, fixed header included
+   * @throws MQTTException if the message is too large to be encoded
+   */
+  public int encodedSize() throws MQTTException {
+    int length = remainingLength();
+    return 1 + MQTTHelper.remainingLengthSize(length) + length;
+  }
+
+  /**
+   * Verify that the message can be encoded, without encoding anything, so an
+   * invalid message can be refused before it is queued.
+   *
+   * @return the size of the encoded message, see {@link #encodedSize()}
+   * @throws MQTTException if the message is invalid or too large
+   */
+  public int verify() throws MQTTException {
+    validate();
+    return encodedSize();
+  }
+
+  /**
+   * Verify that the encoded message is no larger than maxPacketSize, before
+   * any encoding work is done.
+   *
+   * @param maxPacketSize the largest packet allowed, fixed header included
+   * @throws MQTTException if the message is too large
+   */
+  public void checkSize(int maxPacketSize) throws MQTTException {
+    int size = encodedSize();
+    if (size > maxPacketSize)
+      throw new MQTTException("Message too large, " + size + " bytes, max " + maxPacketSize);
+  }
+
+  /**
+   * A frame is kept from the second encode on, the first retransmission, and
+   * only for small messages that can be retransmitted
+   */
+  private boolean keepFrame(int size) {
+    boolean again = encoded;
+    encoded = true;
+    return again && size <= MAX_CACHED_FRAME && packageIdentifier != 0 && isRetransmittable();
+  }
+
+  private int encode(ByteBuffer out, int length) throws MQTTException {
+    int start = out.position();
+
+    // Fixed header
+    out.put((byte) ((type << 4) | (fixedHeaderFlags() & 0x0F)));
+    MQTTHelper.writeRemainingLength(out, length);
+    this.setRemainingLength(length);
+
+    writeVariableHeader(out);
+    writePayload(out);
+
+    return out.position() - start;
   }
 
   @Override
@@ -16,8 +16,7 @@ package se.wetcat.qatja.messages;
  * limitations under the License.
  */
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import se.wetcat.qatja.MQTTException;
 
@@ -37,10 +36,40 @@ import static se.wetcat.qatja.MQTTConstants.PINGREQ;
  */
 public class MQTTPingreq extends MQTTMessage {
 
+  /**
+   * The encoded PINGREQ, it is the same for every connection
+   */
+  private static final ByteBuffer FRAME = ByteBuffer.wrap(new byte[]{(byte) (PINGREQ << 4), 0}).asReadOnlyBuffer();
+
   public static MQTTPingreq newInstance() {
     return new MQTTPingreq();
   }
 
+  /**
+   * The encoded PINGREQ, without building a message
+   *
+   * @return a read only view of the one frame shared by every caller
+   */
+  public static ByteBuffer frame() {
+    return FRAME.duplicate();
+  }
+
+  public static MQTTPingreq fromBuffer(byte[] buffer) throws MQTTException {
+    return fromBuffer(ByteBuffer.wrap(buffer));
+  }
+
+  /**
+   * Decode a complete {@link se.wetcat.qatja.MQTTConstants#PINGREQ} frame, see
+   * {@link MQTTDecoder#decode(ByteBuffer)}
+   *
+   * @param buffer the frame, positioned at the fixed header
+   * @return the message
+   * @throws MQTTException if the frame is malformed, incomplete or of another type
+   */
+  public static MQTTPingreq fromBuffer(ByteBuffer buffer) throws MQTTException {
+    return (MQTTPingreq) MQTTDecoder.decode(buffer, PINGREQ);
+  }
+
   /**
    * Construct a {@link se.wetcat.qatja.MQTTConstants#PINGREQ} message
    */
@@ -48,41 +77,42 @@ public class MQTTPingreq extends MQTTMessage {
     this.setType(PINGREQ);
   }
 
-  @Override
-  protected byte[] generateFixedHeader() throws MQTTException, IOException {
-    // FIXED HEADER
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
+  /**
+   * Construct a {@link se.wetcat.qatja.MQTTConstants#PINGREQ} message from a buffer, the fixed
+   * header has already been read
+   *
+   * @param fixed           The first byte of the fixed header
+   * @param remainingLength The remaining length (always 0 for PINGREQ)
+   * @param buffer          The buffer, positioned after the fixed header
+   */
+  MQTTPingreq(byte fixed, int remainingLength, ByteBuffer buffer) {
+    // Type (just for clarity sake we'll set it...)
+    this.setType((byte) ((fixed >> 4) & 0x0F));
 
-    // Type
-    byte fixed = (byte) (type << 4);
-    out.write(fixed);
+    // Remaining length
+    this.setRemainingLength(remainingLength);
+  }
 
-    // Flags (none for PINGREQ)
+  @Override
+  protected int variableHeaderLength() throws MQTTException {
+    // No variable header for PINGREQ
+    return 0;
+  }
 
-    // Remaining length
-    int length = getVariableHeader().length + getPayload().length;
-    this.setRemainingLength(length);
-    do {
-      byte digit = (byte) (length % 128);
-      length /= 128;
-      if (length > 0)
-        digit = (byte) (digit | 0x80);
-      out.write(digit);
-    } while (length > 0);
-
-    return out.toByteArray();
+  @Override
+  protected int payloadLength() throws MQTTException {
+    // No payload for PINGREQ
+    return 0;
   }
 
   @Override
-  protected byte[] generateVariableHeader() throws MQTTException, IOException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    return out.toByteArray();
+  protected void writeVariableHeader(ByteBuffer out) throws MQTTException {
+    // No variable header for PINGREQ
   }
 
   @Override
-  protected byte[] generatePayload() throws MQTTException, IOException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    return out.toByteArray();
+  protected void writePayload(ByteBuffer out) throws MQTTException {
+    // No payload for PINGREQ
   }
 
 }
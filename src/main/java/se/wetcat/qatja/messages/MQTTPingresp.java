@@ -16,10 +16,12 @@ package se.wetcat.qatja.messages;
  * limitations under the License.
  */
 
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import se.wetcat.qatja.MQTTException;
 
+import static se.wetcat.qatja.MQTTConstants.PINGRESP;
+
 /**
  * A {@link se.wetcat.qatja.MQTTConstants#PINGRESP} Packet is sent by the Server to the Client in
  * response to a {@link se.wetcat.qatja.MQTTConstants#PINGREQ} Packet. It indicates that the Server
@@ -31,23 +33,47 @@ import se.wetcat.qatja.MQTTException;
  */
 public class MQTTPingresp extends MQTTMessage {
 
-  public static MQTTPingresp fromBuffer(byte[] buffer) {
-    return new MQTTPingresp(buffer);
+  public static MQTTPingresp newInstance() {
+    return new MQTTPingresp();
+  }
+
+  public static MQTTPingresp fromBuffer(byte[] buffer) throws MQTTException {
+    return fromBuffer(ByteBuffer.wrap(buffer));
   }
 
   /**
-   * Construct a {@link se.wetcat.qatja.MQTTConstants#PINGRESP} message from a buffer
+   * Decode a complete {@link se.wetcat.qatja.MQTTConstants#PINGRESP} frame, see
+   * {@link MQTTDecoder#decode(ByteBuffer)}
    *
-   * @param buffer The buffer
+   * @param buffer the frame, positioned at the fixed header
+   * @return the message
+   * @throws MQTTException if the frame is malformed, incomplete or of another type
+   */
+  public static MQTTPingresp fromBuffer(ByteBuffer buffer) throws MQTTException {
+    return (MQTTPingresp) MQTTDecoder.decode(buffer, PINGRESP);
+  }
+
+  /**
+   * Construct a {@link se.wetcat.qatja.MQTTConstants#PINGRESP} message
    */
-  private MQTTPingresp(byte[] buffer) {
+  private MQTTPingresp() {
+    this.setType(PINGRESP);
+  }
 
-    int i = 0;
+  /**
+   * Construct a {@link se.wetcat.qatja.MQTTConstants#PINGRESP} message from a buffer, the fixed
+   * header has already been read
+   *
+   * @param fixed           The first byte of the fixed header
+   * @param remainingLength The remaining length
+   * @param buffer          The buffer, positioned at the variable header
+   */
+  MQTTPingresp(byte fixed, int remainingLength, ByteBuffer buffer) {
     // Type (just for clarity sake we'll read it...)
-    this.setType((byte) ((buffer[i++] >> 4) & 0x0F));
+    this.setType((byte) ((fixed >> 4) & 0x0F));
 
-    // Remaining length
-    this.setRemainingLength(0);
+    // Remaining length (always 0 for PINGRESP)
+    this.setRemainingLength(remainingLength);
 
     // No variable header
     setVariableHeader(null);
@@ -57,21 +83,25 @@ public class MQTTPingresp extends MQTTMessage {
   }
 
   @Override
-  protected byte[] generateFixedHeader() throws MQTTException, IOException {
-    // Client doesn't create the PINGRESP
-    return null;
+  protected int variableHeaderLength() throws MQTTException {
+    // No variable header for PINGRESP
+    return 0;
+  }
+
+  @Override
+  protected int payloadLength() throws MQTTException {
+    // No payload for PINGRESP
+    return 0;
   }
 
   @Override
-  protected byte[] generateVariableHeader() throws MQTTException, IOException {
-    // Client doesn't create the PINGRESP
-    return null;
+  protected void writeVariableHeader(ByteBuffer out) throws MQTTException {
+    // No variable header for PINGRESP
   }
 
   @Override
-  protected byte[] generatePayload() throws MQTTException, IOException {
-    // Client doesn't create the PINGRESP
-    return null;
+  protected void writePayload(ByteBuffer out) throws MQTTException {
+    // No payload for PINGRESP
   }
 
 }
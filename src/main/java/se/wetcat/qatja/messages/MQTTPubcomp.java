@@ -16,8 +16,7 @@ package se.wetcat.qatja.messages;
  * limitations under the License.
  */
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import se.wetcat.qatja.MQTTConstants;
 import se.wetcat.qatja.MQTTException;
@@ -38,8 +37,20 @@ public class MQTTPubcomp extends MQTTMessage {
     return new MQTTPubcomp(packageIdentifier);
   }
 
-  public static MQTTPubcomp fromBuffer(byte[] buffer) {
-    return new MQTTPubcomp(buffer);
+  public static MQTTPubcomp fromBuffer(byte[] buffer) throws MQTTException {
+    return fromBuffer(ByteBuffer.wrap(buffer));
+  }
+
+  /**
+   * Decode a complete {@link se.wetcat.qatja.MQTTConstants#PUBCOMP} frame, see
+   * {@link MQTTDecoder#decode(ByteBuffer)}
+   *
+   * @param buffer the frame, positioned at the fixed header
+   * @return the message
+   * @throws MQTTException if the frame is malformed, incomplete or of another type
+   */
+  public static MQTTPubcomp fromBuffer(ByteBuffer buffer) throws MQTTException {
+    return (MQTTPubcomp) MQTTDecoder.decode(buffer, MQTTConstants.PUBCOMP);
   }
 
   private MQTTPubcomp(int packageIdentifier) {
@@ -48,83 +59,53 @@ public class MQTTPubcomp extends MQTTMessage {
   }
 
   /**
-   * Construct a {@link se.wetcat.qatja.MQTTConstants#PUBCOMP} message from a byte array
+   * Construct a {@link se.wetcat.qatja.MQTTConstants#PUBCOMP} message from a buffer, the fixed
+   * header has already been read
    *
-   * @param buffer The byte array
+   * @param fixed           The first byte of the fixed header
+   * @param remainingLength The remaining length
+   * @param buffer          The buffer, positioned at the variable header
    */
-  private MQTTPubcomp(byte[] buffer) {
-
-    // setBuffer(bufferIn, bufferLength);
-
-    int i = 0;
+  MQTTPubcomp(byte fixed, int remainingLength, ByteBuffer buffer) {
     // Type (just for clarity sake we'll set it...)
-    this.setType((byte) ((buffer[i++] >> 4) & 0x0F));
+    this.setType((byte) ((fixed >> 4) & 0x0F));
 
     // Remaining length
-    int multiplier = 1;
-    int len = 0;
-    byte digit = 0;
-    do {
-      digit = buffer[i++];
-      len += (digit & 127) * multiplier;
-      multiplier *= 128;
-    } while ((digit & 128) != 0);
-    this.setRemainingLength(len);
-
-    // No flags for PUBBCOMP
-
-    // Get variable header (always length 2 in PUBACK)
+    this.setRemainingLength(remainingLength);
+
+    // Get variable header (always length 2 in PUBCOMP)
     variableHeader = new byte[2];
-    System.arraycopy(buffer, i, variableHeader, 0, variableHeader.length);
+    buffer.get(variableHeader);
 
     // Get payload
     payload = new byte[remainingLength - variableHeader.length];
-    if (payload.length > 0)
-      System.arraycopy(buffer, i + variableHeader.length, payload, 0, remainingLength - variableHeader.length);
+    buffer.get(payload);
 
     // Get package identifier
-    packageIdentifier = (variableHeader[variableHeader.length - 2] >> 8 & 0xFF) | (variableHeader[variableHeader.length - 1] & 0xFF);
+    packageIdentifier = ((variableHeader[0] & 0xFF) << 8) | (variableHeader[1] & 0xFF);
   }
 
   @Override
-  protected byte[] generateFixedHeader() throws MQTTException, IOException {
-    // FIXED HEADER
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-    // Type and PUBACK flags, reserved bits MUST be [0,0,0,0]
-    byte fixed = (byte) ((type << 4) | (0x00 << 3) | (0x00 << 2) | (0x00 << 1) | (0x00) << 0);
-    out.write(fixed);
-
-    // Flags (none for PUBACK)
-
-    // Remaining length
-    int length = getVariableHeader().length + getPayload().length;
-    this.setRemainingLength(length);
-    do {
-      byte digit = (byte) (length % 128);
-      length /= 128;
-      if (length > 0)
-        digit = (byte) (digit | 0x80);
-      out.write(digit);
-    } while (length > 0);
-
-    return out.toByteArray();
+  protected int variableHeaderLength() throws MQTTException {
+    // Just the package identifier
+    return 2;
   }
 
   @Override
-  protected byte[] generateVariableHeader() throws MQTTException, IOException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-    out.write(MQTTHelper.MSB(packageIdentifier));
-    out.write(MQTTHelper.LSB(packageIdentifier));
+  protected int payloadLength() throws MQTTException {
+    // No payload for PUBCOMP
+    return 0;
+  }
 
-    return out.toByteArray();
+  @Override
+  protected void writeVariableHeader(ByteBuffer out) throws MQTTException {
+    out.put(MQTTHelper.MSB(packageIdentifier));
+    out.put(MQTTHelper.LSB(packageIdentifier));
   }
 
   @Override
-  protected byte[] generatePayload() throws MQTTException, IOException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    return out.toByteArray();
+  protected void writePayload(ByteBuffer out) throws MQTTException {
+    // No payload for PUBCOMP
   }
 
 }
@@ -16,8 +16,8 @@ package se.wetcat.qatja.messages;
  * limitations under the License.
  */
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import se.wetcat.qatja.MQTTException;
 import se.wetcat.qatja.MQTTHelper;
@@ -43,8 +43,25 @@ public class MQTTPublish extends MQTTMessage {
 
   private String topicName;
 
-  public static MQTTPublish fromBuffer(byte[] buffer) {
-    return new MQTTPublish(buffer);
+  /**
+   * Pre-encoded topic, null if the message was built from a topic name
+   */
+  private MQTTTopic topic;
+
+  public static MQTTPublish fromBuffer(byte[] buffer) throws MQTTException {
+    return fromBuffer(ByteBuffer.wrap(buffer));
+  }
+
+  /**
+   * Decode a complete {@link se.wetcat.qatja.MQTTConstants#PUBLISH} frame, see
+   * {@link MQTTDecoder#decode(ByteBuffer)}
+   *
+   * @param buffer the frame, positioned at the fixed header
+   * @return the message
+   * @throws MQTTException if the frame is malformed, incomplete or of another type
+   */
+  public static MQTTPublish fromBuffer(ByteBuffer buffer) throws MQTTException {
+    return (MQTTPublish) MQTTDecoder.decode(buffer, PUBLISH);
   }
 
   public static MQTTPublish newInstance(String topic, byte[] payload, int identifier) {
@@ -55,6 +72,22 @@ public class MQTTPublish extends MQTTMessage {
     return new MQTTPublish(topic, payload, QoS, identifier);
   }
 
+  /**
+   * Create a message to a pre-encoded topic, the topic isn't encoded or
+   * validated again when the message is.
+   *
+   * @param topic      the topic to publish to, see {@link MQTTTopicCache}
+   * @param payload    the message payload
+   * @param QoS        the quality of service for message
+   * @param identifier the package identifier, ignored for AT_MOST_ONCE
+   * @return the message
+   */
+  public static MQTTPublish newInstance(MQTTTopic topic, byte[] payload, byte QoS, int identifier) {
+    MQTTPublish message = new MQTTPublish(topic.getName(), payload, QoS, identifier);
+    message.topic = topic;
+    return message;
+  }
+
   /**
    * Construct a {@link se.wetcat.qatja.MQTTConstants#PUBLISH} message
    *
@@ -86,34 +119,27 @@ public class MQTTPublish extends MQTTMessage {
   }
 
   /**
-   * Construct a {@link se.wetcat.qatja.MQTTConstants#PUBLISH} message from a buffer
+   * Construct a {@link se.wetcat.qatja.MQTTConstants#PUBLISH} message from a buffer, the fixed
+   * header has already been read
    *
-   * @param buffer The buffer
+   * @param fixed           The first byte of the fixed header
+   * @param remainingLength The remaining length
+   * @param buffer          The buffer, positioned at the variable header
    */
-  private MQTTPublish(byte[] buffer) {
-    int i = 0;
-
+  MQTTPublish(byte fixed, int remainingLength, ByteBuffer buffer) {
     // Type (just for clarity sake we'll set it...)
-    this.retain = (buffer[i] >> 0 & 1) == 0x01 ? true : false;
-    this.QoS = (byte) ((buffer[i] & ((0x00 << 3) | (0x01 << 2) | (0x01 << 1) | (0x00 << 0))) >> 1);
-    this.dup = ((buffer[i] >> 3) & 1) == 1 ? true : false;
-    this.setType((byte) ((buffer[i++] >> 4) & 0x0F));
+    this.retain = (fixed & 0x01) == 0x01;
+    this.QoS = (byte) ((fixed >> 1) & 0x03);
+    this.dup = ((fixed >> 3) & 1) == 1;
+    this.setType((byte) ((fixed >> 4) & 0x0F));
 
     // Remaining length
-    int multiplier = 1;
-    int len = 0;
-    byte digit = 0;
-    do {
-      digit = buffer[i++];
-      len += (digit & 127) * multiplier;
-      multiplier *= 128;
-    } while ((digit & 128) != 0);
-    this.setRemainingLength(len);
-
-    len = (byte) ((buffer[i] >> 8 & 0xFF) | (buffer[i + 1] & 0xFF));
+    this.setRemainingLength(remainingLength);
 
-    // Get variable header (topic length + 2[topic len] + 2[pkg id])
+    // Length of the topic
+    int len = ((buffer.get(buffer.position()) & 0xFF) << 8) | (buffer.get(buffer.position() + 1) & 0xFF);
 
+    // Get variable header (topic length + 2[topic len] + 2[pkg id])
     switch (getQoS()) {
       case AT_MOST_ONCE:
         // No packageIdentifier
@@ -122,96 +148,83 @@ public class MQTTPublish extends MQTTMessage {
 
       case AT_LEAST_ONCE:
       case EXACTLY_ONCE:
+      default:
         // 2 byte packageIdentifier
         variableHeader = new byte[len + 2 + 2];
         break;
     }
-
-    System.arraycopy(buffer, i, variableHeader, 0, variableHeader.length);
-    i += variableHeader.length;
+    buffer.get(variableHeader);
 
     // Get topic
-    topicName = new String(variableHeader, 2, len);
+    topicName = new String(variableHeader, 2, len, StandardCharsets.UTF_8);
+
+    // Get package identifier
+    if (getQoS() > AT_MOST_ONCE)
+      packageIdentifier = ((variableHeader[len + 2] & 0xFF) << 8) | (variableHeader[len + 3] & 0xFF);
 
     // Get payload
     payload = new byte[remainingLength - variableHeader.length];
+    buffer.get(payload);
+  }
 
-    switch (getQoS()) {
-      case AT_MOST_ONCE:
-        // No packageIdentifier
-        break;
-
-      case AT_LEAST_ONCE:
-      case EXACTLY_ONCE:
-        // 2 byte packageIdentifier
-        packageIdentifier = (variableHeader[variableHeader.length - 1]) | (variableHeader[variableHeader.length - 2]);
-        break;
-    }
-
-    System.arraycopy(buffer, i, payload, 0, payload.length);
+  @Override
+  protected void validate() throws MQTTException {
+    // TOPIC, a pre-encoded topic has already been validated
+    if (topic == null)
+      MQTTTopic.validate(topicName);
+
+    // Package identifier MUST exist for AT_LEAST_ONCE and EXACTLY_ONCE
+    if (QoS > AT_MOST_ONCE && packageIdentifier == 0)
+      throw new MQTTException("Package identifier must not be 0");
   }
 
   @Override
-  protected byte[] generateFixedHeader() throws MQTTException, IOException {
-    // FIXED HEADER
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
+  protected boolean isRetransmittable() {
+    return QoS > AT_MOST_ONCE;
+  }
 
-    byte type = this.type;
+  @Override
+  protected byte fixedHeaderFlags() {
     byte dup = (byte) (this.dup ? 0x01 : 0x00);
-    byte QoS = this.QoS;
     byte retain = (byte) (this.retain ? 0x01 : 0x00);
 
-    // Type and PUBLISH flags
-    byte fixed = (byte) ((type << 4) | (dup << 3) | (QoS << 1) | (retain << 0));
-    out.write(fixed);
+    return (byte) ((dup << 3) | (QoS << 1) | (retain << 0));
+  }
 
-    // Flags (none for PUBLISH)
+  @Override
+  protected int variableHeaderLength() throws MQTTException {
+    // Topic, and the package identifier ONLY if QoS is above AT_MOST_ONCE
+    int topicLength = topic != null ? topic.getEncodedLength() : 2 + MQTTHelper.utf8Length(topicName);
+    return topicLength + (QoS > AT_MOST_ONCE ? 2 : 0);
+  }
 
-    // Remaining length
-    int length = getVariableHeader().length + getPayload().length;
-    this.setRemainingLength(length);
-    do {
-      byte digit = (byte) (length % 128);
-      length /= 128;
-      if (length > 0)
-        digit = (byte) (digit | 0x80);
-      out.write(digit);
-    } while (length > 0);
-
-    return out.toByteArray();
+  @Override
+  protected int payloadLength() throws MQTTException {
+    return payload == null ? 0 : payload.length;
   }
 
   @Override
-  protected byte[] generateVariableHeader() throws MQTTException, IOException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-    // TOPIC
-    // Topic MUST be UTF-8
-    if (MQTTHelper.isUTF8(topicName.getBytes("UTF-8")))
-      throw new MQTTException("Invalid topic encoding");
-    // Topic MUST NOT contain wildcards
-    if (MQTTHelper.hasWildcards(topicName))
-      throw new MQTTException("Invalid topic, may not contain wildcards");
-    out.write(MQTTHelper.MSB(topicName.length()));
-    out.write(MQTTHelper.LSB(topicName.length()));
-    out.write(topicName.getBytes("UTF-8"));
-
-    // Package identifier ONLY exists if QoS is above AT_MOST_ONCE
-    if (QoS > AT_MOST_ONCE) {
-      // Package identifier MUST exist for AT_LEAST_ONCE and EXACTLY_ONCE
-      if (packageIdentifier == 0)
-        throw new MQTTException("Package identifier must not be 0");
+  protected void writeVariableHeader(ByteBuffer out) throws MQTTException {
+    if (topic != null)
+      topic.writeTo(out);
+    else
+      MQTTHelper.writeUTF8(out, topicName);
 
-      out.write(MQTTHelper.MSB(packageIdentifier));
-      out.write(MQTTHelper.LSB(packageIdentifier));
+    if (QoS > AT_MOST_ONCE) {
+      out.put(MQTTHelper.MSB(packageIdentifier));
+      out.put(MQTTHelper.LSB(packageIdentifier));
     }
+  }
 
-    return out.toByteArray();
+  @Override
+  protected void writePayload(ByteBuffer out) throws MQTTException {
+    if (payload != null)
+      out.put(payload);
   }
 
   @Override
-  protected byte[] generatePayload() throws MQTTException, IOException {
-    return payload;
+  protected ByteBuffer payloadBuffer() throws MQTTException {
+    return payload == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(payload);
   }
 
   /**
@@ -219,6 +232,7 @@ public class MQTTPublish extends MQTTMessage {
    */
   public void setDup() {
     this.dup = true;
+    updateFixedHeaderFlags();
   }
 
   /**
@@ -247,6 +261,7 @@ public class MQTTPublish extends MQTTMessage {
    */
   public void setRetain(boolean retain) {
     this.retain = retain;
+    updateFixedHeaderFlags();
   }
 
   /**
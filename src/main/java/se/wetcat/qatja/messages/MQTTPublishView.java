@@ -0,0 +1,266 @@
+package se.wetcat.qatja.messages;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+import se.wetcat.qatja.MQTTException;
+import se.wetcat.qatja.MQTTHelper;
+
+import static se.wetcat.qatja.MQTTConstants.AT_MOST_ONCE;
+import static se.wetcat.qatja.MQTTConstants.PUBLISH;
+
+/**
+ * Reusable, read-only view of a {@link se.wetcat.qatja.MQTTConstants#PUBLISH}
+ * frame held in a {@link ByteBuffer}.
+ * <p>
+ * {@link #wrap(ByteBuffer)} only reads the fixed header, the topic length and
+ * the package identifier; the topic is exposed as a byte range of the buffer
+ * and the payload as a slice, nothing is copied or allocated until
+ * {@link #getTopicName()}, {@link #getPayload()} or {@link #toMessage()} is
+ * called. The view is only valid as long as the wrapped bytes are left
+ * unchanged, and is not thread safe.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTPublishView {
+
+  private ByteBuffer buffer;
+
+  private byte fixed;
+
+  private int frameStart;
+  private int frameLength;
+
+  private int topicOffset;
+  private int topicLength;
+
+  private int packageIdentifier;
+
+  private int payloadOffset;
+  private int payloadLength;
+
+  private String topicName;
+
+  /**
+   * Point this view at the PUBLISH frame starting at the current position of
+   * the buffer. The position and limit of the buffer are not changed, use
+   * {@link #getFrameLength()} to skip past the frame.
+   *
+   * @param frame the buffer holding a complete frame
+   * @return this view
+   * @throws MQTTException if the frame isn't a complete, well formed PUBLISH
+   */
+  public MQTTPublishView wrap(ByteBuffer frame) throws MQTTException {
+    int start = frame.position();
+    int end = frame.limit();
+    if (end - start < 2)
+      throw new MQTTException("Incomplete PUBLISH");
+
+    byte fixed = frame.get(start);
+    if (((fixed >> 4) & 0x0F) != PUBLISH)
+      throw new MQTTException("Not a PUBLISH, " + MQTTHelper.decodePackageName((byte) ((fixed >> 4) & 0x0F)));
+    if (((fixed >> 1) & 0x03) == 0x03)
+      throw new MQTTException("Invalid QoS in PUBLISH");
+
+    // Remaining length
+    int i = start + 1;
+    int multiplier = 1;
+    int remainingLength = 0;
+    byte digit;
+    do {
+      if (i - start > 4)
+        throw new MQTTException("Malformed remaining length");
+      if (i >= end)
+        throw new MQTTException("Incomplete PUBLISH");
+
+      digit = frame.get(i++);
+      remainingLength += (digit & 127) * multiplier;
+      multiplier *= 128;
+    } while ((digit & 128) != 0);
+
+    if (end - i < remainingLength)
+      throw new MQTTException("Incomplete PUBLISH");
+
+    // Topic, and the package identifier ONLY if QoS is above AT_MOST_ONCE
+    int variableHeaderLength = (((fixed >> 1) & 0x03) > AT_MOST_ONCE) ? 4 : 2;
+    if (remainingLength < variableHeaderLength)
+      throw new MQTTException("Malformed PUBLISH");
+
+    int topicLength = ((frame.get(i) & 0xFF) << 8) | (frame.get(i + 1) & 0xFF);
+    variableHeaderLength += topicLength;
+    if (remainingLength < variableHeaderLength)
+      throw new MQTTException("Malformed PUBLISH");
+
+    this.buffer = frame;
+    this.fixed = fixed;
+    this.frameStart = start;
+    this.frameLength = (i - start) + remainingLength;
+    this.topicOffset = i + 2;
+    this.topicLength = topicLength;
+    this.payloadOffset = i + variableHeaderLength;
+    this.payloadLength = remainingLength - variableHeaderLength;
+    this.topicName = null;
+
+    if (getQoS() > AT_MOST_ONCE) {
+      int id = topicOffset + topicLength;
+      this.packageIdentifier = ((frame.get(id) & 0xFF) << 8) | (frame.get(id + 1) & 0xFF);
+    } else {
+      this.packageIdentifier = 0;
+    }
+
+    return this;
+  }
+
+  /**
+   * @return The dup
+   */
+  public boolean isDup() {
+    return ((fixed >> 3) & 1) == 1;
+  }
+
+  /**
+   * @return The qoS
+   */
+  public byte getQoS() {
+    return (byte) ((fixed >> 1) & 0x03);
+  }
+
+  /**
+   * @return The retain
+   */
+  public boolean isRetain() {
+    return (fixed & 0x01) == 0x01;
+  }
+
+  /**
+   * @return The package identifier, 0 for AT_MOST_ONCE
+   */
+  public int getPackageIdentifier() {
+    return packageIdentifier;
+  }
+
+  /**
+   * @return The wrapped buffer
+   */
+  public ByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * @return The index of the first byte of the frame in the buffer
+   */
+  public int getFrameOffset() {
+    return frameStart;
+  }
+
+  /**
+   * @return The size of the frame, fixed header included
+   */
+  public int getFrameLength() {
+    return frameLength;
+  }
+
+  /**
+   * @return The index of the first topic byte in the buffer
+   */
+  public int getTopicOffset() {
+    return topicOffset;
+  }
+
+  /**
+   * @return The number of UTF-8 encoded topic bytes
+   */
+  public int getTopicLength() {
+    return topicLength;
+  }
+
+  /**
+   * Compare the topic to an encoded topic without decoding it.
+   *
+   * @param topic the UTF-8 encoded topic, without length prefix
+   * @return true if the topics are equal
+   */
+  public boolean topicEquals(byte[] topic) {
+    if (topic.length != topicLength)
+      return false;
+
+    for (int i = 0; i < topicLength; i++) {
+      if (buffer.get(topicOffset + i) != topic[i])
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * The topic, decoded on the first call.
+   *
+   * @return The topicName
+   */
+  public String getTopicName() {
+    if (topicName == null) {
+      ByteBuffer topic = buffer.duplicate();
+      topic.limit(topicOffset + topicLength);
+      topic.position(topicOffset - 2);
+      topicName = MQTTHelper.readUTF8(topic);
+    }
+
+    return topicName;
+  }
+
+  /**
+   * @return The index of the first payload byte in the buffer
+   */
+  public int getPayloadOffset() {
+    return payloadOffset;
+  }
+
+  /**
+   * @return The number of payload bytes
+   */
+  public int getPayloadLength() {
+    return payloadLength;
+  }
+
+  /**
+   * @return A read-only slice of the wrapped buffer holding the payload
+   */
+  public ByteBuffer getPayload() {
+    ByteBuffer payload = buffer.asReadOnlyBuffer();
+    payload.limit(payloadOffset + payloadLength);
+    payload.position(payloadOffset);
+    return payload.slice();
+  }
+
+  /**
+   * Copy the frame into a {@link MQTTPublish}, for messages that have to
+   * outlive the wrapped buffer.
+   *
+   * @return The message
+   * @throws MQTTException if the frame can't be decoded
+   */
+  public MQTTPublish toMessage() throws MQTTException {
+    ByteBuffer frame = buffer.duplicate();
+    frame.limit(frameStart + frameLength);
+    frame.position(frameStart);
+    return MQTTPublish.fromBuffer(frame);
+  }
+
+}
@@ -16,8 +16,7 @@ package se.wetcat.qatja.messages;
  * limitations under the License.
  */
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import se.wetcat.qatja.MQTTException;
 import se.wetcat.qatja.MQTTHelper;
@@ -39,8 +38,20 @@ public class MQTTPubrel extends MQTTMessage {
     return new MQTTPubrel(packageIdentifier);
   }
 
-  public static MQTTPubrel fromBuffer(byte[] buffer) {
-    return new MQTTPubrel(buffer);
+  public static MQTTPubrel fromBuffer(byte[] buffer) throws MQTTException {
+    return fromBuffer(ByteBuffer.wrap(buffer));
+  }
+
+  /**
+   * Decode a complete {@link se.wetcat.qatja.MQTTConstants#PUBREL} frame, see
+   * {@link MQTTDecoder#decode(ByteBuffer)}
+   *
+   * @param buffer the frame, positioned at the fixed header
+   * @return the message
+   * @throws MQTTException if the frame is malformed, incomplete or of another type
+   */
+  public static MQTTPubrel fromBuffer(ByteBuffer buffer) throws MQTTException {
+    return (MQTTPubrel) MQTTDecoder.decode(buffer, PUBREL);
   }
 
   /**
@@ -53,79 +64,65 @@ public class MQTTPubrel extends MQTTMessage {
     setPackageIdentifier(packageIdentifier);
   }
 
-  private MQTTPubrel(byte[] buffer) {
-
-    int i = 0;
-
+  /**
+   * Construct a {@link se.wetcat.qatja.MQTTConstants#PUBREL} message from a buffer, the fixed
+   * header has already been read
+   *
+   * @param fixed           The first byte of the fixed header
+   * @param remainingLength The remaining length
+   * @param buffer          The buffer, positioned at the variable header
+   */
+  MQTTPubrel(byte fixed, int remainingLength, ByteBuffer buffer) {
     // Type (just for clarity sake we'll set it...)
-    this.setType((byte) ((buffer[i++] >> 4) & 0x0F));
+    this.setType((byte) ((fixed >> 4) & 0x0F));
 
     // Remaining length
-    int multiplier = 1;
-    int len = 0;
-    byte digit = 0;
-    do {
-      digit = buffer[i++];
-      len += (digit & 127) * multiplier;
-      multiplier *= 128;
-    } while ((digit & 128) != 0);
-    this.setRemainingLength(len);
-
-    // Get variable header always 2 (just the pkg id) for PUBREL
-    variableHeader = new byte[2];
+    this.setRemainingLength(remainingLength);
 
-    // We have to step back two bytes since
-    System.arraycopy(buffer, i, variableHeader, 0, variableHeader.length);
+    // Get variable header (always length 2 in PUBREL)
+    variableHeader = new byte[2];
+    buffer.get(variableHeader);
 
     // Get payload
     payload = new byte[remainingLength - variableHeader.length];
+    buffer.get(payload);
 
-    if (payload.length > 0)
-      System.arraycopy(buffer, i, payload, 0, payload.length);
-
-    // Only get package identifier if the QoS is above AT_MOST_ONCE
-    packageIdentifier = (variableHeader[variableHeader.length - 1]) | (variableHeader[variableHeader.length - 2]);
+    // Get package identifier
+    packageIdentifier = ((variableHeader[0] & 0xFF) << 8) | (variableHeader[1] & 0xFF);
   }
 
   @Override
-  protected byte[] generateFixedHeader() throws MQTTException, IOException {
-    // FIXED HEADER
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-    // Type and PUBLISH flags (The last four bits MUST be [0 0 1 0])
-    byte fixed = (byte) ((type << 4) | (0x00 << 3) | (0x00 << 2) | (0x01 << 1) | (0x00 << 0));
-    out.write(fixed);
-
-    // Flags (none for PUBREL)
+  protected boolean isRetransmittable() {
+    return true;
+  }
 
-    // Remaining length
-    int length = getVariableHeader().length + getPayload().length;
-    this.setRemainingLength(length);
-    do {
-      byte digit = (byte) (length % 128);
-      length /= 128;
-      if (length > 0)
-        digit = (byte) (digit | 0x80);
-      out.write(digit);
-    } while (length > 0);
-
-    return out.toByteArray();
+  @Override
+  protected byte fixedHeaderFlags() {
+    // The reserved bits of PUBREL MUST be [0 0 1 0]
+    return 0x02;
   }
 
   @Override
-  protected byte[] generateVariableHeader() throws MQTTException, IOException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
+  protected int variableHeaderLength() throws MQTTException {
+    // Just the package identifier
+    return 2;
+  }
 
-    out.write(MQTTHelper.MSB(getPackageIdentifier()));
-    out.write(MQTTHelper.LSB(getPackageIdentifier()));
+  @Override
+  protected int payloadLength() throws MQTTException {
+    // No payload for PUBREL
+    return 0;
+  }
 
-    return out.toByteArray();
+  @Override
+  protected void writeVariableHeader(ByteBuffer out) throws MQTTException {
+    out.put(MQTTHelper.MSB(packageIdentifier));
+    out.put(MQTTHelper.LSB(packageIdentifier));
   }
 
   @Override
-  protected byte[] generatePayload() throws MQTTException, IOException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    return out.toByteArray();
+  protected void writePayload(ByteBuffer out) throws MQTTException {
+    // No payload for PUBREL
   }
 
 }
@@ -16,9 +16,12 @@ package se.wetcat.qatja.messages;
  * limitations under the License.
  */
 
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import se.wetcat.qatja.MQTTException;
+import se.wetcat.qatja.MQTTHelper;
+
+import static se.wetcat.qatja.MQTTConstants.SUBACK;
 
 /**
  * A {@link se.wetcat.qatja.MQTTConstants#SUBACK} Packet is sent by the Server to the Client to
@@ -34,60 +37,102 @@ import se.wetcat.qatja.MQTTException;
  */
 public class MQTTSuback extends MQTTMessage {
 
-  public static MQTTSuback fromBuffer(byte[] buffer) {
-    return new MQTTSuback(buffer);
+  /**
+   * @param packageIdentifier the package identifier of the SUBSCRIBE
+   * @param returnCodes       the granted QoS, or
+   *                          {@link se.wetcat.qatja.MQTTConstants#SUBSCRIBE_FAILURE}, of every
+   *                          topic filter
+   * @return the message
+   */
+  public static MQTTSuback newInstance(int packageIdentifier, byte... returnCodes) {
+    return new MQTTSuback(packageIdentifier, returnCodes);
+  }
+
+  public static MQTTSuback fromBuffer(byte[] buffer) throws MQTTException {
+    return fromBuffer(ByteBuffer.wrap(buffer));
+  }
+
+  /**
+   * Decode a complete {@link se.wetcat.qatja.MQTTConstants#SUBACK} frame, see
+   * {@link MQTTDecoder#decode(ByteBuffer)}
+   *
+   * @param buffer the frame, positioned at the fixed header
+   * @return the message
+   * @throws MQTTException if the frame is malformed, incomplete or of another type
+   */
+  public static MQTTSuback fromBuffer(ByteBuffer buffer) throws MQTTException {
+    return (MQTTSuback) MQTTDecoder.decode(buffer, SUBACK);
+  }
+
+  /**
+   * Construct a {@link se.wetcat.qatja.MQTTConstants#SUBACK} message
+   *
+   * @param packageIdentifier the package identifier
+   * @param returnCodes       one return code per subscription
+   */
+  private MQTTSuback(int packageIdentifier, byte[] returnCodes) {
+    this.setType(SUBACK);
+    this.setPackageIdentifier(packageIdentifier);
+    this.setPayload(returnCodes);
   }
 
   /**
-   * Construct a {@link se.wetcat.qatja.MQTTConstants#SUBACK} message from a buffer
+   * Construct a {@link se.wetcat.qatja.MQTTConstants#SUBACK} message from a buffer, the fixed
+   * header has already been read
    *
-   * @param buffer The buffer
+   * @param fixed           The first byte of the fixed header
+   * @param remainingLength The remaining length
+   * @param buffer          The buffer, positioned at the variable header
    */
-  private MQTTSuback(byte[] buffer) {
-    int i = 0;
+  MQTTSuback(byte fixed, int remainingLength, ByteBuffer buffer) {
     // Type (just for clarity sake we'll set it...)
-    this.setType((byte) ((buffer[i++] >> 4) & 0x0F));
+    this.setType((byte) ((fixed >> 4) & 0x0F));
 
     // Remaining length
-    int multiplier = 1;
-    int len = 0;
-    byte digit = 0;
-    do {
-      digit = buffer[i++];
-      len += (digit & 127) * multiplier;
-      multiplier *= 128;
-    } while ((digit & 128) != 0);
-    this.setRemainingLength(len);
+    this.setRemainingLength(remainingLength);
 
     // Get variable header (always length 2 in SUBACK)
     variableHeader = new byte[2];
-    System.arraycopy(buffer, i, variableHeader, 0, variableHeader.length);
+    buffer.get(variableHeader);
 
     // Get payload
     payload = new byte[remainingLength - variableHeader.length];
-    if (payload.length > 0)
-      System.arraycopy(buffer, i + variableHeader.length, payload, 0, remainingLength - variableHeader.length);
+    buffer.get(payload);
 
     // Get package identifier
-    packageIdentifier = (variableHeader[variableHeader.length - 2] >> 8 & 0xFF) | (variableHeader[variableHeader.length - 1] & 0xFF);
+    packageIdentifier = ((variableHeader[0] & 0xFF) << 8) | (variableHeader[1] & 0xFF);
+  }
+
+  /**
+   * @return The granted QoS, or {@link se.wetcat.qatja.MQTTConstants#SUBSCRIBE_FAILURE}, of
+   * every topic filter of the SUBSCRIBE, in order
+   */
+  public byte[] getReturnCodes() {
+    return payload == null ? new byte[0] : payload.clone();
+  }
+
+  @Override
+  protected int variableHeaderLength() throws MQTTException {
+    // Just the package identifier
+    return 2;
   }
 
   @Override
-  protected byte[] generateFixedHeader() throws MQTTException, IOException {
-    // Client doesn't create SUBACK
-    return null;
+  protected int payloadLength() throws MQTTException {
+    return payload == null ? 0 : payload.length;
   }
 
   @Override
-  protected byte[] generateVariableHeader() throws MQTTException, IOException {
-    // Client doesn't create SUBACK
-    return null;
+  protected void writeVariableHeader(ByteBuffer out) throws MQTTException {
+    out.put(MQTTHelper.MSB(packageIdentifier));
+    out.put(MQTTHelper.LSB(packageIdentifier));
   }
 
   @Override
-  protected byte[] generatePayload() throws MQTTException, IOException {
-    // Client doesn't create SUBACK
-    return null;
+  protected void writePayload(ByteBuffer out) throws MQTTException {
+    // One return code per subscription
+    if (payload != null)
+      out.put(payload);
   }
 
 }
@@ -16,8 +16,10 @@ package se.wetcat.qatja.messages;
  * limitations under the License.
  */
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import se.wetcat.qatja.MQTTException;
 import se.wetcat.qatja.MQTTHelper;
@@ -46,6 +48,22 @@ public class MQTTSubscribe extends MQTTMessage {
     return new MQTTSubscribe(topicFilters, QoSs, identifier);
   }
 
+  public static MQTTSubscribe fromBuffer(byte[] buffer) throws MQTTException {
+    return fromBuffer(ByteBuffer.wrap(buffer));
+  }
+
+  /**
+   * Decode a complete {@link se.wetcat.qatja.MQTTConstants#SUBSCRIBE} frame, see
+   * {@link MQTTDecoder#decode(ByteBuffer)}
+   *
+   * @param buffer the frame, positioned at the fixed header
+   * @return the message
+   * @throws MQTTException if the frame is malformed, incomplete or of another type
+   */
+  public static MQTTSubscribe fromBuffer(ByteBuffer buffer) throws MQTTException {
+    return (MQTTSubscribe) MQTTDecoder.decode(buffer, SUBSCRIBE);
+  }
+
   /**
    * Construct a {@link se.wetcat.qatja.MQTTConstants#SUBSCRIBE} message
    *
@@ -60,45 +78,47 @@ public class MQTTSubscribe extends MQTTMessage {
     setPackageIdentifier(identifier);
   }
 
-  @Override
-  protected byte[] generateFixedHeader() throws MQTTException, IOException {
-    // FIXED HEADER
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-    // Type and reserved bits, MUST be [0 0 1 0]
-    byte fixed = (byte) ((type << 4) | (0x00 << 3) | (0x00 << 2) | (0x01 << 1) | (0x00 << 0));
-    out.write(fixed);
-
-    // Flags (none for SUBSCRIBE)
+  /**
+   * Construct a {@link se.wetcat.qatja.MQTTConstants#SUBSCRIBE} message from a buffer, the fixed
+   * header has already been read
+   *
+   * @param fixed           The first byte of the fixed header
+   * @param remainingLength The remaining length
+   * @param buffer          The buffer, positioned at the variable header
+   */
+  MQTTSubscribe(byte fixed, int remainingLength, ByteBuffer buffer) {
+    // Type (just for clarity sake we'll set it...)
+    this.setType((byte) ((fixed >> 4) & 0x0F));
 
     // Remaining length
-    int length = getVariableHeader().length + getPayload().length;
-    this.setRemainingLength(length);
-    do {
-      byte digit = (byte) (length % 128);
-      length /= 128;
-      if (length > 0)
-        digit = (byte) (digit | 0x80);
-      out.write(digit);
-    } while (length > 0);
-
-    return out.toByteArray();
-  }
-
-  @Override
-  protected byte[] generateVariableHeader() throws MQTTException, IOException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-    out.write(MQTTHelper.MSB(getPackageIdentifier()));
-    out.write(MQTTHelper.LSB(getPackageIdentifier()));
+    this.setRemainingLength(remainingLength);
+
+    // Get variable header (always length 2 in SUBSCRIBE)
+    variableHeader = new byte[2];
+    buffer.get(variableHeader);
+
+    // Get payload
+    payload = new byte[remainingLength - variableHeader.length];
+    buffer.get(payload);
+
+    // Get package identifier
+    packageIdentifier = ((variableHeader[0] & 0xFF) << 8) | (variableHeader[1] & 0xFF);
+
+    // Topic filter and QoS pairs, each pair is at least three bytes
+    ByteBuffer in = ByteBuffer.wrap(payload);
+    List<String> topicFilters = new ArrayList<>();
+    byte[] QoSs = new byte[payload.length / 3];
+    while (in.hasRemaining()) {
+      topicFilters.add(MQTTHelper.readUTF8(in));
+      QoSs[topicFilters.size() - 1] = in.get();
+    }
 
-    return out.toByteArray();
+    this.topicFilters = topicFilters.toArray(new String[topicFilters.size()]);
+    this.QoSs = Arrays.copyOf(QoSs, topicFilters.size());
   }
 
   @Override
-  protected byte[] generatePayload() throws MQTTException, IOException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-
+  protected void validate() throws MQTTException {
     if (topicFilters.length <= 0 || QoSs.length <= 0)
       throw new MQTTException("The SUBSCRIBE message must contain at least one topic filter and QoS pair");
 
@@ -106,16 +126,50 @@ public class MQTTSubscribe extends MQTTMessage {
       throw new MQTTException("The SUBSCRIBE message should have the same number of topic filters and QoS");
 
     for (int i = 0; i < topicFilters.length; i++) {
-      if (MQTTHelper.isUTF8(topicFilters[i].getBytes("UTF-8")))
+      if (!MQTTHelper.isUTF8(topicFilters[i]))
         throw new MQTTException("Invalid topic filter encoding: " + topicFilters[i]);
+    }
+  }
+
+  @Override
+  protected boolean isRetransmittable() {
+    return true;
+  }
+
+  @Override
+  protected byte fixedHeaderFlags() {
+    // Reserved bits, MUST be [0 0 1 0]
+    return 0x02;
+  }
+
+  @Override
+  protected int variableHeaderLength() throws MQTTException {
+    // Just the package identifier
+    return 2;
+  }
 
-      out.write(MQTTHelper.MSB(topicFilters[i].length()));
-      out.write(MQTTHelper.LSB(topicFilters[i].length()));
-      out.write(topicFilters[i].getBytes());
-      out.write(QoSs[i]);
+  @Override
+  protected int payloadLength() throws MQTTException {
+    int length = 0;
+    for (int i = 0; i < topicFilters.length; i++) {
+      // Topic filter and the requested QoS byte
+      length += 2 + MQTTHelper.utf8Length(topicFilters[i]) + 1;
     }
+    return length;
+  }
 
-    return out.toByteArray();
+  @Override
+  protected void writeVariableHeader(ByteBuffer out) throws MQTTException {
+    out.put(MQTTHelper.MSB(getPackageIdentifier()));
+    out.put(MQTTHelper.LSB(getPackageIdentifier()));
+  }
+
+  @Override
+  protected void writePayload(ByteBuffer out) throws MQTTException {
+    for (int i = 0; i < topicFilters.length; i++) {
+      MQTTHelper.writeUTF8(out, topicFilters[i]);
+      out.put(QoSs[i]);
+    }
   }
 
   /**
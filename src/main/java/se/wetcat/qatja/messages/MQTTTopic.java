@@ -0,0 +1,115 @@
+package se.wetcat.qatja.messages;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+import se.wetcat.qatja.MQTTException;
+import se.wetcat.qatja.MQTTHelper;
+
+/**
+ * A validated topic name together with its length prefixed UTF-8 encoding,
+ * so that messages published to it don't have to encode or validate it
+ * again. Instances are immutable and may be shared between threads.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ * @see MQTTTopicCache
+ */
+public final class MQTTTopic {
+
+  private final String name;
+
+  private final byte[] encoded;
+
+  /**
+   * Validate and encode a topic name
+   *
+   * @param name the topic name
+   * @return the topic
+   * @throws MQTTException if the name can't be published to
+   */
+  public static MQTTTopic of(String name) throws MQTTException {
+    validate(name);
+
+    ByteBuffer encoded = ByteBuffer.allocate(2 + MQTTHelper.utf8Length(name));
+    MQTTHelper.writeUTF8(encoded, name);
+
+    return new MQTTTopic(name, encoded.array());
+  }
+
+  private MQTTTopic(String name, byte[] encoded) {
+    this.name = name;
+    this.encoded = encoded;
+  }
+
+  /**
+   * The rules a topic name of a {@link se.wetcat.qatja.MQTTConstants#PUBLISH}
+   * must follow.
+   *
+   * @param name the topic name
+   * @throws MQTTException if the name can't be published to
+   */
+  static void validate(String name) throws MQTTException {
+    // Topic MUST be UTF-8
+    if (!MQTTHelper.isUTF8(name))
+      throw new MQTTException("Invalid topic encoding");
+    // Topic MUST NOT contain wildcards
+    if (MQTTHelper.hasWildcards(name))
+      throw new MQTTException("Invalid topic, may not contain wildcards");
+  }
+
+  /**
+   * @return The topic name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return The number of encoded bytes, length prefix included
+   */
+  public int getEncodedLength() {
+    return encoded.length;
+  }
+
+  /**
+   * Write the length prefixed encoding
+   *
+   * @param out the buffer to write to
+   */
+  void writeTo(ByteBuffer out) {
+    out.put(encoded);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof MQTTTopic && ((MQTTTopic) o).name.equals(name);
+  }
+
+  @Override
+  public int hashCode() {
+    return name.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+}
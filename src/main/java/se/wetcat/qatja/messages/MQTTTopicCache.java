@@ -0,0 +1,124 @@
+package se.wetcat.qatja.messages;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.wetcat.qatja.MQTTException;
+
+/**
+ * Bounded, thread safe cache of {@link MQTTTopic}s by name, for clients that
+ * publish to a limited set of topics over and over.
+ * <p>
+ * Lookups of cached topics never lock. When the cache is full the topic that
+ * was added first is evicted; with a working set smaller than the cache that
+ * never happens.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTTopicCache {
+
+  public static final int DEFAULT_MAX_SIZE = 1024;
+
+  private final int maxSize;
+
+  private final ConcurrentMap<String, MQTTTopic> topics;
+
+  /**
+   * Names in the order they were added, for eviction
+   */
+  private final Queue<String> order = new ConcurrentLinkedQueue<String>();
+
+  private final AtomicInteger size = new AtomicInteger();
+
+  public MQTTTopicCache() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * @param maxSize the largest number of topics kept
+   */
+  public MQTTTopicCache(int maxSize) {
+    if (maxSize < 1)
+      throw new IllegalArgumentException("Max size must be positive, " + maxSize);
+
+    this.maxSize = maxSize;
+    this.topics = new ConcurrentHashMap<String, MQTTTopic>(Math.min(maxSize, DEFAULT_MAX_SIZE));
+  }
+
+  /**
+   * Get the cached topic, validating and encoding it the first time it's
+   * seen.
+   *
+   * @param name the topic name
+   * @return the topic
+   * @throws MQTTException if the name can't be published to
+   */
+  public MQTTTopic get(String name) throws MQTTException {
+    MQTTTopic topic = topics.get(name);
+    if (topic != null)
+      return topic;
+
+    topic = MQTTTopic.of(name);
+
+    MQTTTopic existing = topics.putIfAbsent(name, topic);
+    if (existing != null)
+      return existing;
+
+    order.offer(name);
+    if (size.incrementAndGet() > maxSize)
+      evict();
+
+    return topic;
+  }
+
+  /**
+   * @return The number of cached topics
+   */
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * Drop every cached topic
+   */
+  public void clear() {
+    String name;
+    while ((name = order.poll()) != null) {
+      if (topics.remove(name) != null)
+        size.decrementAndGet();
+    }
+  }
+
+  private void evict() {
+    while (size.get() > maxSize) {
+      String name = order.poll();
+      if (name == null)
+        return;
+
+      if (topics.remove(name) != null)
+        size.decrementAndGet();
+    }
+  }
+
+}
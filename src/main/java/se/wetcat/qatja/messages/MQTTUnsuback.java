@@ -16,9 +16,12 @@ package se.wetcat.qatja.messages;
  * limitations under the License.
  */
 
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import se.wetcat.qatja.MQTTException;
+import se.wetcat.qatja.MQTTHelper;
+
+import static se.wetcat.qatja.MQTTConstants.UNSUBACK;
 
 /**
  * A {@link se.wetcat.qatja.MQTTConstants#UNSUBACK} package is the response to a
@@ -28,64 +31,78 @@ import se.wetcat.qatja.MQTTException;
  */
 public class MQTTUnsuback extends MQTTMessage {
 
-  public static MQTTUnsuback fromBuffer(byte[] buffer) {
-    return new MQTTUnsuback(buffer);
+  public static MQTTUnsuback newInstance(int packageIdentifier) {
+    return new MQTTUnsuback(packageIdentifier);
+  }
+
+  public static MQTTUnsuback fromBuffer(byte[] buffer) throws MQTTException {
+    return fromBuffer(ByteBuffer.wrap(buffer));
   }
 
   /**
-   * Construct a {@link se.wetcat.qatja.MQTTConstants#UNSUBACK} message from a buffer
+   * Decode a complete {@link se.wetcat.qatja.MQTTConstants#UNSUBACK} frame, see
+   * {@link MQTTDecoder#decode(ByteBuffer)}
    *
-   * @param buffer the buffer
+   * @param buffer the frame, positioned at the fixed header
+   * @return the message
+   * @throws MQTTException if the frame is malformed, incomplete or of another type
    */
-  private MQTTUnsuback(byte[] buffer) {
+  public static MQTTUnsuback fromBuffer(ByteBuffer buffer) throws MQTTException {
+    return (MQTTUnsuback) MQTTDecoder.decode(buffer, UNSUBACK);
+  }
 
-    // setBuffer(bufferIn, bufferLength);
+  /**
+   * Construct a {@link se.wetcat.qatja.MQTTConstants#UNSUBACK} message from a buffer, the fixed
+   * header has already been read
+   *
+   * @param fixed           The first byte of the fixed header
+   * @param remainingLength The remaining length
+   * @param buffer          The buffer, positioned at the variable header
+   */
+  private MQTTUnsuback(int packageIdentifier) {
+    this.setType(UNSUBACK);
+    this.setPackageIdentifier(packageIdentifier);
+  }
 
-    int i = 0;
+  MQTTUnsuback(byte fixed, int remainingLength, ByteBuffer buffer) {
     // Type (just for clarity sake we'll set it...)
-    this.setType((byte) ((buffer[i++] >> 4) & 0x0F));
+    this.setType((byte) ((fixed >> 4) & 0x0F));
 
     // Remaining length
-    int multiplier = 1;
-    int len = 0;
-    byte digit = 0;
-    do {
-      digit = buffer[i++];
-      len += (digit & 127) * multiplier;
-      multiplier *= 128;
-    } while ((digit & 128) != 0);
-    this.setRemainingLength(len);
-
-    // Get variable header (always length 2 in SUBACK)
+    this.setRemainingLength(remainingLength);
+
+    // Get variable header (always length 2 in UNSUBACK)
     variableHeader = new byte[2];
-    System.arraycopy(buffer, i, variableHeader, 0, variableHeader.length);
+    buffer.get(variableHeader);
 
     // Get payload
     payload = new byte[remainingLength - variableHeader.length];
-    if (payload.length > 0)
-      System.arraycopy(buffer, i + variableHeader.length, payload, 0,
-          remainingLength - variableHeader.length);
+    buffer.get(payload);
 
     // Get package identifier
-    packageIdentifier = (variableHeader[variableHeader.length - 2] >> 8 & 0xFF) | (variableHeader[variableHeader.length - 1] & 0xFF);
+    packageIdentifier = ((variableHeader[0] & 0xFF) << 8) | (variableHeader[1] & 0xFF);
+  }
+
+  @Override
+  protected int variableHeaderLength() throws MQTTException {
+    // Just the package identifier
+    return 2;
   }
 
   @Override
-  protected byte[] generateFixedHeader() throws MQTTException, IOException {
-    // Client doesn't create UNSUBACK
-    return null;
+  protected int payloadLength() throws MQTTException {
+    return 0;
   }
 
   @Override
-  protected byte[] generateVariableHeader() throws MQTTException, IOException {
-    // Client doesn't create UNSUBACK
-    return null;
+  protected void writeVariableHeader(ByteBuffer out) throws MQTTException {
+    out.put(MQTTHelper.MSB(packageIdentifier));
+    out.put(MQTTHelper.LSB(packageIdentifier));
   }
 
   @Override
-  protected byte[] generatePayload() throws MQTTException, IOException {
-    // Client doesn't create UNSUBACK
-    return null;
+  protected void writePayload(ByteBuffer out) throws MQTTException {
+    // No payload for UNSUBACK
   }
 
 }
@@ -16,8 +16,9 @@ package se.wetcat.qatja.messages;
  * limitations under the License.
  */
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import se.wetcat.qatja.MQTTException;
 import se.wetcat.qatja.MQTTHelper;
@@ -40,6 +41,22 @@ public class MQTTUnsubscribe extends MQTTMessage {
     return new MQTTUnsubscribe(identifier, topicFilters);
   }
 
+  public static MQTTUnsubscribe fromBuffer(byte[] buffer) throws MQTTException {
+    return fromBuffer(ByteBuffer.wrap(buffer));
+  }
+
+  /**
+   * Decode a complete {@link se.wetcat.qatja.MQTTConstants#UNSUBSCRIBE} frame, see
+   * {@link MQTTDecoder#decode(ByteBuffer)}
+   *
+   * @param buffer the frame, positioned at the fixed header
+   * @return the message
+   * @throws MQTTException if the frame is malformed, incomplete or of another type
+   */
+  public static MQTTUnsubscribe fromBuffer(ByteBuffer buffer) throws MQTTException {
+    return (MQTTUnsubscribe) MQTTDecoder.decode(buffer, UNSUBSCRIBE);
+  }
+
   /**
    * Construct a {@link se.wetcat.qatja.MQTTConstants#UNSUBSCRIBE} message
    *
@@ -52,58 +69,90 @@ public class MQTTUnsubscribe extends MQTTMessage {
     setPackageIdentifier(identifier);
   }
 
-  @Override
-  protected byte[] generateFixedHeader() throws MQTTException, IOException {
-    // FIXED HEADER
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
+  /**
+   * Construct a {@link se.wetcat.qatja.MQTTConstants#UNSUBSCRIBE} message from a buffer, the
+   * fixed header has already been read
+   *
+   * @param fixed           The first byte of the fixed header
+   * @param remainingLength The remaining length
+   * @param buffer          The buffer, positioned at the variable header
+   */
+  MQTTUnsubscribe(byte fixed, int remainingLength, ByteBuffer buffer) {
+    // Type (just for clarity sake we'll set it...)
+    this.setType((byte) ((fixed >> 4) & 0x0F));
 
-    // Type and reserved bits, MUST be [0 0 1 0]
-    byte fixed = (byte) ((type << 4) | (0x00 << 3) | (0x00 << 2) | (0x01 << 1) | (0x00 << 0));
-    out.write(fixed);
+    // Remaining length
+    this.setRemainingLength(remainingLength);
 
-    // Flags (none for UNSUBSCRIBE)
+    // Get variable header (always length 2 in UNSUBSCRIBE)
+    variableHeader = new byte[2];
+    buffer.get(variableHeader);
 
-    // Remaining length
-    int length = getVariableHeader().length + getPayload().length;
-    this.setRemainingLength(length);
-    do {
-      byte digit = (byte) (length % 128);
-      length /= 128;
-      if (length > 0)
-        digit = (byte) (digit | 0x80);
-      out.write(digit);
-    } while (length > 0);
-
-    return out.toByteArray();
-  }
+    // Get payload
+    payload = new byte[remainingLength - variableHeader.length];
+    buffer.get(payload);
 
-  @Override
-  protected byte[] generateVariableHeader() throws MQTTException, IOException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // Get package identifier
+    packageIdentifier = ((variableHeader[0] & 0xFF) << 8) | (variableHeader[1] & 0xFF);
 
-    out.write(MQTTHelper.MSB(getPackageIdentifier()));
-    out.write(MQTTHelper.LSB(getPackageIdentifier()));
+    // Topic filters
+    ByteBuffer in = ByteBuffer.wrap(payload);
+    List<String> topicFilters = new ArrayList<>();
+    while (in.hasRemaining()) {
+      topicFilters.add(MQTTHelper.readUTF8(in));
+    }
 
-    return out.toByteArray();
+    this.topicFilters = topicFilters.toArray(new String[topicFilters.size()]);
   }
 
   @Override
-  protected byte[] generatePayload() throws MQTTException, IOException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-
+  protected void validate() throws MQTTException {
     if (topicFilters.length <= 0)
       throw new MQTTException("The SUBSCRIBE message must contain at least one topic filter");
 
     for (int i = 0; i < topicFilters.length; i++) {
-      if (MQTTHelper.isUTF8(topicFilters[i].getBytes("UTF-8")))
+      if (!MQTTHelper.isUTF8(topicFilters[i]))
         throw new MQTTException("Invalid topic filter encoding: " + topicFilters[i]);
+    }
+  }
 
-      out.write(MQTTHelper.MSB(topicFilters[i].length()));
-      out.write(MQTTHelper.LSB(topicFilters[i].length()));
-      out.write(topicFilters[i].getBytes());
+  @Override
+  protected boolean isRetransmittable() {
+    return true;
+  }
+
+  @Override
+  protected byte fixedHeaderFlags() {
+    // Reserved bits, MUST be [0 0 1 0]
+    return 0x02;
+  }
+
+  @Override
+  protected int variableHeaderLength() throws MQTTException {
+    // Just the package identifier
+    return 2;
+  }
+
+  @Override
+  protected int payloadLength() throws MQTTException {
+    int length = 0;
+    for (int i = 0; i < topicFilters.length; i++) {
+      length += 2 + MQTTHelper.utf8Length(topicFilters[i]);
     }
+    return length;
+  }
 
-    return out.toByteArray();
+  @Override
+  protected void writeVariableHeader(ByteBuffer out) throws MQTTException {
+    out.put(MQTTHelper.MSB(getPackageIdentifier()));
+    out.put(MQTTHelper.LSB(getPackageIdentifier()));
+  }
+
+  @Override
+  protected void writePayload(ByteBuffer out) throws MQTTException {
+    for (int i = 0; i < topicFilters.length; i++) {
+      MQTTHelper.writeUTF8(out, topicFilters[i]);
+    }
   }
 
   /**
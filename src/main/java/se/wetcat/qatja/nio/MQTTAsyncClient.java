@@ -0,0 +1,380 @@
+package se.wetcat.qatja.nio;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import se.wetcat.qatja.MQTTException;
+import se.wetcat.qatja.messages.MQTTConnack;
+import se.wetcat.qatja.messages.MQTTConnect;
+import se.wetcat.qatja.messages.MQTTMessage;
+import se.wetcat.qatja.messages.MQTTSuback;
+import se.wetcat.qatja.messages.MQTTSubscribe;
+import se.wetcat.qatja.messages.MQTTUnsubscribe;
+
+import static se.wetcat.qatja.MQTTConstants.AT_LEAST_ONCE;
+import static se.wetcat.qatja.MQTTConstants.CONNECTION_ACCEPTED;
+import static se.wetcat.qatja.MQTTConstants.EXACTLY_ONCE;
+import static se.wetcat.qatja.MQTTConstants.PUBACK;
+import static se.wetcat.qatja.MQTTConstants.PUBCOMP;
+import static se.wetcat.qatja.MQTTConstants.SUBACK;
+import static se.wetcat.qatja.MQTTConstants.UNSUBACK;
+
+/**
+ * Asynchronous client on top of an {@link MQTTConnection}, every operation
+ * returns an {@link MQTTFuture} that is completed when the server
+ * acknowledges it: a QoS 1 PUBLISH on PUBACK, a QoS 2 PUBLISH on PUBCOMP, a
+ * SUBSCRIBE on SUBACK with the granted QoS, and an UNSUBSCRIBE on UNSUBACK.
+ * <p>
+ * The futures are completed by the I/O thread of the connection as the
+ * acknowledgements are decoded, and kept by package identifier until then,
+ * so an outstanding operation costs its future and an entry in a map. Only
+ * the acknowledgement the operation waits for completes it, a PUBACK never
+ * completes a QoS 2 PUBLISH. When the connection closes, the outstanding
+ * futures fail.
+ * <p>
+ * The client is either served by a thread of its own, see
+ * {@link #connect(SocketAddress, MQTTConnect)}, or by an
+ * {@link MQTTConnectionManager}, see
+ * {@link #connect(MQTTConnectionManager, SocketAddress, MQTTConnect)}.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTAsyncClient implements MQTTConnection.Listener, Closeable {
+
+  private final MQTTConnection.Listener listener;
+
+  /**
+   * Outstanding operations by package identifier
+   */
+  private final ConcurrentMap<Integer, Operation<?>> pending = new ConcurrentHashMap<Integer, Operation<?>>(16, 0.75f, 2);
+
+  private final MQTTFuture<MQTTConnack> connected = new MQTTFuture<MQTTConnack>();
+
+  private volatile MQTTConnection connection;
+
+  /**
+   * A client without a listener of its own
+   */
+  public MQTTAsyncClient() {
+    this(null);
+  }
+
+  /**
+   * @param listener receives the events of the connection as well, on the
+   *                 I/O thread, or null
+   */
+  public MQTTAsyncClient(MQTTConnection.Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Connect on a thread of its own
+   *
+   * @param address the server
+   * @param connect the CONNECT to open the session with
+   * @return completed with the CONNACK once the server accepts the
+   * connection
+   */
+  public MQTTFuture<MQTTConnack> connect(SocketAddress address, MQTTConnect connect) {
+    MQTTConnection connection;
+    synchronized (this) {
+      checkNotConnected();
+      connection = new MQTTConnection(address, connect, this);
+      this.connection = connection;
+    }
+
+    Thread thread = new Thread(connection, "qatja-client");
+    thread.setDaemon(true);
+    thread.start();
+    return connected;
+  }
+
+  /**
+   * Connect on one of the I/O threads of a manager
+   *
+   * @param manager the manager
+   * @param address the server
+   * @param connect the CONNECT to open the session with
+   * @return completed with the CONNACK once the server accepts the
+   * connection
+   */
+  public MQTTFuture<MQTTConnack> connect(MQTTConnectionManager manager, SocketAddress address, MQTTConnect connect) {
+    synchronized (this) {
+      checkNotConnected();
+      connection = manager.open(address, connect, this);
+    }
+    return connected;
+  }
+
+  /**
+   * Publish a message
+   *
+   * @param topic   the topic
+   * @param payload the payload
+   * @param QoS     the quality of service
+   * @param retain  true if the server should retain the message
+   * @return completed with the package identifier when the message is
+   * acknowledged, right away for {@link se.wetcat.qatja.MQTTConstants#AT_MOST_ONCE}
+   * @throws MQTTException if the message can't be sent
+   */
+  public MQTTFuture<Integer> publish(String topic, byte[] payload, byte QoS, boolean retain) throws MQTTException {
+    MQTTConnection connection = connection();
+
+    if (QoS != AT_LEAST_ONCE && QoS != EXACTLY_ONCE) {
+      // Done once queued, or refused for an invalid QoS
+      connection.publish(topic, payload, QoS, retain);
+      MQTTFuture<Integer> future = new MQTTFuture<Integer>();
+      future.complete(0);
+      return future;
+    }
+
+    Operation<Integer> future = new Operation<Integer>(QoS == AT_LEAST_ONCE ? PUBACK : PUBCOMP);
+
+    int identifier = connection.identifier();
+    pending.put(identifier, future);
+    try {
+      connection.publish(topic, payload, QoS, retain, identifier);
+    } catch (MQTTException | RuntimeException e) {
+      pending.remove(identifier);
+      throw e;
+    }
+    return sent(connection, identifier, future);
+  }
+
+  /**
+   * Subscribe to topic filters
+   *
+   * @param topicFilters the topic filters
+   * @param QoSs         the largest QoS of every topic filter
+   * @return completed with the granted QoS, or
+   * {@link se.wetcat.qatja.MQTTConstants#SUBSCRIBE_FAILURE}, of every topic
+   * filter, in order
+   * @throws MQTTException if the SUBSCRIBE can't be sent
+   */
+  public MQTTFuture<byte[]> subscribe(String[] topicFilters, byte[] QoSs) throws MQTTException {
+    MQTTConnection connection = connection();
+    Operation<byte[]> future = new Operation<byte[]>(SUBACK);
+
+    int identifier = connection.identifier();
+    pending.put(identifier, future);
+    try {
+      connection.send(MQTTSubscribe.newInstance(topicFilters, QoSs, identifier));
+    } catch (MQTTException | RuntimeException e) {
+      pending.remove(identifier);
+      throw e;
+    }
+    return sent(connection, identifier, future);
+  }
+
+  /**
+   * Unsubscribe from topic filters
+   *
+   * @param topicFilters the topic filters
+   * @return completed when the server acknowledges the UNSUBSCRIBE
+   * @throws MQTTException if the UNSUBSCRIBE can't be sent
+   */
+  public MQTTFuture<Void> unsubscribe(String... topicFilters) throws MQTTException {
+    MQTTConnection connection = connection();
+    Operation<Void> future = new Operation<Void>(UNSUBACK);
+
+    int identifier = connection.identifier();
+    pending.put(identifier, future);
+    try {
+      connection.send(MQTTUnsubscribe.newInstance(identifier, topicFilters));
+    } catch (MQTTException | RuntimeException e) {
+      pending.remove(identifier);
+      throw e;
+    }
+    return sent(connection, identifier, future);
+  }
+
+  /**
+   * Send a DISCONNECT, the outstanding futures fail once the connection is
+   * closed
+   */
+  public void disconnect() {
+    MQTTConnection connection = this.connection;
+    if (connection != null)
+      connection.disconnect();
+  }
+
+  /**
+   * Close the connection without a DISCONNECT
+   */
+  @Override
+  public void close() {
+    MQTTConnection connection = this.connection;
+    if (connection != null)
+      connection.close();
+  }
+
+  /**
+   * @return The number of operations waiting for an acknowledgement
+   */
+  public int getPending() {
+    return pending.size();
+  }
+
+  /**
+   * @return The connection, or null before connecting
+   */
+  public MQTTConnection getConnection() {
+    return connection;
+  }
+
+  /**
+   * The listener is told even if a callback of the future throws
+   */
+  @Override
+  public void connected(MQTTConnack connack) {
+    try {
+      if (connack.getReturnCode() == CONNECTION_ACCEPTED)
+        connected.complete(connack);
+      else
+        connected.fail(new MQTTException("Connection refused, return code " + connack.getReturnCode()));
+    } finally {
+      if (listener != null)
+        listener.connected(connack);
+    }
+  }
+
+  /**
+   * The listener is told even if a callback of the future throws
+   */
+  @Override
+  public void received(MQTTMessage message) {
+    try {
+      switch (message.getType()) {
+        case PUBACK:
+        case PUBCOMP:
+          complete(message, message.getPackageIdentifier());
+          break;
+
+        case SUBACK:
+          complete(message, ((MQTTSuback) message).getReturnCodes());
+          break;
+
+        case UNSUBACK:
+          complete(message, null);
+          break;
+
+        default:
+          break;
+      }
+    } finally {
+      if (listener != null)
+        listener.received(message);
+    }
+  }
+
+  /**
+   * Every outstanding future fails, and the listener is told, even if
+   * callbacks throw; the first failure is thrown afterwards
+   */
+  @Override
+  public void closed(Exception cause) {
+    MQTTException failure = new MQTTException("Connection closed", cause);
+
+    // Taken out first, so no callback sees a future that is still pending
+    List<MQTTFuture<?>> futures = new ArrayList<MQTTFuture<?>>(pending.size() + 1);
+    futures.add(connected);
+    for (Integer identifier : pending.keySet()) {
+      MQTTFuture<?> future = pending.remove(identifier);
+      if (future != null)
+        futures.add(future);
+    }
+
+    RuntimeException thrown = null;
+    for (MQTTFuture<?> future : futures) {
+      try {
+        future.fail(failure);
+      } catch (RuntimeException e) {
+        if (thrown == null)
+          thrown = e;
+      }
+    }
+
+    try {
+      if (listener != null)
+        listener.closed(cause);
+    } catch (RuntimeException e) {
+      if (thrown == null)
+        thrown = e;
+    }
+
+    if (thrown != null)
+      throw thrown;
+  }
+
+  private void checkNotConnected() {
+    if (connection != null)
+      throw new IllegalStateException("Already connected");
+  }
+
+  private MQTTConnection connection() throws MQTTException {
+    MQTTConnection connection = this.connection;
+    if (connection == null)
+      throw new MQTTException("Not connected");
+    return connection;
+  }
+
+  /**
+   * The connection may have closed after the future was added, without
+   * failing it
+   */
+  private <V> MQTTFuture<V> sent(MQTTConnection connection, int identifier, Operation<V> future) {
+    if (!connection.isOpen() && pending.remove(identifier, future))
+      future.fail(new MQTTException("Connection closed"));
+    return future;
+  }
+
+  /**
+   * Complete the future of an acknowledged operation, before its identifier
+   * is released, if it waits for this type of acknowledgement
+   */
+  @SuppressWarnings("unchecked")
+  private void complete(MQTTMessage ack, Object value) {
+    int identifier = ack.getPackageIdentifier();
+
+    Operation<Object> future = (Operation<Object>) pending.get(identifier);
+    if (future != null && future.ack == ack.getType() && pending.remove(identifier, future))
+      future.complete(value);
+  }
+
+  /**
+   * The future of an outstanding operation and the acknowledgement it waits
+   * for
+   */
+  private static final class Operation<V> extends MQTTFuture<V> {
+
+    private final byte ack;
+
+    private Operation(byte ack) {
+      this.ack = ack;
+    }
+
+  }
+
+}
@@ -0,0 +1,1070 @@
+package se.wetcat.qatja.nio;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.wetcat.qatja.MQTTException;
+import se.wetcat.qatja.MQTTIdentifierHelper;
+import se.wetcat.qatja.MQTTRetransmitScheduler;
+import se.wetcat.qatja.messages.MQTTConnack;
+import se.wetcat.qatja.messages.MQTTConnect;
+import se.wetcat.qatja.messages.MQTTDisconnect;
+import se.wetcat.qatja.messages.MQTTFrameDecoder;
+import se.wetcat.qatja.messages.MQTTMessage;
+import se.wetcat.qatja.messages.MQTTPingreq;
+import se.wetcat.qatja.messages.MQTTPuback;
+import se.wetcat.qatja.messages.MQTTPubcomp;
+import se.wetcat.qatja.messages.MQTTPublish;
+import se.wetcat.qatja.messages.MQTTPubrec;
+import se.wetcat.qatja.messages.MQTTPubrel;
+import se.wetcat.qatja.messages.MQTTSubscribe;
+import se.wetcat.qatja.messages.MQTTTopicCache;
+import se.wetcat.qatja.messages.MQTTUnsubscribe;
+
+import static se.wetcat.qatja.MQTTConstants.AT_LEAST_ONCE;
+import static se.wetcat.qatja.MQTTConstants.AT_MOST_ONCE;
+import static se.wetcat.qatja.MQTTConstants.CONNACK;
+import static se.wetcat.qatja.MQTTConstants.CONNECTION_ACCEPTED;
+import static se.wetcat.qatja.MQTTConstants.DISCONNECT;
+import static se.wetcat.qatja.MQTTConstants.EXACTLY_ONCE;
+import static se.wetcat.qatja.MQTTConstants.PINGRESP;
+import static se.wetcat.qatja.MQTTConstants.PUBACK;
+import static se.wetcat.qatja.MQTTConstants.PUBCOMP;
+import static se.wetcat.qatja.MQTTConstants.PUBLISH;
+import static se.wetcat.qatja.MQTTConstants.PUBREC;
+import static se.wetcat.qatja.MQTTConstants.PUBREL;
+import static se.wetcat.qatja.MQTTConstants.SUBACK;
+import static se.wetcat.qatja.MQTTConstants.UNSUBACK;
+
+/**
+ * Non-blocking client connection to an MQTT server, driven by a
+ * {@link Selector}.
+ * <p>
+ * The connection sends the CONNECT and waits for the CONNACK, acknowledges
+ * received messages, completes the QoS 1 and QoS 2 exchanges of sent
+ * messages through its {@link MQTTIdentifierHelper}, and pings the server
+ * when nothing has been sent for the keep alive of the CONNECT. Bytes are
+ * read into a reusable direct buffer and decoded incrementally by a
+ * {@link MQTTFrameDecoder}; outgoing messages are encoded back to back into
+ * a direct write buffer, so one write usually carries many messages. Only
+ * what the socket doesn't take right away is copied aside. With a
+ * {@link MQTTWriteCoalescer} queued messages are also held back until
+ * enough of them are queued or the oldest has waited long enough.
+ * <p>
+ * Messages can be sent, and the connection closed, from any thread; they
+ * are queued and handled by the I/O thread. Everything else happens on the
+ * I/O thread, either the one of {@link #run()}, or any thread that calls
+ * {@link #process(SelectionKey)} and {@link #poll(long)} for a selector it
+ * shares with other channels. The listener is called on the I/O thread and
+ * shouldn't block.
+ * <p>
+ * A {@link MQTTRetransmitScheduler} set on the helper of the connection is
+ * ticked by {@link #poll(long)}, so that messages are marked duplicate on
+ * the I/O thread that writes them and never while they are being encoded.
+ * Don't tick it from another thread.
+ * <p>
+ * Connections opened by a {@link MQTTConnectionManager} share the buffers of
+ * their I/O thread and keep their messages in flight in the registry of the
+ * manager instead.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTConnection implements Runnable, Closeable {
+
+  /**
+   * Receives the events of a connection, on the I/O thread
+   */
+  public interface Listener {
+
+    /**
+     * The server answered the CONNECT, the connection is closed after this
+     * call unless the connection was accepted
+     *
+     * @param connack the answer
+     */
+    void connected(MQTTConnack connack);
+
+    /**
+     * A PUBLISH arrived, or a PUBACK, PUBCOMP, SUBACK or UNSUBACK completed a
+     * message sent on this connection. The package identifier of the
+     * completed message is released after this call.
+     *
+     * @param message the message
+     */
+    void received(MQTTMessage message);
+
+    /**
+     * The connection is closed. The messages still in flight of a connection
+     * of its own remain in its {@link MQTTIdentifierHelper}, those of a
+     * connection of a {@link MQTTConnectionManager} are dropped.
+     *
+     * @param cause the error that closed the connection, or null if it was
+     *              closed or disconnected on request
+     */
+    void closed(Exception cause);
+
+  }
+
+  /**
+   * Size of the read and write buffers
+   */
+  public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+  /**
+   * Reads per readiness event, so that one busy connection can't starve the
+   * others on a shared selector
+   */
+  private static final int MAX_READS = 16;
+
+  private static final int NEW = 0;
+  private static final int CONNECTING = 1;
+  private static final int CONNECTED = 2;
+  private static final int CLOSED = 3;
+
+  private final SocketAddress address;
+  private final MQTTConnect connect;
+  private final Listener listener;
+
+  private final MQTTSessionState session;
+  private final MQTTTopicCache topics;
+
+  /**
+   * The I/O thread of the manager, or null for a connection of its own
+   */
+  private final MQTTConnectionManager.Worker worker;
+
+  private final MQTTFrameDecoder decoder = new MQTTFrameDecoder();
+
+  /**
+   * Bytes read from the socket, empty between reads
+   */
+  private final ByteBuffer readBuffer;
+
+  /**
+   * Messages encoded for the socket, in write mode, empty between writes
+   */
+  private final ByteBuffer writeBuffer;
+
+  /**
+   * Encoded bytes the socket didn't take, in read mode, or null
+   */
+  private ByteBuffer pending;
+
+  /**
+   * A message larger than the write buffer, written from its own buffers
+   */
+  private ByteBuffer[] large;
+
+  /**
+   * Messages from any thread, waiting to be encoded
+   */
+  private final Queue<MQTTMessage> outbound = new ConcurrentLinkedQueue<MQTTMessage>();
+
+  /**
+   * Acknowledgements from the I/O thread that didn't fit, created when needed
+   */
+  private Queue<MQTTMessage> deferred;
+
+  /**
+   * Set while the I/O thread has been told about queued messages
+   */
+  private final AtomicBoolean wakeup = new AtomicBoolean();
+
+  /**
+   * When queued messages are written, or null to write them right away
+   */
+  private final MQTTWriteCoalescer coalescer;
+
+  /**
+   * Bytes of the queued messages
+   */
+  private final AtomicInteger queued = new AtomicInteger();
+
+  /**
+   * When the oldest queued message was queued
+   */
+  private volatile long queuedSince;
+
+  /**
+   * A DISCONNECT is queued, everything is written right away
+   */
+  private volatile boolean urgent;
+
+  /**
+   * Messages encoded since the last write
+   */
+  private int packets;
+
+  private final long keepAlive;
+
+  private volatile int state = NEW;
+
+  /**
+   * Set by {@link #close()}, the I/O thread closes the connection
+   */
+  private volatile boolean closeRequested;
+
+  private volatile SelectionKey key;
+
+  private SocketChannel channel;
+
+  private long lastWrite;
+
+  /**
+   * When the outstanding PINGREQ was sent, 0 if there is none
+   */
+  private long pingSent;
+
+  private boolean disconnecting;
+
+  /**
+   * Links of the keep alive wheel of the manager, guarded by its
+   * {@link MQTTKeepAliveService}
+   */
+  MQTTConnection wheelNext;
+  MQTTConnection wheelPrev;
+  long wheelTick;
+  boolean wheelLinked;
+
+  /**
+   * Set while the connection waits in the lingering queue of its worker,
+   * only used by the I/O thread
+   */
+  boolean lingering;
+
+  /**
+   * @param address  the server
+   * @param connect  the CONNECT to open the session with, its keep alive is
+   *                 used for the connection
+   * @param listener receives the events of the connection
+   */
+  public MQTTConnection(SocketAddress address, MQTTConnect connect, Listener listener) {
+    this(address, connect, listener, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param address    the server
+   * @param connect    the CONNECT to open the session with, its keep alive is
+   *                   used for the connection
+   * @param listener   receives the events of the connection
+   * @param bufferSize size of the direct read and write buffers
+   */
+  public MQTTConnection(SocketAddress address, MQTTConnect connect, Listener listener, int bufferSize) {
+    this(address, connect, listener, bufferSize, null);
+  }
+
+  /**
+   * @param address    the server
+   * @param connect    the CONNECT to open the session with, its keep alive is
+   *                   used for the connection
+   * @param listener   receives the events of the connection
+   * @param bufferSize size of the direct read and write buffers
+   * @param coalescer  when queued messages are written, or null to write
+   *                   them right away
+   */
+  public MQTTConnection(SocketAddress address, MQTTConnect connect, Listener listener, int bufferSize,
+                        MQTTWriteCoalescer coalescer) {
+    this(address, connect, listener, new MQTTSessionState.Helper(), new MQTTTopicCache(),
+        ByteBuffer.allocateDirect(bufferSize), ByteBuffer.allocateDirect(bufferSize), null, coalescer);
+  }
+
+  MQTTConnection(SocketAddress address, MQTTConnect connect, Listener listener, MQTTSessionState session,
+                 MQTTTopicCache topics, ByteBuffer readBuffer, ByteBuffer writeBuffer, MQTTConnectionManager.Worker worker,
+                 MQTTWriteCoalescer coalescer) {
+    this.address = address;
+    this.connect = connect;
+    this.listener = listener;
+    this.session = session;
+    this.topics = topics;
+    this.readBuffer = readBuffer;
+    this.writeBuffer = writeBuffer;
+    this.worker = worker;
+    this.coalescer = coalescer;
+    this.keepAlive = TimeUnit.SECONDS.toNanos(connect.getKeepAlive());
+  }
+
+  /**
+   * Connect on a selector of its own and serve the connection on the calling
+   * thread until it is closed
+   */
+  @Override
+  public void run() {
+    Selector selector = null;
+    try {
+      selector = Selector.open();
+      connect(selector);
+
+      while (isOpen()) {
+        long timeout = poll(System.nanoTime());
+        if (!isOpen())
+          break;
+
+        selector.select(timeout);
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          process(keys.next());
+          keys.remove();
+        }
+      }
+    } catch (IOException e) {
+      close(e);
+    } finally {
+      if (selector != null) {
+        try {
+          selector.close();
+        } catch (IOException e) {
+          // Nothing left to do
+        }
+      }
+    }
+  }
+
+  /**
+   * Start connecting, the channel is registered with the selector and the
+   * connection attached to its key. Call {@link #process(SelectionKey)} for
+   * the key when it is selected, and {@link #poll(long)} after every select.
+   *
+   * @param selector the selector
+   * @throws IOException if the connection can't be started, or was closed
+   *                     before it started
+   */
+  public void connect(Selector selector) throws IOException {
+    synchronized (this) {
+      if (state == CLOSED)
+        throw new ClosedChannelException();
+      if (state != NEW)
+        throw new IllegalStateException("Already connected");
+      state = CONNECTING;
+    }
+
+    try {
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+      if (channel.connect(address)) {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        established();
+      } else {
+        key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+      }
+    } catch (IOException | MQTTException | RuntimeException e) {
+      close(e);
+      if (e instanceof IOException)
+        throw (IOException) e;
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Handle the operations the key is ready for
+   *
+   * @param key the selected key of the connection
+   */
+  public void process(SelectionKey key) {
+    if (closeRequested) {
+      close(null);
+      return;
+    }
+
+    try {
+      if (key.isConnectable() && channel.finishConnect()) {
+        key.interestOps(SelectionKey.OP_READ);
+        established();
+      }
+
+      if (key.isValid() && key.isReadable())
+        read();
+
+      if (key.isValid() && key.isWritable()) {
+        flush();
+        if (state == CONNECTED)
+          drain();
+      }
+
+      flush();
+      if (disconnecting && !isWritePending())
+        close(null);
+    } catch (IOException | MQTTException | RuntimeException e) {
+      close(e);
+    }
+  }
+
+  /**
+   * Encode and write the queued messages, and ping the server if the
+   * connection has been idle for the keep alive.
+   *
+   * @param now {@link System#nanoTime()}
+   * @return the longest time to select before polling again in
+   * milliseconds, 0 for no limit
+   */
+  public long poll(long now) {
+    long retransmit = retransmit();
+    long remaining = drainQueued(now);
+    long timeout = keepAlive(now, 0);
+
+    if (remaining > 0) {
+      long linger = Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+      timeout = timeout == 0 ? linger : Math.min(timeout, linger);
+    }
+    if (retransmit > 0)
+      timeout = timeout == 0 ? retransmit : Math.min(timeout, retransmit);
+    return timeout;
+  }
+
+  /**
+   * Publish a message
+   *
+   * @param topic   the topic
+   * @param payload the payload
+   * @param QoS     the quality of service
+   * @param retain  true if the server should retain the message
+   * @return the package identifier, 0 for {@link se.wetcat.qatja.MQTTConstants#AT_MOST_ONCE}
+   * @throws MQTTException if the topic is invalid, the message is too large,
+   *                       all package identifiers are in use or the
+   *                       connection is closed
+   */
+  public int publish(String topic, byte[] payload, byte QoS, boolean retain) throws MQTTException {
+    if (QoS < AT_MOST_ONCE || QoS > EXACTLY_ONCE)
+      throw new MQTTException("Invalid QoS " + QoS);
+
+    int identifier = QoS == AT_MOST_ONCE ? 0 : identifier();
+    publish(topic, payload, QoS, retain, identifier);
+    return identifier;
+  }
+
+  /**
+   * Publish a message with an identifier from {@link #identifier()}, it is
+   * released if the message can't be sent
+   */
+  void publish(String topic, byte[] payload, byte QoS, boolean retain, int identifier) throws MQTTException {
+    MQTTPublish publish;
+    int size;
+    try {
+      publish = MQTTPublish.newInstance(topics.get(topic), payload == null ? new byte[0] : payload, QoS, identifier);
+      publish.setRetain(retain);
+      size = prepare(publish);
+
+      // Checked for QoS 0 too, identifier() does it for the others
+      if (state == CLOSED)
+        throw new MQTTException("Connection closed");
+
+      if (identifier != 0)
+        session.send(publish);
+    } catch (MQTTException | RuntimeException e) {
+      if (identifier != 0)
+        session.release(identifier);
+      throw e;
+    }
+
+    enqueue(publish, size);
+  }
+
+  /**
+   * Subscribe to topic filters
+   *
+   * @param topicFilters the topic filters
+   * @param QoSs         the largest QoS of every topic filter
+   * @return the package identifier of the SUBSCRIBE
+   * @throws MQTTException if the topic filters are invalid, all package
+   *                       identifiers are in use or the connection is closed
+   */
+  public int subscribe(String[] topicFilters, byte[] QoSs) throws MQTTException {
+    int identifier = identifier();
+    send(MQTTSubscribe.newInstance(topicFilters, QoSs, identifier));
+    return identifier;
+  }
+
+  /**
+   * Unsubscribe from topic filters
+   *
+   * @param topicFilters the topic filters
+   * @return the package identifier of the UNSUBSCRIBE
+   * @throws MQTTException if the topic filters are invalid, all package
+   *                       identifiers are in use or the connection is closed
+   */
+  public int unsubscribe(String... topicFilters) throws MQTTException {
+    int identifier = identifier();
+    send(MQTTUnsubscribe.newInstance(identifier, topicFilters));
+    return identifier;
+  }
+
+  /**
+   * Send a DISCONNECT and close the connection once everything queued before
+   * it has been written
+   */
+  public void disconnect() {
+    if (state == CLOSED)
+      return;
+
+    enqueue(MQTTDisconnect.newInstance(), 2);
+  }
+
+  /**
+   * Queue a message, a message with a package identifier is added to the
+   * sent packages until it is acknowledged. Retransmissions are sent again
+   * with this method.
+   *
+   * @param message the message
+   * @throws MQTTException if the message is invalid
+   */
+  public void send(MQTTMessage message) throws MQTTException {
+    if (state == CLOSED)
+      throw new MQTTException("Connection closed");
+
+    int identifier = message.getPackageIdentifier();
+    int size;
+
+    try {
+      size = prepare(message);
+    } catch (MQTTException e) {
+      if (identifier != 0 && session.sent(identifier) != message)
+        session.release(identifier);
+      throw e;
+    }
+
+    if (identifier != 0 && session.sent(identifier) != message)
+      session.send(message);
+
+    enqueue(message, size);
+  }
+
+  /**
+   * Close the connection without a DISCONNECT. The I/O thread closes it and
+   * tells the listener, a connection that hasn't started connecting has no
+   * I/O thread and is closed right away.
+   */
+  @Override
+  public void close() {
+    if (state == CLOSED)
+      return;
+
+    SelectionKey key = this.key;
+    if (worker == null && key == null) {
+      close(null);
+      return;
+    }
+
+    closeRequested = true;
+    if (worker != null)
+      worker.ready(this);
+    else
+      key.selector().wakeup();
+  }
+
+  /**
+   * @return true until the connection is closed
+   */
+  public boolean isOpen() {
+    return state != CLOSED;
+  }
+
+  /**
+   * @return true once the server has accepted the connection
+   */
+  public boolean isConnected() {
+    return state == CONNECTED;
+  }
+
+  /**
+   * @return The messages in flight of the connection, or null for a
+   * connection of a {@link MQTTConnectionManager}, whose messages are in
+   * {@link MQTTConnectionManager#getRegistry()}
+   */
+  public MQTTIdentifierHelper getHelper() {
+    return session instanceof MQTTSessionState.Helper ? ((MQTTSessionState.Helper) session).helper : null;
+  }
+
+  /**
+   * Encode and write the queued messages once they are due, on the I/O
+   * thread
+   *
+   * @param now {@link System#nanoTime()}
+   * @return how long the queued messages may still wait in nanoseconds, 0
+   * if none are waiting
+   */
+  long drainQueued(long now) {
+    if (state == CLOSED)
+      return 0;
+
+    if (closeRequested) {
+      close(null);
+      return 0;
+    }
+
+    long remaining = 0;
+    try {
+      if (state == CONNECTED) {
+        wakeup.set(false);
+
+        int queued = this.queued.get();
+        if (coalescer == null || queued == 0 || urgent || coalescer.isDue(queued, queuedSince, now))
+          drain();
+        else
+          remaining = Math.max(1, coalescer.remaining(queuedSince, now));
+      }
+      flush();
+
+      if (disconnecting && !isWritePending())
+        close(null);
+    } catch (IOException | MQTTException | RuntimeException e) {
+      close(e);
+      return 0;
+    }
+    return remaining;
+  }
+
+  /**
+   * Tick the retransmit scheduler of the helper, the retransmissions are
+   * queued on the I/O thread
+   *
+   * @return the time until the next tick in milliseconds, 0 for no limit
+   */
+  private long retransmit() {
+    MQTTIdentifierHelper helper = getHelper();
+    MQTTRetransmitScheduler scheduler = helper != null ? helper.getRetransmitScheduler() : null;
+    if (scheduler == null || state != CONNECTED)
+      return 0;
+
+    try {
+      helper.tick();
+    } catch (RuntimeException e) {
+      close(e);
+      return 0;
+    }
+    return scheduler.size() > 0 ? scheduler.getTickDuration() : 0;
+  }
+
+  /**
+   * Ping the server if the connection has been idle for the keep alive, and
+   * close it if the server hasn't answered the last ping in time.
+   *
+   * @param now   {@link System#nanoTime()}
+   * @param early how long before the keep alive runs out to ping, when the
+   *              next check may come that much late
+   * @return the time until the next check in milliseconds, 0 for no limit
+   */
+  long keepAlive(long now, long early) {
+    if (keepAlive == 0 || state != CONNECTED)
+      return 0;
+
+    try {
+      if (pingSent != 0) {
+        if (now - pingSent >= keepAlive) {
+          if (worker != null)
+            worker.getKeepAlive().dead();
+          throw new MQTTException("No PINGRESP within the keep alive");
+        }
+      } else if (now - lastWrite + early >= keepAlive) {
+        if (pending != null || large != null)
+          throw new MQTTException("Nothing written within the keep alive");
+
+        ping();
+        pingSent = now;
+        if (worker != null)
+          worker.getKeepAlive().pinged();
+      }
+    } catch (IOException | MQTTException | RuntimeException e) {
+      close(e);
+      return 0;
+    }
+
+    long deadline = pingSent != 0 ? pingSent + keepAlive : lastWrite + keepAlive;
+    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - now));
+  }
+
+  /**
+   * The keep alive of a connection of a manager is due, check it on the I/O
+   * thread
+   */
+  void keepAliveDue() {
+    if (worker != null)
+      worker.due(this);
+  }
+
+  /**
+   * Write the PINGREQ, the write buffer is empty outside of
+   * {@link #process(SelectionKey)}
+   */
+  private void ping() throws IOException {
+    writeBuffer.put(MQTTPingreq.frame());
+    packets++;
+    flush();
+  }
+
+  /**
+   * The socket is connected, send the CONNECT
+   */
+  private void established() throws IOException, MQTTException {
+    lastWrite = System.nanoTime();
+    write(connect);
+    flush();
+  }
+
+  private void read() throws IOException, MQTTException {
+    for (int i = 0; i < MAX_READS; i++) {
+      int read = channel.read(readBuffer);
+
+      readBuffer.flip();
+      try {
+        MQTTMessage message;
+        while (state != CLOSED && (message = decoder.decode(readBuffer)) != null) {
+          handle(message);
+        }
+      } finally {
+        readBuffer.clear();
+      }
+
+      if (read < 0) {
+        close(disconnecting ? null : new EOFException("Connection closed by the server"));
+        return;
+      }
+
+      // A short read means the socket is drained
+      if (read < readBuffer.capacity() || state == CLOSED)
+        return;
+    }
+  }
+
+  private void handle(MQTTMessage message) throws IOException, MQTTException {
+    int identifier = message.getPackageIdentifier();
+
+    switch (message.getType()) {
+      case CONNACK:
+        if (state != CONNECTING)
+          throw new MQTTException("Unexpected CONNACK");
+
+        MQTTConnack connack = (MQTTConnack) message;
+        listener.connected(connack);
+        if (connack.getReturnCode() != CONNECTION_ACCEPTED) {
+          close(new MQTTException("Connection refused, return code " + connack.getReturnCode()));
+          return;
+        }
+
+        state = CONNECTED;
+        if (worker != null && keepAlive != 0)
+          worker.getKeepAlive().schedule(this, lastWrite + keepAlive);
+
+        wakeup.set(false);
+        drain();
+        break;
+
+      case PUBLISH:
+        MQTTPublish publish = (MQTTPublish) message;
+        if (publish.getQoS() == AT_LEAST_ONCE) {
+          write(MQTTPuback.newInstance(identifier));
+        } else if (publish.getQoS() == EXACTLY_ONCE) {
+          write(MQTTPubrec.newInstance(identifier));
+          if (!session.received(publish))
+            return;
+        }
+
+        listener.received(publish);
+        break;
+
+      case PUBACK:
+      case SUBACK:
+      case UNSUBACK:
+        // The listener is told while the identifier is still in use, so it
+        // can't be confused with the next message that gets it
+        if (acknowledges(message.getType(), session.sent(identifier))) {
+          listener.received(message);
+          session.complete(identifier);
+        }
+        break;
+
+      case PUBREC:
+        MQTTPubrel pubrel = session.pubrec((MQTTPubrec) message);
+        if (pubrel != null)
+          write(pubrel);
+        break;
+
+      case PUBREL:
+        session.pubrel((MQTTPubrel) message);
+        write(MQTTPubcomp.newInstance(identifier));
+        break;
+
+      case PUBCOMP:
+        if (session.sent(identifier) instanceof MQTTPubrel) {
+          listener.received(message);
+          session.pubcomp((MQTTPubcomp) message);
+        }
+        break;
+
+      case PINGRESP:
+        pingSent = 0;
+        break;
+
+      default:
+        throw new MQTTException("Unexpected message type " + message.getType());
+    }
+  }
+
+  /**
+   * @return true if the acknowledgement is the one the sent message waits
+   * for, a PUBACK only completes a QoS 1 PUBLISH
+   */
+  private static boolean acknowledges(byte ack, MQTTMessage sent) {
+    switch (ack) {
+      case PUBACK:
+        return sent instanceof MQTTPublish && ((MQTTPublish) sent).getQoS() == AT_LEAST_ONCE;
+      case SUBACK:
+        return sent instanceof MQTTSubscribe;
+      case UNSUBACK:
+        return sent instanceof MQTTUnsubscribe;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Encode queued messages until the socket stops taking them
+   */
+  private void drain() throws IOException, MQTTException {
+    MQTTMessage message;
+
+    if (deferred != null) {
+      while ((message = deferred.peek()) != null) {
+        if (!encode(message))
+          return;
+        deferred.poll();
+      }
+    }
+
+    while (!disconnecting && (message = outbound.peek()) != null) {
+      if (!encode(message))
+        return;
+      outbound.poll();
+      queued.addAndGet(-message.encodedSize());
+    }
+  }
+
+  /**
+   * Encode a message from the I/O thread, or defer it if there is no room
+   */
+  private void write(MQTTMessage message) throws IOException, MQTTException {
+    if ((deferred != null && !deferred.isEmpty()) || !encode(message)) {
+      if (deferred == null)
+        deferred = new ArrayDeque<MQTTMessage>();
+      deferred.offer(message);
+    }
+  }
+
+  /**
+   * @return true if the message was encoded, false if the socket has to
+   * take what is pending first
+   */
+  private boolean encode(MQTTMessage message) throws IOException, MQTTException {
+    if (pending != null || large != null)
+      return false;
+
+    int size = message.encodedSize();
+
+    if (writeBuffer.remaining() < size) {
+      flush();
+      if (pending != null)
+        return false;
+
+      if (writeBuffer.remaining() < size) {
+        large = message.getBuffers();
+        written(message);
+        flush();
+        return true;
+      }
+    }
+
+    message.writeTo(writeBuffer);
+    written(message);
+    return true;
+  }
+
+  private void written(MQTTMessage message) {
+    packets++;
+    if (message.getType() == DISCONNECT)
+      disconnecting = true;
+  }
+
+  /**
+   * Write as much as the socket takes, keep the rest aside, and ask to be
+   * told when the socket takes more. The write buffer is empty afterwards.
+   */
+  private void flush() throws IOException {
+    if (channel == null || !channel.isConnected())
+      return;
+
+    long written = 0;
+    int writes = 0;
+
+    if (pending != null) {
+      written += channel.write(pending);
+      writes++;
+      if (!pending.hasRemaining())
+        pending = null;
+    }
+
+    if (writeBuffer.position() > 0) {
+      writeBuffer.flip();
+      if (pending == null) {
+        written += channel.write(writeBuffer);
+        writes++;
+      }
+      if (writeBuffer.hasRemaining())
+        park();
+      writeBuffer.clear();
+    }
+
+    if (pending == null && large != null) {
+      written += channel.write(large);
+      writes++;
+      if (!large[large.length - 1].hasRemaining())
+        large = null;
+    }
+
+    if (written > 0)
+      lastWrite = System.nanoTime();
+
+    if (writes > 0) {
+      if (coalescer != null)
+        coalescer.flushed(packets, writes, written);
+      packets = 0;
+    }
+
+    SelectionKey key = this.key;
+    if (key != null && key.isValid()) {
+      int ops = key.interestOps();
+      int wanted = pending != null || large != null ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE;
+      if (ops != wanted)
+        key.interestOps(wanted);
+    }
+  }
+
+  /**
+   * Copy what is left in the write buffer after what is already pending
+   */
+  private void park() {
+    ByteBuffer parked = ByteBuffer.allocate((pending == null ? 0 : pending.remaining()) + writeBuffer.remaining());
+    if (pending != null)
+      parked.put(pending);
+    parked.put(writeBuffer);
+    parked.flip();
+    pending = parked;
+  }
+
+  private boolean isWritePending() {
+    return pending != null || large != null || writeBuffer.position() > 0 || (deferred != null && !deferred.isEmpty());
+  }
+
+  private void enqueue(MQTTMessage message, int size) {
+    outbound.offer(message);
+    int total = queued.addAndGet(size);
+
+    if (message.getType() == DISCONNECT) {
+      urgent = true;
+    } else if (coalescer != null) {
+      if (total == size) {
+        // The first of a batch, the I/O thread learns when to write it
+        queuedSince = System.nanoTime();
+      } else if (total < coalescer.getFlushSize() || total - size >= coalescer.getFlushSize()) {
+        // Not due yet, or the I/O thread was told already
+        return;
+      }
+    }
+
+    if (wakeup.compareAndSet(false, true)) {
+      if (worker != null) {
+        worker.ready(this);
+      } else {
+        SelectionKey key = this.key;
+        if (key != null)
+          key.selector().wakeup();
+      }
+    }
+  }
+
+  /**
+   * @return a free package identifier
+   * @throws MQTTException if all are in use or the connection is closed
+   */
+  int identifier() throws MQTTException {
+    if (state == CLOSED)
+      throw new MQTTException("Connection closed");
+
+    int identifier = session.identifier();
+    if (identifier == 0)
+      throw new MQTTException("No free package identifier");
+    return identifier;
+  }
+
+  /**
+   * Validate a message on the calling thread, without encoding it; the I/O
+   * thread encodes it straight into the write buffer, and the message keeps
+   * its frame itself once it is retransmitted
+   *
+   * @return the size of the encoded message
+   */
+  private static int prepare(MQTTMessage message) throws MQTTException {
+    return message.verify();
+  }
+
+  /**
+   * Close the connection on the I/O thread
+   *
+   * @param cause the error that closed it, or null
+   */
+  void close(Exception cause) {
+    synchronized (this) {
+      if (state == CLOSED)
+        return;
+      state = CLOSED;
+    }
+
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // Closed either way
+      }
+    }
+
+    session.close();
+    if (worker != null)
+      worker.closed(this);
+
+    listener.closed(cause);
+  }
+
+}
@@ -0,0 +1,422 @@
+package se.wetcat.qatja.nio;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.wetcat.qatja.MQTTSessionRegistry;
+import se.wetcat.qatja.messages.MQTTConnect;
+import se.wetcat.qatja.messages.MQTTTopicCache;
+
+/**
+ * Serves a large number of {@link MQTTConnection}s on a few I/O threads,
+ * about one per processor, each with a selector of its own.
+ * <p>
+ * Connections are spread over the threads as they are opened. What a
+ * connection needs only while it is being served is shared: the direct read
+ * and write buffers belong to the thread, the messages in flight of all
+ * connections are kept in one {@link MQTTSessionRegistry}, and the topics in
+ * one {@link MQTTTopicCache}. Keep alives are timed by one
+ * {@link MQTTKeepAliveService} instead of a timer per connection. An idle
+ * connection costs a few hundred bytes besides its socket.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTConnectionManager implements Closeable {
+
+  /**
+   * Size of the read and write buffers of every I/O thread
+   */
+  public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+  private final Worker[] workers;
+
+  private final MQTTSessionRegistry registry = new MQTTSessionRegistry();
+
+  private final MQTTTopicCache topics = new MQTTTopicCache();
+
+  private final MQTTWriteCoalescer coalescer;
+
+  private final MQTTKeepAliveService keepAlive = new MQTTKeepAliveService();
+
+  private final AtomicInteger next = new AtomicInteger();
+
+  private final AtomicInteger size = new AtomicInteger();
+
+  private volatile boolean closed;
+
+  /**
+   * One I/O thread per processor
+   *
+   * @throws IOException if a selector can't be opened
+   */
+  public MQTTConnectionManager() throws IOException {
+    this(Runtime.getRuntime().availableProcessors(), DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param threads    the number of I/O threads
+   * @param bufferSize size of the direct read and write buffers of every
+   *                   thread
+   * @throws IOException if a selector can't be opened
+   */
+  public MQTTConnectionManager(int threads, int bufferSize) throws IOException {
+    this(threads, bufferSize, null);
+  }
+
+  /**
+   * @param threads    the number of I/O threads
+   * @param bufferSize size of the direct read and write buffers of every
+   *                   thread
+   * @param coalescer  when the queued messages of every connection are
+   *                   written, or null to write them right away
+   * @throws IOException if a selector can't be opened
+   */
+  public MQTTConnectionManager(int threads, int bufferSize, MQTTWriteCoalescer coalescer) throws IOException {
+    this.coalescer = coalescer;
+
+    if (threads < 1)
+      throw new IllegalArgumentException("At least one thread is needed, " + threads);
+
+    workers = new Worker[threads];
+    try {
+      for (int i = 0; i < threads; i++) {
+        workers[i] = new Worker(i, bufferSize);
+      }
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+
+    keepAlive.start();
+    for (Worker worker : workers) {
+      worker.thread.start();
+    }
+  }
+
+  /**
+   * Open a connection, it connects on one of the I/O threads
+   *
+   * @param address  the server
+   * @param connect  the CONNECT to open the session with
+   * @param listener receives the events of the connection, on its I/O thread
+   * @return the connection
+   */
+  public MQTTConnection open(SocketAddress address, MQTTConnect connect, MQTTConnection.Listener listener) {
+    if (closed)
+      throw new IllegalStateException("Manager is closed");
+
+    Worker worker = workers[(next.getAndIncrement() & Integer.MAX_VALUE) % workers.length];
+
+    MQTTConnection connection = new MQTTConnection(address, connect, listener, new MQTTSessionState.Registry(registry),
+        topics, worker.readBuffer, worker.writeBuffer, worker, coalescer);
+
+    size.incrementAndGet();
+    worker.register(connection);
+    return connection;
+  }
+
+  /**
+   * @return The number of open connections
+   */
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * @return The number of I/O threads
+   */
+  public int getThreads() {
+    return workers.length;
+  }
+
+  /**
+   * @return The messages in flight of every connection
+   */
+  public MQTTSessionRegistry getRegistry() {
+    return registry;
+  }
+
+  /**
+   * @return When queued messages are written, and how well they were
+   * coalesced, or null
+   */
+  public MQTTWriteCoalescer getCoalescer() {
+    return coalescer;
+  }
+
+  /**
+   * @return The keep alive timer of every connection
+   */
+  public MQTTKeepAliveService getKeepAlive() {
+    return keepAlive;
+  }
+
+  /**
+   * Close every connection, without a DISCONNECT, and stop the I/O threads
+   */
+  @Override
+  public void close() {
+    closed = true;
+    keepAlive.close();
+
+    for (Worker worker : workers) {
+      if (worker != null)
+        worker.selector.wakeup();
+    }
+
+    for (Worker worker : workers) {
+      if (worker == null || worker.thread == Thread.currentThread())
+        continue;
+
+      try {
+        worker.thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * An I/O thread and what its connections share
+   */
+  final class Worker implements Runnable {
+
+    private final Selector selector;
+
+    private final Thread thread;
+
+    private final ByteBuffer readBuffer;
+    private final ByteBuffer writeBuffer;
+
+    /**
+     * Connections waiting to be registered with the selector
+     */
+    private final Queue<MQTTConnection> registrations = new ConcurrentLinkedQueue<MQTTConnection>();
+
+    /**
+     * Connections with messages waiting to be encoded
+     */
+    private final Queue<MQTTConnection> ready = new ConcurrentLinkedQueue<MQTTConnection>();
+
+    /**
+     * Connections whose keep alive is due
+     */
+    private final Queue<MQTTConnection> due = new ConcurrentLinkedQueue<MQTTConnection>();
+
+    /**
+     * Connections with queued messages that aren't due yet, earliest first
+     */
+    private final PriorityQueue<Linger> lingering = new PriorityQueue<Linger>(16, Linger.BY_DEADLINE);
+
+    private Worker(int index, int bufferSize) throws IOException {
+      selector = Selector.open();
+      readBuffer = ByteBuffer.allocateDirect(bufferSize);
+      writeBuffer = ByteBuffer.allocateDirect(bufferSize);
+
+      thread = new Thread(this, "qatja-io-" + index);
+      thread.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      long early = keepAlive.getTickDuration(TimeUnit.NANOSECONDS);
+
+      try {
+        while (!closed) {
+          if (lingering.isEmpty())
+            selector.select();
+          else
+            selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(lingering.peek().deadline - System.nanoTime())));
+
+          MQTTConnection connection;
+          while ((connection = registrations.poll()) != null) {
+            try {
+              connection.connect(selector);
+            } catch (IOException e) {
+              // The connection has told its listener
+            } catch (RuntimeException e) {
+              failed(connection, e);
+            }
+          }
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            connection = (MQTTConnection) key.attachment();
+            try {
+              connection.process(key);
+            } catch (RuntimeException e) {
+              failed(connection, e);
+            }
+          }
+
+          long now = System.nanoTime();
+
+          while (!lingering.isEmpty() && now - lingering.peek().deadline >= 0) {
+            connection = lingering.poll().connection;
+            connection.lingering = false;
+            linger(connection, now);
+          }
+
+          while ((connection = ready.poll()) != null) {
+            linger(connection, now);
+          }
+
+          while ((connection = due.poll()) != null) {
+            try {
+              // Ping a tick early, the next check may come a tick late
+              long next = connection.keepAlive(now, early);
+              if (next > 0)
+                keepAlive.schedule(connection, now + TimeUnit.MILLISECONDS.toNanos(next));
+            } catch (RuntimeException e) {
+              failed(connection, e);
+            }
+          }
+        }
+      } catch (IOException e) {
+        // The selector is broken, the connections can't be served
+      } finally {
+        shutdown();
+      }
+    }
+
+    /**
+     * Write what is due, and come back for the rest when it is. A connection
+     * that is already lingering keeps its place, once due it lingers again
+     * if it has to.
+     */
+    private void linger(MQTTConnection connection, long now) {
+      long remaining;
+      try {
+        remaining = connection.drainQueued(now);
+      } catch (RuntimeException e) {
+        failed(connection, e);
+        return;
+      }
+
+      if (remaining > 0 && !connection.lingering) {
+        connection.lingering = true;
+        lingering.offer(new Linger(connection, now + remaining));
+      }
+    }
+
+    /**
+     * A connection threw, most likely its listener; only that connection is
+     * closed and the others are still served. Also closes the connections
+     * on shutdown, without a cause.
+     */
+    private void failed(MQTTConnection connection, RuntimeException e) {
+      try {
+        connection.close(e);
+      } catch (RuntimeException again) {
+        // Closed either way, the listener threw again
+      }
+    }
+
+    void register(MQTTConnection connection) {
+      registrations.offer(connection);
+      selector.wakeup();
+    }
+
+    void ready(MQTTConnection connection) {
+      ready.offer(connection);
+      selector.wakeup();
+    }
+
+    void due(MQTTConnection connection) {
+      due.offer(connection);
+      selector.wakeup();
+    }
+
+    void closed(MQTTConnection connection) {
+      keepAlive.cancel(connection);
+      size.decrementAndGet();
+    }
+
+    MQTTKeepAliveService getKeepAlive() {
+      return keepAlive;
+    }
+
+    private void shutdown() {
+      MQTTConnection connection;
+      while ((connection = registrations.poll()) != null) {
+        failed(connection, null);
+      }
+
+      lingering.clear();
+
+      if (selector.isOpen()) {
+        for (SelectionKey key : selector.keys().toArray(new SelectionKey[0])) {
+          failed((MQTTConnection) key.attachment(), null);
+        }
+
+        try {
+          selector.close();
+        } catch (IOException e) {
+          // Nothing left to do
+        }
+      }
+    }
+
+  }
+
+  /**
+   * A connection whose queued messages are due later
+   */
+  private static final class Linger {
+
+    /**
+     * Orders by {@link System#nanoTime()} deadline, comparing the difference
+     * so that it survives the clock wrapping around
+     */
+    private static final Comparator<Linger> BY_DEADLINE = new Comparator<Linger>() {
+      @Override
+      public int compare(Linger a, Linger b) {
+        long difference = a.deadline - b.deadline;
+        return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+      }
+    };
+
+    private final MQTTConnection connection;
+    private final long deadline;
+
+    private Linger(MQTTConnection connection, long deadline) {
+      this.connection = connection;
+      this.deadline = deadline;
+    }
+
+  }
+
+}
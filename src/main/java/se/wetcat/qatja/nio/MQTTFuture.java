@@ -0,0 +1,214 @@
+package se.wetcat.qatja.nio;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an operation of an {@link MQTTAsyncClient}, completed by the
+ * I/O thread when the server acknowledges it.
+ * <p>
+ * Either wait for it with {@link #get()}, or add a {@link Callback}; the
+ * callbacks are called on the thread that completes the future, usually the
+ * I/O thread, and shouldn't block. A callback that throws doesn't keep the
+ * others from being called, the first failure is thrown to whoever
+ * completed the future once all have been. A future costs its own few
+ * fields and its callbacks, no thread waits for it.
+ * <p>
+ * Messages can't be taken back once they are queued, so a future can't be
+ * cancelled.
+ *
+ * @param <V> the type of the result
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTFuture<V> implements Future<V> {
+
+  /**
+   * Told about the outcome of a future
+   *
+   * @param <V> the type of the result
+   */
+  public interface Callback<V> {
+
+    /**
+     * @param value the result
+     */
+    void completed(V value);
+
+    /**
+     * @param cause why the operation failed
+     */
+    void failed(Exception cause);
+
+  }
+
+  private boolean done;
+
+  private V value;
+
+  private Exception cause;
+
+  /**
+   * Callbacks added before completion, created when needed
+   */
+  private List<Callback<? super V>> callbacks;
+
+  /**
+   * Complete the future, unless it is already done
+   *
+   * @param value the result
+   * @return true if the future was completed by this call
+   * @throws RuntimeException the first that a callback threw, after all
+   *                          callbacks were called
+   */
+  boolean complete(V value) {
+    return finish(value, null);
+  }
+
+  /**
+   * Fail the future, unless it is already done
+   *
+   * @param cause why the operation failed
+   * @return true if the future was failed by this call
+   * @throws RuntimeException the first that a callback threw, after all
+   *                          callbacks were called
+   */
+  boolean fail(Exception cause) {
+    return finish(null, cause);
+  }
+
+  /**
+   * Call the callback when the future is done, right away if it already is
+   *
+   * @param callback the callback
+   */
+  public void addCallback(Callback<? super V> callback) {
+    synchronized (this) {
+      if (!done) {
+        if (callbacks == null)
+          callbacks = new ArrayList<Callback<? super V>>(2);
+        callbacks.add(callback);
+        return;
+      }
+    }
+
+    dispatch(callback);
+  }
+
+  /**
+   * @return false, the message is already queued
+   */
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return false;
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return false;
+  }
+
+  @Override
+  public synchronized boolean isDone() {
+    return done;
+  }
+
+  /**
+   * @return true if the future is done and failed
+   */
+  public synchronized boolean isFailed() {
+    return done && cause != null;
+  }
+
+  @Override
+  public synchronized V get() throws InterruptedException, ExecutionException {
+    while (!done) {
+      wait();
+    }
+    return result();
+  }
+
+  @Override
+  public synchronized V get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+    while (!done) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0)
+        throw new TimeoutException();
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return result();
+  }
+
+  private V result() throws ExecutionException {
+    if (cause != null)
+      throw new ExecutionException(cause);
+    return value;
+  }
+
+  private boolean finish(V value, Exception cause) {
+    List<Callback<? super V>> callbacks;
+
+    synchronized (this) {
+      if (done)
+        return false;
+
+      this.done = true;
+      this.value = value;
+      this.cause = cause;
+
+      callbacks = this.callbacks;
+      this.callbacks = null;
+      notifyAll();
+    }
+
+    if (callbacks != null) {
+      RuntimeException failure = null;
+
+      for (Callback<? super V> callback : callbacks) {
+        try {
+          dispatch(callback);
+        } catch (RuntimeException e) {
+          if (failure == null)
+            failure = e;
+        }
+      }
+
+      if (failure != null)
+        throw failure;
+    }
+    return true;
+  }
+
+  private void dispatch(Callback<? super V> callback) {
+    // Final once done, read without the lock
+    if (cause != null)
+      callback.failed(cause);
+    else
+      callback.completed(value);
+  }
+
+}
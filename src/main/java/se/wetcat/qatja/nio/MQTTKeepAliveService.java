@@ -0,0 +1,284 @@
+package se.wetcat.qatja.nio;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times the keep alives of many {@link MQTTConnection}s with one hashed
+ * timer wheel and one thread.
+ * <p>
+ * Every connected connection is in the wheel once, due when its keep alive
+ * runs out. The wheel doesn't follow every write: when a connection is due,
+ * its I/O thread checks when it last wrote, pings it only if it has been
+ * idle for the keep alive and otherwise puts it back at the new deadline. A
+ * connection whose PINGRESP doesn't arrive within the keep alive is closed
+ * as a dead peer. Pings are written from the one encoded frame of
+ * {@link se.wetcat.qatja.messages.MQTTPingreq#frame()}.
+ * <p>
+ * The wheel is linked through fields of the connections themselves, so
+ * scheduling and cancelling are O(1) and allocate nothing. A connection is
+ * checked up to one tick late.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTKeepAliveService implements Runnable, Closeable {
+
+  /**
+   * Resolution of the wheel in milliseconds
+   */
+  public static final long DEFAULT_TICK_DURATION = 100;
+
+  static final int WHEEL_SIZE = 512;
+
+  private final long tickDuration;
+
+  private final MQTTConnection[] buckets = new MQTTConnection[WHEEL_SIZE];
+
+  /**
+   * Connections that are due, collected before any of them is told
+   */
+  private MQTTConnection[] due = new MQTTConnection[16];
+
+  private final long origin;
+
+  private final Thread thread;
+
+  private final AtomicLong pings = new AtomicLong();
+
+  private final AtomicLong dead = new AtomicLong();
+
+  private long lastTick = -1;
+
+  private int size;
+
+  private volatile boolean closed;
+
+  public MQTTKeepAliveService() {
+    this(DEFAULT_TICK_DURATION, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @param tickDuration resolution of the wheel
+   * @param unit         the unit of the tick duration
+   */
+  public MQTTKeepAliveService(long tickDuration, TimeUnit unit) {
+    this(tickDuration, unit, System.nanoTime());
+  }
+
+  /**
+   * @param tickDuration resolution of the wheel
+   * @param unit         the unit of the tick duration
+   * @param origin       {@link System#nanoTime()} of tick 0, the times of
+   *                     {@link #tick(long)} and
+   *                     {@link #schedule(MQTTConnection, long)} are relative
+   *                     to it
+   */
+  MQTTKeepAliveService(long tickDuration, TimeUnit unit, long origin) {
+    if (unit.toNanos(tickDuration) < TimeUnit.MILLISECONDS.toNanos(1))
+      throw new IllegalArgumentException("Tick duration must be at least a millisecond, " + tickDuration + " " + unit);
+
+    this.tickDuration = unit.toNanos(tickDuration);
+    this.origin = origin;
+
+    thread = new Thread(this, "qatja-keepalive");
+    thread.setDaemon(true);
+  }
+
+  /**
+   * Start ticking on a thread of its own
+   *
+   * @return this service
+   */
+  public MQTTKeepAliveService start() {
+    thread.start();
+    return this;
+  }
+
+  @Override
+  public void run() {
+    long sleep = TimeUnit.NANOSECONDS.toMillis(tickDuration);
+
+    while (!closed) {
+      try {
+        Thread.sleep(sleep);
+      } catch (InterruptedException e) {
+        return;
+      }
+      tick(System.nanoTime());
+    }
+  }
+
+  /**
+   * Stop ticking, the connections are left as they are
+   */
+  @Override
+  public void close() {
+    closed = true;
+    thread.interrupt();
+  }
+
+  /**
+   * @param unit the unit of the result
+   * @return Resolution of the wheel
+   */
+  public long getTickDuration(TimeUnit unit) {
+    return unit.convert(tickDuration, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @return The number of connections in the wheel
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * @return PINGREQs sent
+   */
+  public long getPings() {
+    return pings.get();
+  }
+
+  /**
+   * @return Connections closed for a missing PINGRESP
+   */
+  public long getDead() {
+    return dead.get();
+  }
+
+  /**
+   * Hand every connection that is due to its I/O thread
+   *
+   * @param now {@link System#nanoTime()}
+   * @return the number of connections that were due
+   */
+  public int tick(long now) {
+    MQTTConnection[] fire;
+    int count = 0;
+
+    synchronized (this) {
+      long current = (now - origin) / tickDuration;
+
+      long from = lastTick < 0 ? current : lastTick + 1;
+      // One turn of the wheel visits every bucket
+      if (current - from >= WHEEL_SIZE)
+        from = current - WHEEL_SIZE + 1;
+      lastTick = Math.max(lastTick, current);
+
+      for (long tick = from; tick <= current; tick++) {
+        MQTTConnection connection = buckets[(int) (tick & (WHEEL_SIZE - 1))];
+
+        while (connection != null) {
+          MQTTConnection following = connection.wheelNext;
+
+          if (connection.wheelTick <= current) {
+            unlink(connection);
+            if (count == due.length)
+              due = Arrays.copyOf(due, count * 2);
+            due[count++] = connection;
+          }
+
+          connection = following;
+        }
+      }
+
+      if (count == 0)
+        return 0;
+
+      fire = Arrays.copyOf(due, count);
+      Arrays.fill(due, 0, count, null);
+    }
+
+    // The I/O threads are told without the lock
+    for (MQTTConnection connection : fire) {
+      connection.keepAliveDue();
+    }
+
+    return count;
+  }
+
+  /**
+   * Check the connection at the deadline, replacing an earlier deadline
+   *
+   * @param deadline {@link System#nanoTime()} of the check
+   */
+  synchronized void schedule(MQTTConnection connection, long deadline) {
+    if (connection.wheelLinked)
+      unlink(connection);
+
+    // Round up, a connection is never checked early
+    long tick = (deadline - origin + tickDuration - 1) / tickDuration;
+    if (tick <= lastTick)
+      tick = lastTick + 1;
+
+    connection.wheelTick = tick;
+    connection.wheelLinked = true;
+
+    int bucket = (int) (tick & (WHEEL_SIZE - 1));
+    MQTTConnection head = buckets[bucket];
+
+    connection.wheelNext = head;
+    connection.wheelPrev = null;
+    if (head != null)
+      head.wheelPrev = connection;
+    buckets[bucket] = connection;
+
+    size++;
+  }
+
+  /**
+   * Take the connection out of the wheel, when it is closed
+   */
+  synchronized void cancel(MQTTConnection connection) {
+    if (connection.wheelLinked)
+      unlink(connection);
+  }
+
+  void pinged() {
+    pings.incrementAndGet();
+  }
+
+  void dead() {
+    dead.incrementAndGet();
+  }
+
+  private void unlink(MQTTConnection connection) {
+    MQTTConnection before = connection.wheelPrev;
+    MQTTConnection after = connection.wheelNext;
+
+    if (before != null)
+      before.wheelNext = after;
+    else
+      buckets[(int) (connection.wheelTick & (WHEEL_SIZE - 1))] = after;
+
+    if (after != null)
+      after.wheelPrev = before;
+
+    connection.wheelNext = null;
+    connection.wheelPrev = null;
+    connection.wheelLinked = false;
+
+    size--;
+  }
+
+}
@@ -0,0 +1,260 @@
+package se.wetcat.qatja.nio;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import se.wetcat.qatja.MQTTException;
+import se.wetcat.qatja.MQTTExactlyOnce;
+import se.wetcat.qatja.MQTTIdentifierHelper;
+import se.wetcat.qatja.MQTTSessionRegistry;
+import se.wetcat.qatja.messages.MQTTMessage;
+import se.wetcat.qatja.messages.MQTTPubcomp;
+import se.wetcat.qatja.messages.MQTTPublish;
+import se.wetcat.qatja.messages.MQTTPubrec;
+import se.wetcat.qatja.messages.MQTTPubrel;
+
+import static se.wetcat.qatja.MQTTConstants.EXACTLY_ONCE;
+
+/**
+ * The package identifiers and messages in flight of one
+ * {@link MQTTConnection}, either in an {@link MQTTIdentifierHelper} of its
+ * own, or as a session of a {@link MQTTSessionRegistry} shared by many
+ * connections.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+abstract class MQTTSessionState {
+
+  /**
+   * @return a free package identifier, or 0 if all are in use
+   */
+  abstract int identifier();
+
+  /**
+   * Release an identifier that was never sent
+   */
+  abstract void release(int identifier);
+
+  /**
+   * @return the sent message in flight with the identifier, or null
+   */
+  abstract MQTTMessage sent(int identifier);
+
+  /**
+   * A message with a package identifier is about to be sent
+   *
+   * @throws MQTTException if a QoS 2 exchange with the identifier is already
+   *                       in progress, nothing is then changed
+   */
+  abstract void send(MQTTMessage message) throws MQTTException;
+
+  /**
+   * A PUBACK, SUBACK or UNSUBACK arrived
+   *
+   * @return true if it completed a message in flight
+   */
+  abstract boolean complete(int identifier);
+
+  /**
+   * @return the PUBREL to send, or null
+   * @see MQTTExactlyOnce#pubrec(MQTTPubrec)
+   */
+  abstract MQTTPubrel pubrec(MQTTPubrec pubrec);
+
+  /**
+   * @see MQTTExactlyOnce#pubcomp(MQTTPubcomp)
+   */
+  abstract boolean pubcomp(MQTTPubcomp pubcomp);
+
+  /**
+   * @see MQTTExactlyOnce#received(MQTTPublish)
+   */
+  abstract boolean received(MQTTPublish publish);
+
+  /**
+   * @see MQTTExactlyOnce#pubrel(MQTTPubrel)
+   */
+  abstract void pubrel(MQTTPubrel pubrel);
+
+  /**
+   * The connection is closed
+   */
+  abstract void close();
+
+  /**
+   * State of a connection of its own, kept in a helper
+   */
+  static class Helper extends MQTTSessionState {
+
+    final MQTTIdentifierHelper helper = new MQTTIdentifierHelper();
+    final MQTTExactlyOnce exactlyOnce = new MQTTExactlyOnce(helper);
+
+    @Override
+    int identifier() {
+      return helper.getIdentifier();
+    }
+
+    @Override
+    void release(int identifier) {
+      helper.releaseIdentifier(identifier);
+    }
+
+    @Override
+    MQTTMessage sent(int identifier) {
+      return helper.getSentPackages().get(identifier);
+    }
+
+    @Override
+    void send(MQTTMessage message) throws MQTTException {
+      if (!(message instanceof MQTTPublish) || ((MQTTPublish) message).getQoS() != EXACTLY_ONCE)
+        helper.addSentPackage(message);
+      else if (!exactlyOnce.publish((MQTTPublish) message))
+        throw new MQTTException("Package identifier " + message.getPackageIdentifier() + " already in flight");
+    }
+
+    @Override
+    boolean complete(int identifier) {
+      MQTTMessage sent = helper.getSentPackages().get(identifier);
+      if (sent == null)
+        return false;
+
+      helper.removeSentPackage(sent);
+      return true;
+    }
+
+    @Override
+    MQTTPubrel pubrec(MQTTPubrec pubrec) {
+      return exactlyOnce.pubrec(pubrec);
+    }
+
+    @Override
+    boolean pubcomp(MQTTPubcomp pubcomp) {
+      return exactlyOnce.pubcomp(pubcomp);
+    }
+
+    @Override
+    boolean received(MQTTPublish publish) {
+      return exactlyOnce.received(publish);
+    }
+
+    @Override
+    void pubrel(MQTTPubrel pubrel) {
+      exactlyOnce.pubrel(pubrel);
+    }
+
+    @Override
+    void close() {
+      // Messages in flight are kept for the next connection
+    }
+
+  }
+
+  /**
+   * State of a connection among many, a session of a shared registry. The
+   * QoS 2 stage is told by what is in flight: a PUBLISH waits for PUBREC, a
+   * PUBREL for PUBCOMP, and a received identifier for PUBREL.
+   */
+  static class Registry extends MQTTSessionState {
+
+    private final MQTTSessionRegistry registry;
+    private final int session;
+
+    Registry(MQTTSessionRegistry registry) {
+      this.registry = registry;
+      this.session = registry.open();
+    }
+
+    @Override
+    int identifier() {
+      return registry.getIdentifier(session);
+    }
+
+    @Override
+    void release(int identifier) {
+      registry.releaseIdentifier(session, identifier);
+    }
+
+    @Override
+    MQTTMessage sent(int identifier) {
+      return registry.getSentPackage(session, identifier);
+    }
+
+    @Override
+    void send(MQTTMessage message) {
+      registry.addSentPackage(session, message);
+    }
+
+    @Override
+    boolean complete(int identifier) {
+      MQTTMessage sent = registry.getSentPackage(session, identifier);
+      if (sent == null)
+        return false;
+
+      registry.removeSentPackage(session, sent);
+      return true;
+    }
+
+    @Override
+    MQTTPubrel pubrec(MQTTPubrec pubrec) {
+      MQTTMessage sent = registry.getSentPackage(session, pubrec.getPackageIdentifier());
+
+      if (sent instanceof MQTTPublish && ((MQTTPublish) sent).getQoS() == EXACTLY_ONCE) {
+        // Replacing the PUBLISH releases its payload
+        MQTTPubrel pubrel = MQTTPubrel.newInstance(pubrec.getPackageIdentifier());
+        registry.addSentPackage(session, pubrel);
+        return pubrel;
+      }
+
+      // The PUBREL was lost, send it again
+      return sent instanceof MQTTPubrel ? (MQTTPubrel) sent : null;
+    }
+
+    @Override
+    boolean pubcomp(MQTTPubcomp pubcomp) {
+      MQTTMessage sent = registry.getSentPackage(session, pubcomp.getPackageIdentifier());
+      if (!(sent instanceof MQTTPubrel))
+        return false;
+
+      registry.removeSentPackage(session, sent);
+      return true;
+    }
+
+    @Override
+    boolean received(MQTTPublish publish) {
+      int identifier = publish.getPackageIdentifier();
+      if (registry.getReceivedPackage(session, identifier) != null)
+        return false;
+
+      // Only the identifier is kept, not the payload
+      registry.addReceivedPackage(session, MQTTPubrec.newInstance(identifier));
+      return true;
+    }
+
+    @Override
+    void pubrel(MQTTPubrel pubrel) {
+      registry.removeReceivedPackage(session, pubrel);
+    }
+
+    @Override
+    void close() {
+      registry.close(session);
+    }
+
+  }
+
+}
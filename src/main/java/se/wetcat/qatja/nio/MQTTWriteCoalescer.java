@@ -0,0 +1,171 @@
+package se.wetcat.qatja.nio;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When the messages queued on an {@link MQTTConnection} are written, and how
+ * well they were coalesced, a tunable Nagle.
+ * <p>
+ * Queued messages are held back until either {@link #getFlushSize()} bytes
+ * are queued or the oldest has waited {@link #getLinger(TimeUnit)}, and then
+ * encoded back to back into the write buffer and written together, so one
+ * write and one wake up of the I/O thread carry many small messages. The
+ * acknowledgements, pings and DISCONNECT of the connection are never held
+ * back.
+ * <p>
+ * One coalescer can be shared by many connections, for example all of a
+ * {@link MQTTConnectionManager}, the statistics are then the sum of them.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTWriteCoalescer {
+
+  /**
+   * Bytes to queue before writing, a few TCP segments
+   */
+  public static final int DEFAULT_FLUSH_SIZE = 8192;
+
+  /**
+   * Longest wait of a queued message, in milliseconds
+   */
+  public static final long DEFAULT_LINGER = 5;
+
+  private final int flushSize;
+
+  private final long linger;
+
+  private final AtomicLong packets = new AtomicLong();
+
+  private final AtomicLong writes = new AtomicLong();
+
+  private final AtomicLong bytes = new AtomicLong();
+
+  /**
+   * Flush at {@link #DEFAULT_FLUSH_SIZE} bytes or after
+   * {@link #DEFAULT_LINGER} milliseconds
+   */
+  public MQTTWriteCoalescer() {
+    this(DEFAULT_FLUSH_SIZE, DEFAULT_LINGER, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @param flushSize bytes to queue before writing, 0 to write right away
+   *                  and only count
+   * @param linger    longest wait of a queued message
+   * @param unit      unit of the linger
+   */
+  public MQTTWriteCoalescer(int flushSize, long linger, TimeUnit unit) {
+    if (flushSize < 0)
+      throw new IllegalArgumentException("Negative flush size " + flushSize);
+    if (linger < 0)
+      throw new IllegalArgumentException("Negative linger " + linger);
+
+    this.flushSize = flushSize;
+    this.linger = unit.toNanos(linger);
+  }
+
+  /**
+   * @return Bytes to queue before writing
+   */
+  public int getFlushSize() {
+    return flushSize;
+  }
+
+  /**
+   * @param unit the unit of the result
+   * @return Longest wait of a queued message
+   */
+  public long getLinger(TimeUnit unit) {
+    return unit.convert(linger, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @return Messages written
+   */
+  public long getPackets() {
+    return packets.get();
+  }
+
+  /**
+   * @return Writes to the sockets, one system call each
+   */
+  public long getWrites() {
+    return writes.get();
+  }
+
+  /**
+   * @return Bytes written
+   */
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  /**
+   * @return Messages per write, 0 before the first write
+   */
+  public double getPacketsPerWrite() {
+    long writes = this.writes.get();
+    return writes == 0 ? 0 : (double) packets.get() / writes;
+  }
+
+  /**
+   * Start the statistics over
+   */
+  public void reset() {
+    packets.set(0);
+    writes.set(0);
+    bytes.set(0);
+  }
+
+  /**
+   * @return true if messages queued since the oldest of them should be
+   * written now
+   */
+  boolean isDue(int queued, long oldest, long now) {
+    return queued >= flushSize || now - oldest >= linger;
+  }
+
+  /**
+   * @return how long messages queued since the oldest of them may still
+   * wait, in nanoseconds
+   */
+  long remaining(long oldest, long now) {
+    return oldest + linger - now;
+  }
+
+  /**
+   * A connection wrote to its socket
+   */
+  void flushed(int packets, int writes, long bytes) {
+    if (packets != 0)
+      this.packets.addAndGet(packets);
+    this.writes.addAndGet(writes);
+    this.bytes.addAndGet(bytes);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d packets in %d writes, %.1f per write, %d bytes", getPackets(), getWrites(),
+        getPacketsPerWrite(), getBytes());
+  }
+
+}
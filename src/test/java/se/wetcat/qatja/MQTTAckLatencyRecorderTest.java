@@ -0,0 +1,125 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import se.wetcat.qatja.messages.MQTTPublish;
+import se.wetcat.qatja.messages.MQTTPubrel;
+import se.wetcat.qatja.messages.MQTTSubscribe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static se.wetcat.qatja.MQTTConstants.AT_LEAST_ONCE;
+import static se.wetcat.qatja.MQTTConstants.AT_MOST_ONCE;
+import static se.wetcat.qatja.MQTTConstants.EXACTLY_ONCE;
+
+/**
+ * Tests of {@link MQTTAckLatencyRecorder} attached to a
+ * {@link MQTTIdentifierHelper}
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTAckLatencyRecorderTest {
+
+  private MQTTIdentifierHelper helper;
+
+  private MQTTAckLatencyRecorder recorder;
+
+  @Before
+  public void setUp() {
+    helper = new MQTTIdentifierHelper();
+    recorder = new MQTTAckLatencyRecorder();
+    helper.setLatencyRecorder(recorder);
+  }
+
+  @Test
+  public void recordsAtLeastOnceRoundTrip() throws InterruptedException {
+    MQTTPublish publish = publish(1, AT_LEAST_ONCE);
+    helper.addSentPackage(publish);
+    Thread.sleep(5);
+    helper.removeSentPackage(publish);
+
+    MQTTLatencyHistogram.Snapshot snapshot = recorder.snapshot(AT_LEAST_ONCE);
+    assertEquals(1, snapshot.getCount());
+    assertTrue(snapshot.getMax() >= TimeUnit.MILLISECONDS.toNanos(5));
+    assertEquals(0, recorder.snapshot(EXACTLY_ONCE).getCount());
+
+    // A second remove records nothing
+    helper.removeSentPackage(publish);
+    assertEquals(1, recorder.snapshot(AT_LEAST_ONCE).getCount());
+  }
+
+  @Test
+  public void exactlyOnceIsTimedUntilPubcomp() throws InterruptedException {
+    helper.addSentPackage(publish(2, EXACTLY_ONCE));
+    Thread.sleep(5);
+    // The PUBREL replaces the PUBLISH without restarting the clock
+    MQTTPubrel pubrel = MQTTPubrel.newInstance(2);
+    helper.addSentPackage(pubrel);
+    helper.removeSentPackage(pubrel);
+
+    MQTTLatencyHistogram.Snapshot snapshot = recorder.snapshot(EXACTLY_ONCE);
+    assertEquals(1, snapshot.getCount());
+    assertTrue(snapshot.getMax() >= TimeUnit.MILLISECONDS.toNanos(5));
+    assertEquals(0, recorder.snapshot(AT_LEAST_ONCE).getCount());
+  }
+
+  @Test
+  public void ignoresOtherMessages() {
+    MQTTSubscribe subscribe = MQTTSubscribe.newInstance(new String[]{"qatja/#"}, new byte[]{AT_LEAST_ONCE}, 3);
+    helper.addSentPackage(subscribe);
+    helper.removeSentPackage(subscribe);
+
+    MQTTPublish publish = publish(4, AT_MOST_ONCE);
+    helper.addSentPackage(publish);
+    helper.removeSentPackage(publish);
+
+    assertEquals(0, recorder.snapshot(AT_LEAST_ONCE).getCount());
+    assertEquals(0, recorder.snapshot(EXACTLY_ONCE).getCount());
+  }
+
+  @Test
+  public void resetKeepsMessagesInFlight() {
+    MQTTPublish done = publish(5, AT_LEAST_ONCE);
+    helper.addSentPackage(done);
+    helper.removeSentPackage(done);
+
+    MQTTPublish inFlight = publish(6, AT_LEAST_ONCE);
+    helper.addSentPackage(inFlight);
+    recorder.reset();
+    assertEquals(0, recorder.snapshot(AT_LEAST_ONCE).getCount());
+
+    helper.removeSentPackage(inFlight);
+    assertEquals(1, recorder.snapshot(AT_LEAST_ONCE).getCount());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void noHistogramForAtMostOnce() {
+    recorder.getHistogram(AT_MOST_ONCE);
+  }
+
+  private static MQTTPublish publish(int identifier, byte QoS) {
+    return MQTTPublish.newInstance("qatja/test", new byte[]{1, 2, 3}, QoS, identifier);
+  }
+
+}
@@ -0,0 +1,129 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import se.wetcat.qatja.messages.MQTTPublish;
+import se.wetcat.qatja.messages.MQTTPublishView;
+import se.wetcat.qatja.messages.MQTTPubrel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static se.wetcat.qatja.MQTTConstants.AT_LEAST_ONCE;
+import static se.wetcat.qatja.MQTTConstants.AT_MOST_ONCE;
+import static se.wetcat.qatja.MQTTConstants.EXACTLY_ONCE;
+
+/**
+ * Tests of {@link MQTTDuplicateFilter}
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTDuplicateFilterTest {
+
+  private static final byte[] PAYLOAD = {1, 2, 3};
+
+  @Test
+  public void dropsRedelivery() {
+    MQTTDuplicateFilter filter = new MQTTDuplicateFilter();
+
+    assertTrue(filter.accept(publish(5, "qatja/a", PAYLOAD, AT_LEAST_ONCE, false)));
+    assertFalse(filter.accept(publish(5, "qatja/a", PAYLOAD, AT_LEAST_ONCE, true)));
+    assertEquals(1, filter.getDropped());
+  }
+
+  @Test
+  public void acceptsNewMessageWithoutDup() {
+    MQTTDuplicateFilter filter = new MQTTDuplicateFilter();
+
+    assertTrue(filter.accept(publish(5, "qatja/a", PAYLOAD, AT_LEAST_ONCE, false)));
+    assertTrue(filter.accept(publish(5, "qatja/a", PAYLOAD, AT_LEAST_ONCE, false)));
+  }
+
+  @Test
+  public void acceptsAtMostOnce() {
+    MQTTDuplicateFilter filter = new MQTTDuplicateFilter();
+
+    assertTrue(filter.accept(publish(0, "qatja/a", PAYLOAD, AT_MOST_ONCE, false)));
+    assertTrue(filter.accept(publish(0, "qatja/a", PAYLOAD, AT_MOST_ONCE, true)));
+  }
+
+  @Test
+  public void topicIsPartOfFingerprint() {
+    MQTTDuplicateFilter filter = new MQTTDuplicateFilter();
+
+    assertTrue(filter.accept(publish(5, "qatja/a", PAYLOAD, AT_LEAST_ONCE, false)));
+    assertTrue(filter.accept(publish(5, "qatja/b", PAYLOAD, AT_LEAST_ONCE, true)));
+  }
+
+  @Test
+  public void acceptsReusedIdentifierAfterCompletion() {
+    MQTTDuplicateFilter filter = new MQTTDuplicateFilter();
+
+    assertTrue(filter.accept(publish(5, "qatja/a", PAYLOAD, AT_LEAST_ONCE, false)));
+    filter.completed(5);
+
+    // The identifier is reused for a new message with the same payload,
+    // its first delivery is lost and it arrives with DUP set
+    assertTrue(filter.accept(publish(5, "qatja/a", PAYLOAD, AT_LEAST_ONCE, true)));
+    // A redelivery of the new message is still dropped
+    assertFalse(filter.accept(publish(5, "qatja/a", PAYLOAD, AT_LEAST_ONCE, true)));
+  }
+
+  @Test
+  public void pubrelCompletesIdentifier() {
+    MQTTDuplicateFilter filter = new MQTTDuplicateFilter();
+    MQTTExactlyOnce exactlyOnce = new MQTTExactlyOnce(new MQTTIdentifierHelper());
+    exactlyOnce.setDuplicateFilter(filter);
+
+    MQTTPublish first = publish(5, "qatja/a", PAYLOAD, EXACTLY_ONCE, false);
+    assertTrue(exactlyOnce.received(first));
+    assertTrue(filter.accept(first));
+    assertTrue(exactlyOnce.pubrel(MQTTPubrel.newInstance(5)));
+
+    MQTTPublish second = publish(5, "qatja/a", PAYLOAD, EXACTLY_ONCE, true);
+    assertTrue(exactlyOnce.received(second));
+    assertTrue(filter.accept(second));
+  }
+
+  @Test
+  public void viewAndMessageShareFingerprint() throws Exception {
+    MQTTDuplicateFilter filter = new MQTTDuplicateFilter();
+    String topic = "qatja/\u00e5\u20ac\ud83d\ude00";
+
+    byte[] frame = publish(5, topic, PAYLOAD, AT_LEAST_ONCE, false).get();
+    assertTrue(filter.accept(new MQTTPublishView().wrap(ByteBuffer.wrap(frame))));
+    assertFalse(filter.accept(publish(5, topic, PAYLOAD, AT_LEAST_ONCE, true)));
+
+    frame = publish(6, topic, PAYLOAD, AT_LEAST_ONCE, true).get();
+    assertTrue(filter.accept(publish(6, topic, PAYLOAD, AT_LEAST_ONCE, false)));
+    assertFalse(filter.accept(new MQTTPublishView().wrap(ByteBuffer.wrap(frame))));
+  }
+
+  private static MQTTPublish publish(int identifier, String topic, byte[] payload, byte QoS, boolean dup) {
+    MQTTPublish publish = MQTTPublish.newInstance(topic, payload, QoS, identifier);
+    if (dup)
+      publish.setDup();
+    return publish;
+  }
+
+}
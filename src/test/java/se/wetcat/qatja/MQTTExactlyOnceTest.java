@@ -0,0 +1,161 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+
+import org.junit.Test;
+
+import se.wetcat.qatja.messages.MQTTPubcomp;
+import se.wetcat.qatja.messages.MQTTPublish;
+import se.wetcat.qatja.messages.MQTTPubrec;
+import se.wetcat.qatja.messages.MQTTPubrel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static se.wetcat.qatja.MQTTConstants.AT_LEAST_ONCE;
+import static se.wetcat.qatja.MQTTConstants.EXACTLY_ONCE;
+import static se.wetcat.qatja.MQTTExactlyOnce.IDLE;
+import static se.wetcat.qatja.MQTTExactlyOnce.PUBLISHED;
+import static se.wetcat.qatja.MQTTExactlyOnce.RECEIVED;
+import static se.wetcat.qatja.MQTTExactlyOnce.RELEASED;
+
+/**
+ * Tests of {@link MQTTExactlyOnce}
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTExactlyOnceTest {
+
+  private final MQTTIdentifierHelper helper = new MQTTIdentifierHelper();
+
+  private final MQTTExactlyOnce exactlyOnce = new MQTTExactlyOnce(helper);
+
+  @Test
+  public void senderHandshake() {
+    MQTTPublish publish = publish(7);
+
+    assertTrue(exactlyOnce.publish(publish));
+    assertEquals(PUBLISHED, exactlyOnce.getSenderState(7));
+    assertSame(publish, helper.getSentPackages().get(7));
+
+    MQTTPubrel pubrel = exactlyOnce.pubrec(MQTTPubrec.newInstance(7));
+    assertEquals(7, pubrel.getPackageIdentifier());
+    assertEquals(RELEASED, exactlyOnce.getSenderState(7));
+    // The PUBREL replaces the PUBLISH
+    assertSame(pubrel, helper.getSentPackages().get(7));
+
+    // A PUBREC again means the PUBREL was lost
+    assertSame(pubrel, exactlyOnce.pubrec(MQTTPubrec.newInstance(7)));
+
+    assertTrue(exactlyOnce.pubcomp(MQTTPubcomp.newInstance(7)));
+    assertEquals(IDLE, exactlyOnce.getSenderState(7));
+    assertTrue(helper.getSentPackages().isEmpty());
+    assertFalse(exactlyOnce.pubcomp(MQTTPubcomp.newInstance(7)));
+  }
+
+  @Test
+  public void senderRejectsOutOfOrder() {
+    assertNull(exactlyOnce.pubrec(MQTTPubrec.newInstance(7)));
+    assertFalse(exactlyOnce.pubcomp(MQTTPubcomp.newInstance(7)));
+
+    assertTrue(exactlyOnce.publish(publish(7)));
+    // PUBCOMP before PUBREC
+    assertFalse(exactlyOnce.pubcomp(MQTTPubcomp.newInstance(7)));
+    assertEquals(PUBLISHED, exactlyOnce.getSenderState(7));
+
+    // The identifier is taken until the exchange completes
+    assertFalse(exactlyOnce.publish(publish(7)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void publishRejectsOtherQoS() {
+    exactlyOnce.publish(MQTTPublish.newInstance("qatja/test", new byte[]{1}, AT_LEAST_ONCE, 7));
+  }
+
+  @Test
+  public void receiverHandshake() {
+    assertTrue(exactlyOnce.received(publish(7)));
+    assertEquals(RECEIVED, exactlyOnce.getReceiverState(7));
+
+    // A redelivery before the PUBREL
+    assertFalse(exactlyOnce.received(publish(7)));
+
+    assertTrue(exactlyOnce.pubrel(MQTTPubrel.newInstance(7)));
+    assertEquals(IDLE, exactlyOnce.getReceiverState(7));
+    assertFalse(exactlyOnce.pubrel(MQTTPubrel.newInstance(7)));
+
+    // The identifier may be reused
+    assertTrue(exactlyOnce.received(publish(7)));
+  }
+
+  @Test
+  public void recoversSenderState() {
+    helper.addSentPackage(publish(1));
+    helper.addSentPackage(MQTTPubrel.newInstance(2));
+    helper.addSentPackage(MQTTPublish.newInstance("qatja/test", new byte[]{1}, AT_LEAST_ONCE, 3));
+
+    exactlyOnce.recover();
+
+    assertEquals(PUBLISHED, exactlyOnce.getSenderState(1));
+    assertEquals(RELEASED, exactlyOnce.getSenderState(2));
+    assertEquals(IDLE, exactlyOnce.getSenderState(3));
+  }
+
+  @Test
+  public void failedPublishIsRolledBack() throws Exception {
+    File file = File.createTempFile("qatja", ".journal");
+    File compacted = new File(file.getPath() + ".compact");
+    assertTrue(file.delete());
+
+    try {
+      MQTTJournal journal = MQTTJournal.open(file, 64);
+      helper.setJournal(journal);
+      // The journal can neither fit the message nor be compacted
+      assertTrue(compacted.mkdir());
+
+      try {
+        exactlyOnce.publish(MQTTPublish.newInstance("qatja/test", new byte[128], EXACTLY_ONCE, 7));
+        fail("Journal should be full");
+      } catch (IllegalStateException e) {
+        // Expected
+      }
+
+      assertEquals(IDLE, exactlyOnce.getSenderState(7));
+      assertTrue(helper.getSentPackages().isEmpty());
+
+      // The identifier can be used once the journal has room
+      helper.setJournal(null);
+      assertTrue(exactlyOnce.publish(publish(7)));
+      journal.close();
+    } finally {
+      compacted.delete();
+      file.delete();
+    }
+  }
+
+  private static MQTTPublish publish(int identifier) {
+    return MQTTPublish.newInstance("qatja/test", new byte[]{1, 2, 3}, EXACTLY_ONCE, identifier);
+  }
+
+}
@@ -0,0 +1,192 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link MQTTIdentifierAllocator}, from many threads at once
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTIdentifierAllocatorTest {
+
+  private static final int THREADS = 8;
+
+  @Test
+  public void allocatesInRange() {
+    MQTTIdentifierAllocator allocator = new MQTTIdentifierAllocator();
+
+    int identifier = allocator.allocate();
+    assertTrue(identifier >= 1 && identifier <= MQTTIdentifierAllocator.MAX_IDENTIFIER);
+    assertTrue(allocator.isAllocated(identifier));
+    assertEquals(1, allocator.getAllocated());
+
+    assertTrue(allocator.release(identifier));
+    assertFalse(allocator.release(identifier));
+    assertEquals(0, allocator.getAllocated());
+  }
+
+  @Test
+  public void concurrentClaimsAreUnique() throws InterruptedException {
+    final MQTTIdentifierAllocator allocator = new MQTTIdentifierAllocator();
+    final AtomicIntegerArray owners = new AtomicIntegerArray(MQTTIdentifierAllocator.MAX_IDENTIFIER + 1);
+    final AtomicInteger total = new AtomicInteger();
+    final AtomicInteger duplicates = new AtomicInteger();
+
+    // Every thread claims until none is left
+    run(new Task() {
+      @Override
+      public void run(int thread) {
+        int identifier;
+        while ((identifier = allocator.allocate()) != 0) {
+          if (!owners.compareAndSet(identifier, 0, thread + 1))
+            duplicates.incrementAndGet();
+          total.incrementAndGet();
+        }
+      }
+    });
+
+    assertEquals(0, duplicates.get());
+    assertEquals(MQTTIdentifierAllocator.MAX_IDENTIFIER, total.get());
+    assertEquals(MQTTIdentifierAllocator.MAX_IDENTIFIER, allocator.getAllocated());
+    assertEquals(0, allocator.allocate());
+  }
+
+  @Test
+  public void concurrentClaimAndReleaseNeverHandsOutTwice() throws InterruptedException {
+    final MQTTIdentifierAllocator allocator = new MQTTIdentifierAllocator();
+    final AtomicIntegerArray owners = new AtomicIntegerArray(MQTTIdentifierAllocator.MAX_IDENTIFIER + 1);
+    final AtomicInteger duplicates = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+
+    // Every thread keeps a few hundred identifiers in flight and releases
+    // the oldest as it claims new ones
+    run(new Task() {
+      @Override
+      public void run(int thread) {
+        Deque<Integer> held = new ArrayDeque<Integer>();
+
+        for (int i = 0; i < 100000; i++) {
+          int identifier = allocator.allocate();
+          if (identifier == 0) {
+            failed.incrementAndGet();
+          } else {
+            if (!owners.compareAndSet(identifier, 0, thread + 1))
+              duplicates.incrementAndGet();
+            held.addLast(identifier);
+          }
+
+          if (held.size() > 500 || (identifier == 0 && !held.isEmpty())) {
+            int oldest = held.removeFirst();
+            owners.set(oldest, 0);
+            if (!allocator.release(oldest))
+              failed.incrementAndGet();
+          }
+        }
+
+        for (int identifier : held) {
+          owners.set(identifier, 0);
+          allocator.release(identifier);
+        }
+      }
+    });
+
+    assertEquals(0, duplicates.get());
+    assertEquals(0, failed.get());
+    assertEquals(0, allocator.getAllocated());
+    for (int identifier = 1; identifier <= MQTTIdentifierAllocator.MAX_IDENTIFIER; identifier++) {
+      assertFalse(allocator.isAllocated(identifier));
+    }
+  }
+
+  @Test
+  public void concurrentReservesOfOneIdentifierHaveOneWinner() throws InterruptedException {
+    final MQTTIdentifierAllocator allocator = new MQTTIdentifierAllocator();
+    final AtomicInteger won = new AtomicInteger();
+
+    run(new Task() {
+      @Override
+      public void run(int thread) {
+        for (int identifier = 1; identifier <= 1000; identifier++) {
+          if (allocator.reserve(identifier))
+            won.incrementAndGet();
+        }
+      }
+    });
+
+    assertEquals(1000, won.get());
+    assertEquals(1000, allocator.getAllocated());
+  }
+
+  /**
+   * Work of one thread
+   */
+  interface Task {
+
+    /**
+     * @param thread the index of the thread
+     */
+    void run(int thread);
+
+  }
+
+  /**
+   * Run the task on {@link #THREADS} threads that start together, and wait
+   * for all of them
+   */
+  static void run(final Task task) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicInteger errors = new AtomicInteger();
+    Thread[] threads = new Thread[THREADS];
+
+    for (int i = 0; i < THREADS; i++) {
+      final int index = i;
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            task.run(index);
+          } catch (Throwable e) {
+            errors.incrementAndGet();
+          }
+        }
+      });
+      threads[i].start();
+    }
+
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(0, errors.get());
+  }
+
+}
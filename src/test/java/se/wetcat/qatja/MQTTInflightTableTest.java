@@ -0,0 +1,130 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import se.wetcat.qatja.messages.MQTTMessage;
+import se.wetcat.qatja.messages.MQTTPuback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link MQTTInflightTable}, from many threads at once
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTInflightTableTest {
+
+  @Test
+  public void putAndRemove() {
+    MQTTInflightTable table = new MQTTInflightTable();
+    MQTTMessage message = MQTTPuback.newInstance(7);
+
+    assertNull(table.put(message));
+    assertSame(message, table.get(7));
+    assertEquals(1, table.size());
+
+    assertFalse(table.remove(7, MQTTPuback.newInstance(7)));
+    assertTrue(table.remove(7, message));
+    assertNull(table.remove(7));
+    assertTrue(table.isEmpty());
+  }
+
+  @Test
+  public void concurrentPutAndRemove() throws InterruptedException {
+    final MQTTInflightTable table = new MQTTInflightTable();
+    final AtomicInteger lost = new AtomicInteger();
+
+    // Every thread has identifiers of its own, and leaves every tenth one
+    // in the table
+    MQTTIdentifierAllocatorTest.run(new MQTTIdentifierAllocatorTest.Task() {
+      @Override
+      public void run(int thread) {
+        for (int round = 0; round < 20; round++) {
+          for (int identifier = thread + 1; identifier <= MQTTIdentifierAllocator.MAX_IDENTIFIER; identifier += 8) {
+            MQTTMessage message = MQTTPuback.newInstance(identifier);
+            table.put(message);
+            if (table.get(identifier) != message)
+              lost.incrementAndGet();
+            if (identifier % 10 != 0 && table.remove(identifier) != message)
+              lost.incrementAndGet();
+          }
+        }
+      }
+    });
+
+    assertEquals(0, lost.get());
+    assertEquals(MQTTIdentifierAllocator.MAX_IDENTIFIER / 10, table.size());
+
+    final AtomicInteger visited = new AtomicInteger();
+    table.forEach(new MQTTInflightTable.Visitor() {
+      @Override
+      public boolean visit(int identifier, MQTTMessage message) {
+        if (identifier % 10 == 0 && message.getPackageIdentifier() == identifier)
+          visited.incrementAndGet();
+        return true;
+      }
+    });
+    assertEquals(table.size(), visited.get());
+
+    table.clear();
+    assertTrue(table.isEmpty());
+  }
+
+  @Test
+  public void concurrentPutIfAbsentAndRemoveHaveOneWinner() throws InterruptedException {
+    final MQTTInflightTable table = new MQTTInflightTable();
+    final AtomicInteger won = new AtomicInteger();
+    final AtomicInteger removed = new AtomicInteger();
+
+    MQTTIdentifierAllocatorTest.run(new MQTTIdentifierAllocatorTest.Task() {
+      @Override
+      public void run(int thread) {
+        for (int identifier = 1; identifier <= 10000; identifier++) {
+          if (table.putIfAbsent(MQTTPuback.newInstance(identifier)))
+            won.incrementAndGet();
+        }
+      }
+    });
+
+    assertEquals(10000, won.get());
+    assertEquals(10000, table.size());
+
+    MQTTIdentifierAllocatorTest.run(new MQTTIdentifierAllocatorTest.Task() {
+      @Override
+      public void run(int thread) {
+        for (int identifier = 1; identifier <= 10000; identifier++) {
+          if (table.remove(identifier) != null)
+            removed.incrementAndGet();
+        }
+      }
+    });
+
+    assertEquals(10000, removed.get());
+    assertTrue(table.isEmpty());
+  }
+
+}
@@ -0,0 +1,204 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import se.wetcat.qatja.messages.MQTTPublish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static se.wetcat.qatja.MQTTConstants.AT_LEAST_ONCE;
+
+/**
+ * Tests of {@link MQTTInflightWindow}
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTInflightWindowTest {
+
+  private final MQTTIdentifierHelper helper = new MQTTIdentifierHelper();
+
+  @Test
+  public void limitsMessagesInFlight() {
+    MQTTInflightWindow window = new MQTTInflightWindow(helper, 2);
+
+    int first = window.tryAcquire();
+    int second = window.tryAcquire();
+    assertNotEquals(0, first);
+    assertNotEquals(0, second);
+    assertEquals(0, window.tryAcquire());
+    assertEquals(0, window.getAvailable());
+
+    MQTTPublish publish = publish(first);
+    helper.addSentPackage(publish);
+    window.complete(publish);
+    assertEquals(1, window.getAvailable());
+    assertTrue(helper.getSentPackages().isEmpty());
+
+    // A slot is freed only once
+    window.release(first);
+    assertEquals(1, window.getAvailable());
+  }
+
+  @Test
+  public void callbacksWaitInOrder() {
+    MQTTInflightWindow window = new MQTTInflightWindow(helper, 1);
+    final List<String> order = new ArrayList<String>();
+
+    int identifier = window.tryAcquire();
+    window.acquire(new Recorder(order, "a"));
+    window.acquire(new Recorder(order, "b"));
+    assertEquals(2, window.getWaiting());
+    assertTrue(order.isEmpty());
+
+    window.release(identifier);
+    assertEquals(1, order.size());
+    assertTrue(order.get(0).startsWith("a"));
+    assertEquals(1, window.getWaiting());
+
+    window.release(Integer.parseInt(order.get(0).substring(2)));
+    assertEquals(2, order.size());
+    assertTrue(order.get(1).startsWith("b"));
+    assertEquals(0, window.getWaiting());
+  }
+
+  @Test
+  public void failedCallbackFreesItsSlot() {
+    MQTTInflightWindow window = new MQTTInflightWindow(helper, 1);
+    final AtomicInteger failed = new AtomicInteger();
+
+    try {
+      window.acquire(new MQTTInflightWindow.Callback() {
+        @Override
+        public void acquired(int identifier) {
+          failed.set(identifier);
+          throw new IllegalStateException("Failed before sending");
+        }
+      });
+      fail("The failure should be passed on");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+
+    assertEquals(1, window.getAvailable());
+    // The identifier was released too
+    assertNotEquals(0, failed.get());
+    int free = 0;
+    while (helper.getIdentifier() != 0) {
+      free++;
+    }
+    assertEquals(MQTTIdentifierAllocator.MAX_IDENTIFIER, free);
+  }
+
+  @Test
+  public void failedCallbackKeepsSlotOfAddedMessage() {
+    MQTTInflightWindow window = new MQTTInflightWindow(helper, 1);
+    final AtomicInteger added = new AtomicInteger();
+
+    try {
+      window.acquire(new MQTTInflightWindow.Callback() {
+        @Override
+        public void acquired(int identifier) {
+          added.set(identifier);
+          helper.addSentPackage(publish(identifier));
+          throw new IllegalStateException("Failed after adding");
+        }
+      });
+      fail("The failure should be passed on");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+
+    // The message is in flight, its slot and identifier stay taken
+    assertEquals(0, window.getAvailable());
+    assertTrue(helper.getSentPackages().contains(added.get()));
+
+    window.complete(helper.getSentPackages().get(added.get()));
+    assertEquals(1, window.getAvailable());
+  }
+
+  @Test
+  public void blockedThreadGoesBeforeCallbacks() throws Exception {
+    final MQTTInflightWindow window = new MQTTInflightWindow(helper, 1);
+    final List<String> order = new ArrayList<String>();
+    final AtomicInteger taken = new AtomicInteger();
+
+    int identifier = window.tryAcquire();
+
+    Thread blocked = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          taken.set(window.acquire());
+        } catch (InterruptedException e) {
+          // Ends the test with taken still 0
+        }
+      }
+    });
+    blocked.start();
+    while (blocked.getState() != Thread.State.WAITING) {
+      Thread.sleep(1);
+    }
+
+    window.acquire(new Recorder(order, "a"));
+    window.release(identifier);
+    blocked.join(5000);
+
+    assertFalse(blocked.isAlive());
+    assertNotEquals(0, taken.get());
+    assertTrue(order.isEmpty());
+    assertEquals(1, window.getWaiting());
+
+    window.release(taken.get());
+    assertEquals(1, order.size());
+  }
+
+  private static MQTTPublish publish(int identifier) {
+    return MQTTPublish.newInstance("qatja/test", new byte[]{1, 2, 3}, AT_LEAST_ONCE, identifier);
+  }
+
+  /**
+   * Records "name:identifier" when called back
+   */
+  private static class Recorder implements MQTTInflightWindow.Callback {
+
+    private final List<String> order;
+    private final String name;
+
+    Recorder(List<String> order, String name) {
+      this.order = order;
+      this.name = name;
+    }
+
+    @Override
+    public void acquired(int identifier) {
+      order.add(name + ":" + identifier);
+    }
+
+  }
+
+}
@@ -0,0 +1,279 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.wetcat.qatja.messages.MQTTPublish;
+import se.wetcat.qatja.messages.MQTTPubrec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static se.wetcat.qatja.MQTTConstants.AT_LEAST_ONCE;
+
+/**
+ * Tests of {@link MQTTJournal} and its use by {@link MQTTIdentifierHelper}
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTJournalTest {
+
+  private File file;
+
+  private File compacted;
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("qatja", ".journal");
+    assertTrue(file.delete());
+    compacted = new File(file.getPath() + ".compact");
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+    compacted.delete();
+  }
+
+  @Test
+  public void recoversAfterReopen() throws Exception {
+    MQTTJournal journal = MQTTJournal.open(file);
+    MQTTIdentifierHelper helper = new MQTTIdentifierHelper();
+    helper.setJournal(journal);
+
+    helper.addSentPackage(publish(1, 1));
+    helper.addSentPackage(publish(2, 2));
+    helper.addSentPackage(publish(3, 3));
+    helper.removeSentPackage(publish(2, 2));
+    helper.addReceivedPackage(MQTTPubrec.newInstance(7));
+    journal.close();
+
+    MQTTIdentifierHelper recovered = recover();
+
+    assertEquals(2, recovered.getSentPackages().size());
+    assertNull(recovered.getSentPackages().get(2));
+    MQTTPublish first = (MQTTPublish) recovered.getSentPackages().get(1);
+    assertTrue(first.isDup());
+    assertArrayEquals(new byte[]{1}, first.getPayload());
+    assertArrayEquals(new byte[]{3}, ((MQTTPublish) recovered.getSentPackages().get(3)).getPayload());
+
+    assertEquals(1, recovered.getReceivedPackages().size());
+    assertTrue(recovered.getReceivedPackages().contains(7));
+    recovered.getJournal().close();
+  }
+
+  @Test
+  public void compactsWhenFull() throws Exception {
+    MQTTJournal journal = MQTTJournal.open(file, 256);
+    MQTTIdentifierHelper helper = new MQTTIdentifierHelper();
+    helper.setJournal(journal);
+
+    // Far more than fits, only the last few stay live
+    for (int i = 1; i <= 1000; i++) {
+      helper.addSentPackage(publish(i, i));
+      if (i <= 995)
+        helper.removeSentPackage(publish(i, i));
+    }
+    assertTrue(journal.size() < 1000 * 8);
+    journal.close();
+
+    MQTTIdentifierHelper recovered = recover();
+
+    assertEquals(5, recovered.getSentPackages().size());
+    for (int i = 996; i <= 1000; i++) {
+      assertArrayEquals(new byte[]{(byte) i}, ((MQTTPublish) recovered.getSentPackages().get(i)).getPayload());
+    }
+    recovered.getJournal().close();
+  }
+
+  @Test
+  public void compactKeepsOnlyLiveRecords() throws Exception {
+    MQTTJournal journal = MQTTJournal.open(file);
+    MQTTIdentifierHelper helper = new MQTTIdentifierHelper();
+    helper.setJournal(journal);
+
+    for (int i = 1; i <= 100; i++) {
+      helper.addSentPackage(publish(i, i));
+    }
+    for (int i = 1; i <= 90; i++) {
+      helper.removeSentPackage(publish(i, i));
+    }
+
+    int before = journal.size();
+    journal.compact();
+    assertTrue(journal.size() < before);
+    assertEquals(8 + journal.getLiveBytes(), journal.size());
+
+    // Still appends after compacting
+    helper.addSentPackage(publish(200, 200));
+    journal.close();
+
+    MQTTIdentifierHelper recovered = recover();
+
+    assertEquals(11, recovered.getSentPackages().size());
+    assertTrue(recovered.getSentPackages().contains(100));
+    assertTrue(recovered.getSentPackages().contains(200));
+    assertFalse(recovered.getSentPackages().contains(90));
+    recovered.getJournal().close();
+  }
+
+  @Test
+  public void tickCompactsSparseJournal() throws Exception {
+    MQTTJournal journal = MQTTJournal.open(file, 4096);
+    MQTTIdentifierHelper helper = new MQTTIdentifierHelper();
+    helper.setJournal(journal);
+
+    helper.addSentPackage(publish(1, 1));
+    helper.tick();
+    int live = journal.size();
+
+    for (int i = 2; i <= 60; i++) {
+      helper.addSentPackage(publish(i, i));
+      helper.removeSentPackage(publish(i, i));
+    }
+    assertTrue(journal.size() > 4096 / 4);
+
+    helper.tick();
+    assertEquals(live, journal.size());
+    assertFalse(journal.compactIfSparse());
+    journal.close();
+
+    MQTTIdentifierHelper recovered = recover();
+    assertEquals(1, recovered.getSentPackages().size());
+    assertTrue(recovered.getSentPackages().contains(1));
+    recovered.getJournal().close();
+  }
+
+  @Test
+  public void failedCompactKeepsJournal() throws Exception {
+    MQTTJournal journal = MQTTJournal.open(file);
+    MQTTIdentifierHelper helper = new MQTTIdentifierHelper();
+    helper.setJournal(journal);
+
+    for (int i = 1; i <= 10; i++) {
+      helper.addSentPackage(publish(i, i));
+    }
+    helper.removeSentPackage(publish(5, 5));
+
+    // The compacted file can't replace a directory, the journal stays
+    // mapped while its file is gone
+    assertTrue(file.delete());
+    File blocker = new File(file, "blocker");
+    assertTrue(file.mkdir() && blocker.createNewFile());
+    try {
+      journal.compact();
+      fail("Compacting should fail");
+    } catch (IOException e) {
+      // Expected
+    }
+    assertFalse(compacted.exists());
+
+    // Still usable, and compacts once the file can be replaced
+    helper.addSentPackage(publish(11, 11));
+    helper.removeSentPackage(publish(6, 6));
+    assertTrue(blocker.delete() && file.delete());
+    journal.compact();
+    journal.close();
+
+    MQTTIdentifierHelper recovered = recover();
+    assertEquals(9, recovered.getSentPackages().size());
+    assertFalse(recovered.getSentPackages().contains(5));
+    assertFalse(recovered.getSentPackages().contains(6));
+    assertArrayEquals(new byte[]{11}, ((MQTTPublish) recovered.getSentPackages().get(11)).getPayload());
+    recovered.getJournal().close();
+  }
+
+  @Test
+  public void failedAddChangesNothing() throws Exception {
+    MQTTJournal journal = MQTTJournal.open(file, 64);
+    MQTTIdentifierHelper helper = new MQTTIdentifierHelper();
+    helper.setJournal(journal);
+
+    // Compacting fails when the compacted file can't be created
+    assertTrue(compacted.mkdir());
+
+    try {
+      helper.addSentPackage(MQTTPublish.newInstance("qatja/test", new byte[128], AT_LEAST_ONCE, 1));
+      fail("Journal should be full");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+
+    assertTrue(helper.getSentPackages().isEmpty());
+    assertEquals(65535, drain(helper));
+    journal.close();
+  }
+
+  @Test
+  public void failedRemoveReleasesIdentifier() throws Exception {
+    MQTTJournal journal = MQTTJournal.open(file, 64);
+    MQTTIdentifierHelper helper = new MQTTIdentifierHelper();
+    helper.setJournal(journal);
+
+    int identifier = helper.getIdentifier();
+    MQTTPublish publish = MQTTPublish.newInstance("qatja/test", new byte[28], AT_LEAST_ONCE, identifier);
+    helper.addSentPackage(publish);
+
+    // The publish filled the journal, no room left for the remove record
+    // and no way to compact
+    assertTrue(compacted.mkdir());
+
+    try {
+      helper.removeSentPackage(publish);
+      fail("Journal should be full");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+
+    assertTrue(helper.getSentPackages().isEmpty());
+    assertEquals(65535, drain(helper));
+    journal.close();
+  }
+
+  private MQTTIdentifierHelper recover() throws Exception {
+    MQTTIdentifierHelper helper = new MQTTIdentifierHelper();
+    helper.setJournal(MQTTJournal.open(file));
+    return helper;
+  }
+
+  /**
+   * @return the number of identifiers that could still be claimed
+   */
+  private static int drain(MQTTIdentifierHelper helper) {
+    int count = 0;
+    while (helper.getIdentifier() != 0) {
+      count++;
+    }
+    return count;
+  }
+
+  private static MQTTPublish publish(int identifier, int payload) {
+    return MQTTPublish.newInstance("qatja/test", new byte[]{(byte) payload}, AT_LEAST_ONCE, identifier);
+  }
+
+}
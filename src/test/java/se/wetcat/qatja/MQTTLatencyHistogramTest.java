@@ -0,0 +1,124 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link MQTTLatencyHistogram}
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTLatencyHistogramTest {
+
+  @Test
+  public void smallValuesAreExact() {
+    // Below 32 every bucket holds a single value
+    for (long value = 0; value < 32; value++) {
+      MQTTLatencyHistogram histogram = new MQTTLatencyHistogram();
+      histogram.record(value);
+      histogram.record(1000);
+      assertEquals(value, histogram.snapshot().getPercentile(50));
+    }
+  }
+
+  @Test
+  public void bucketBoundaries() {
+    for (int exponent = 5; exponent < 63; exponent++) {
+      long power = 1L << exponent;
+      long width = power >>> 4;
+
+      // The last value below a power of two and the power itself fall in
+      // different buckets
+      MQTTLatencyHistogram histogram = new MQTTLatencyHistogram();
+      histogram.record(power - 1);
+      histogram.record(power);
+      MQTTLatencyHistogram.Snapshot snapshot = histogram.snapshot();
+      assertEquals(power - 1, snapshot.getPercentile(50));
+      assertEquals(power, snapshot.getPercentile(100));
+
+      // A bucket holds width values and reports the largest of them
+      histogram = new MQTTLatencyHistogram();
+      histogram.record(power);
+      histogram.record(Long.MAX_VALUE);
+      assertEquals(power + width - 1, histogram.snapshot().getPercentile(50));
+    }
+  }
+
+  @Test
+  public void largestValues() {
+    MQTTLatencyHistogram histogram = new MQTTLatencyHistogram();
+    histogram.record(Long.MAX_VALUE);
+    histogram.record(Long.MAX_VALUE - 1);
+
+    MQTTLatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(Long.MAX_VALUE, snapshot.getMax());
+    assertEquals(Long.MAX_VALUE, snapshot.getPercentile(50));
+  }
+
+  @Test
+  public void percentilesWithinBucketPrecision() {
+    MQTTLatencyHistogram histogram = new MQTTLatencyHistogram();
+    for (long value = 1; value <= 10000; value++) {
+      histogram.record(value);
+    }
+    MQTTLatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+    double[] percentiles = {0, 1, 25, 50, 90, 99, 99.9, 100};
+    for (double percentile : percentiles) {
+      long exact = Math.max(1, (long) Math.ceil(percentile * 100));
+      long reported = snapshot.getPercentile(percentile);
+      // Never below the exact value, and at most 1/16th above it
+      assertTrue(percentile + ": " + reported, reported >= exact);
+      assertTrue(percentile + ": " + reported, reported - exact <= exact / 16);
+    }
+
+    assertEquals(10000, snapshot.getPercentile(100));
+    assertEquals(10000, snapshot.getCount());
+    assertEquals(10000, snapshot.getMax());
+    assertEquals(5000.5, snapshot.getMean(), 0.0);
+  }
+
+  @Test
+  public void emptyAndReset() {
+    MQTTLatencyHistogram histogram = new MQTTLatencyHistogram();
+    assertEquals(0, histogram.snapshot().getPercentile(99));
+    assertEquals(0.0, histogram.snapshot().getMean(), 0.0);
+
+    histogram.record(-5);
+    assertEquals(0, histogram.snapshot().getMax());
+    assertEquals(1, histogram.snapshot().getCount());
+
+    histogram.record(500);
+    histogram.reset();
+    MQTTLatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(0, snapshot.getCount());
+    assertEquals(0, snapshot.getMax());
+    assertEquals(0, snapshot.getPercentile(50));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsPercentileAbove100() {
+    new MQTTLatencyHistogram().snapshot().getPercentile(100.1);
+  }
+
+}
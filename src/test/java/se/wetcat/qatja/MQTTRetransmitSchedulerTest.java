@@ -0,0 +1,155 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import se.wetcat.qatja.messages.MQTTMessage;
+import se.wetcat.qatja.messages.MQTTPublish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static se.wetcat.qatja.MQTTConstants.AT_LEAST_ONCE;
+
+/**
+ * Tests of {@link MQTTRetransmitScheduler}
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTRetransmitSchedulerTest {
+
+  private final List<MQTTMessage> retransmitted = new ArrayList<MQTTMessage>();
+
+  private final List<MQTTMessage> expired = new ArrayList<MQTTMessage>();
+
+  private final MQTTRetransmitScheduler.Callback callback = new MQTTRetransmitScheduler.Callback() {
+    @Override
+    public void retransmit(MQTTMessage message, int attempt) {
+      retransmitted.add(message);
+    }
+
+    @Override
+    public void expired(MQTTMessage message) {
+      expired.add(message);
+    }
+  };
+
+  @Test
+  public void retransmitsMessageScheduledBeforeFirstTick() {
+    MQTTRetransmitScheduler scheduler = new MQTTRetransmitScheduler(callback, 1000, TimeUnit.MILLISECONDS, 1.0, 3, 100);
+    MQTTPublish publish = publish(1);
+
+    scheduler.schedule(publish, 0);
+
+    // The first tick comes well after the deadline
+    assertEquals(1, scheduler.tick(5000));
+    assertEquals(1, retransmitted.size());
+    assertSame(publish, retransmitted.get(0));
+    assertTrue(publish.isDup());
+  }
+
+  @Test
+  public void retransmitsMessageScheduledBeforeFirstTickOnSystemClock() throws InterruptedException {
+    MQTTRetransmitScheduler scheduler = new MQTTRetransmitScheduler(callback, 20, TimeUnit.MILLISECONDS, 1.0, 3, 1);
+    MQTTPublish publish = publish(1);
+
+    scheduler.schedule(publish);
+    Thread.sleep(100);
+
+    assertEquals(1, scheduler.tick());
+    assertSame(publish, retransmitted.get(0));
+  }
+
+  @Test
+  public void neverRetransmitsEarly() {
+    MQTTRetransmitScheduler scheduler = new MQTTRetransmitScheduler(callback, 1000, TimeUnit.MILLISECONDS, 1.0, 3, 100);
+
+    scheduler.schedule(publish(1), 0);
+
+    assertEquals(0, scheduler.tick(999));
+    assertEquals(1, scheduler.tick(1000));
+  }
+
+  @Test
+  public void backsOffAndExpires() {
+    MQTTRetransmitScheduler scheduler = new MQTTRetransmitScheduler(callback, 1000, TimeUnit.MILLISECONDS, 2.0, 2, 100);
+    MQTTPublish publish = publish(1);
+
+    scheduler.schedule(publish, 0);
+
+    assertEquals(1, scheduler.tick(1000));
+    // The second retransmission waits twice as long
+    assertEquals(0, scheduler.tick(2900));
+    assertEquals(1, scheduler.tick(3000));
+    assertEquals(2, retransmitted.size());
+
+    assertEquals(1, scheduler.tick(7000));
+    assertEquals(1, expired.size());
+    assertFalse(scheduler.isScheduled(1));
+    assertEquals(0, scheduler.size());
+  }
+
+  @Test
+  public void capsBackoff() {
+    MQTTRetransmitScheduler scheduler = new MQTTRetransmitScheduler(callback, 1000, 4000, TimeUnit.MILLISECONDS,
+        2.0, Byte.MAX_VALUE, 100);
+
+    scheduler.schedule(publish(1), 0);
+
+    assertEquals(1, scheduler.tick(1000));
+    assertEquals(1, scheduler.tick(3000));
+    // The backoff would overflow long before the last attempt, every wait
+    // is capped at the max timeout instead
+    long now = 3000;
+    for (int attempt = 3; attempt <= Byte.MAX_VALUE; attempt++) {
+      assertEquals(0, scheduler.tick(now + 3999));
+      now += 4000;
+      assertEquals(1, scheduler.tick(now));
+    }
+    assertEquals(Byte.MAX_VALUE, retransmitted.size());
+    assertEquals(0, expired.size());
+
+    assertEquals(1, scheduler.tick(now + 4000));
+    assertEquals(1, expired.size());
+  }
+
+  @Test
+  public void cancelledMessageIsNotRetransmitted() {
+    MQTTRetransmitScheduler scheduler = new MQTTRetransmitScheduler(callback, 1000, TimeUnit.MILLISECONDS, 1.0, 3, 100);
+    MQTTPublish publish = publish(1);
+
+    scheduler.schedule(publish, 0);
+    scheduler.schedule(publish(2), 0);
+
+    assertSame(publish, scheduler.cancel(1));
+    assertEquals(1, scheduler.tick(5000));
+    assertEquals(2, retransmitted.get(0).getPackageIdentifier());
+  }
+
+  private static MQTTPublish publish(int identifier) {
+    return MQTTPublish.newInstance("qatja/test", new byte[]{1, 2, 3}, AT_LEAST_ONCE, identifier);
+  }
+
+}
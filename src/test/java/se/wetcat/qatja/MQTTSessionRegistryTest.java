@@ -0,0 +1,198 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import se.wetcat.qatja.messages.MQTTMessage;
+import se.wetcat.qatja.messages.MQTTPublish;
+import se.wetcat.qatja.messages.MQTTPubrec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static se.wetcat.qatja.MQTTConstants.AT_LEAST_ONCE;
+
+/**
+ * Tests of {@link MQTTSessionRegistry}
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTSessionRegistryTest {
+
+  private final MQTTSessionRegistry registry = new MQTTSessionRegistry();
+
+  @Test
+  public void identifiersFollowTheCursor() {
+    int session = registry.open();
+
+    assertEquals(1, registry.getIdentifier(session));
+    assertEquals(2, registry.getIdentifier(session));
+    registry.releaseIdentifier(session, 1);
+    // Released identifiers are reused only after wrapping around
+    assertEquals(3, registry.getIdentifier(session));
+    assertEquals(2, registry.getInFlight(session));
+  }
+
+  @Test
+  public void exhaustsAndReusesIdentifiers() {
+    int session = registry.open();
+
+    for (int i = 1; i <= MQTTIdentifierAllocator.MAX_IDENTIFIER; i++) {
+      assertEquals(i, registry.getIdentifier(session));
+    }
+    assertEquals(0, registry.getIdentifier(session));
+
+    // Found through the direct index, wherever it is
+    registry.releaseIdentifier(session, 40000);
+    registry.releaseIdentifier(session, 7);
+    assertEquals(7, registry.getIdentifier(session));
+    assertEquals(40000, registry.getIdentifier(session));
+    assertEquals(0, registry.getIdentifier(session));
+  }
+
+  @Test
+  public void directIndexSkipsIdentifiersAddedBeforeIt() {
+    int session = registry.open();
+
+    // Sent with identifiers that weren't handed out, the direct index is
+    // built from them once enough are in use
+    for (int i = 1; i <= 40; i++) {
+      registry.addSentPackage(session, publish(i * 2));
+    }
+    for (int i = 1; i <= 40; i++) {
+      int identifier = registry.getIdentifier(session);
+      assertEquals(1, identifier % 2);
+    }
+    assertEquals(80, registry.getInFlight(session));
+  }
+
+  @Test
+  public void sessionsAreIndependent() {
+    int first = registry.open();
+    int second = registry.open();
+
+    MQTTPublish publish = publish(5);
+    registry.addSentPackage(first, publish);
+    registry.addReceivedPackage(first, MQTTPubrec.newInstance(5));
+
+    assertSame(publish, registry.getSentPackage(first, 5));
+    assertNull(registry.getSentPackage(second, 5));
+    assertNull(registry.getReceivedPackage(second, 5));
+    assertEquals(1, registry.getIdentifier(second));
+  }
+
+  @Test
+  public void closeDropsSessionAndReusesHandle() {
+    int first = registry.open();
+    int second = registry.open();
+    for (int i = 1; i <= 100; i++) {
+      registry.addSentPackage(first, publish(i));
+      registry.addSentPackage(second, publish(i));
+    }
+
+    registry.close(first);
+    assertEquals(1, registry.size());
+    try {
+      registry.getSentPackage(first, 1);
+      fail("Session is closed");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+
+    int reopened = registry.open();
+    assertEquals(first, reopened);
+    assertEquals(0, registry.getInFlight(reopened));
+    assertNull(registry.getSentPackage(reopened, 1));
+    assertEquals(1, registry.getIdentifier(reopened));
+
+    assertEquals(100, registry.getInFlight(second));
+    assertEquals(100, registry.getSentPackage(second, 100).getPackageIdentifier());
+  }
+
+  /**
+   * Sessions 64 apart share a segment, so their entries collide in one hash;
+   * the registry must agree with a plain map through every insert and
+   * backward shifting delete
+   */
+  @Test
+  public void matchesMapUnderCollisions() {
+    int[] sessions = new int[8];
+    for (int i = 0; i < 64 * sessions.length; i++) {
+      int session = registry.open();
+      if (session % 64 == 0)
+        sessions[session / 64] = session;
+    }
+
+    Map<Long, MQTTMessage> expected = new HashMap<Long, MQTTMessage>();
+    Random random = new Random(17);
+
+    for (int round = 0; round < 200000; round++) {
+      int session = sessions[random.nextInt(sessions.length)];
+      boolean sent = random.nextBoolean();
+      int identifier = 1 + random.nextInt(256);
+      long key = ((long) session << 20) | (sent ? 1 << 17 : 0) | identifier;
+
+      if (random.nextInt(3) == 0) {
+        if (sent)
+          registry.removeSentPackage(session, publish(identifier));
+        else
+          registry.removeReceivedPackage(session, MQTTPubrec.newInstance(identifier));
+        expected.remove(key);
+      } else {
+        MQTTMessage message = sent ? publish(identifier) : MQTTPubrec.newInstance(identifier);
+        if (sent)
+          registry.addSentPackage(session, message);
+        else
+          registry.addReceivedPackage(session, message);
+        expected.put(key, message);
+      }
+    }
+
+    for (int session : sessions) {
+      int inFlight = 0;
+      for (int identifier = 1; identifier <= 256; identifier++) {
+        MQTTMessage sent = expected.get(((long) session << 20) | (1 << 17) | identifier);
+        MQTTMessage received = expected.get(((long) session << 20) | identifier);
+        assertSame(sent, registry.getSentPackage(session, identifier));
+        assertSame(received, registry.getReceivedPackage(session, identifier));
+        if (sent != null)
+          inFlight++;
+      }
+      assertEquals(inFlight, registry.getInFlight(session));
+
+      // The direct index agrees, a new identifier is never one in flight
+      for (int i = 0; i < 256 - inFlight; i++) {
+        int identifier = registry.getIdentifier(session);
+        assertNull(expected.get(((long) session << 20) | (1 << 17) | identifier));
+        expected.put(((long) session << 20) | (1 << 17) | identifier, publish(identifier));
+      }
+    }
+  }
+
+  private static MQTTPublish publish(int identifier) {
+    return MQTTPublish.newInstance("qatja/test", new byte[]{1}, AT_LEAST_ONCE, identifier);
+  }
+
+}
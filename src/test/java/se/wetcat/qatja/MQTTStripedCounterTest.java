@@ -0,0 +1,58 @@
+package se.wetcat.qatja;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of {@link MQTTStripedCounter}, from many threads at once
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTStripedCounterTest {
+
+  @Test
+  public void sumIsExactOnceThreadsAreDone() throws InterruptedException {
+    final MQTTStripedCounter counter = new MQTTStripedCounter();
+
+    MQTTIdentifierAllocatorTest.run(new MQTTIdentifierAllocatorTest.Task() {
+      @Override
+      public void run(int thread) {
+        for (int i = 0; i < 100000; i++) {
+          counter.increment();
+          if ((i & 1) == 0)
+            counter.decrement();
+        }
+      }
+    });
+
+    assertEquals(8 * 50000, counter.sum());
+  }
+
+  @Test
+  public void stripeIsStablePerThread() {
+    int stripe = MQTTStripedCounter.stripe();
+
+    assertEquals(stripe, MQTTStripedCounter.stripe());
+    assertEquals(0, stripe & ~(MQTTStripedCounter.STRIPES - 1));
+  }
+
+}
@@ -0,0 +1,220 @@
+package se.wetcat.qatja.nio;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.wetcat.qatja.MQTTException;
+import se.wetcat.qatja.MQTTIdentifierHelper;
+import se.wetcat.qatja.messages.MQTTConnack;
+import se.wetcat.qatja.messages.MQTTConnect;
+import se.wetcat.qatja.messages.MQTTMessage;
+import se.wetcat.qatja.messages.MQTTPuback;
+import se.wetcat.qatja.messages.MQTTPubcomp;
+import se.wetcat.qatja.messages.MQTTSuback;
+import se.wetcat.qatja.messages.MQTTUnsuback;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static se.wetcat.qatja.MQTTConstants.AT_LEAST_ONCE;
+import static se.wetcat.qatja.MQTTConstants.AT_MOST_ONCE;
+import static se.wetcat.qatja.MQTTConstants.EXACTLY_ONCE;
+
+/**
+ * Tests of {@link MQTTAsyncClient}, against a {@link MQTTLocalBroker} and
+ * against a server that never answers, where the acknowledgements are
+ * handed to the client directly
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTAsyncClientTest {
+
+  private static final long TIMEOUT = 10;
+
+  private MQTTLocalBroker broker;
+
+  private ServerSocket silent;
+
+  private MQTTAsyncClient client;
+
+  @Before
+  public void setUp() throws IOException {
+    broker = new MQTTLocalBroker().start();
+    silent = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (client != null)
+      client.close();
+    silent.close();
+    broker.close();
+  }
+
+  @Test
+  public void completesEveryOperation() throws Exception {
+    client = new MQTTAsyncClient();
+    MQTTConnack connack = client.connect(broker.getAddress(), MQTTConnect.newInstance("async")).get(TIMEOUT, TimeUnit.SECONDS);
+    assertNotNull(connack);
+
+    MQTTFuture<Integer> qos0 = client.publish("async/0", new byte[]{0}, AT_MOST_ONCE, false);
+    assertTrue(qos0.isDone());
+    assertEquals(0, (int) qos0.get());
+
+    assertTrue(client.publish("async/1", new byte[]{1}, AT_LEAST_ONCE, false).get(TIMEOUT, TimeUnit.SECONDS) > 0);
+    assertTrue(client.publish("async/2", new byte[]{2}, EXACTLY_ONCE, false).get(TIMEOUT, TimeUnit.SECONDS) > 0);
+
+    byte[] granted = client.subscribe(new String[]{"async/#"}, new byte[]{AT_LEAST_ONCE}).get(TIMEOUT, TimeUnit.SECONDS);
+    assertArrayEquals(new byte[]{AT_LEAST_ONCE}, granted);
+    assertNull(client.unsubscribe("async/#").get(TIMEOUT, TimeUnit.SECONDS));
+
+    assertEquals(0, client.getPending());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void connectsOnce() {
+    client = new MQTTAsyncClient();
+    client.connect(silent.getLocalSocketAddress(), MQTTConnect.newInstance("once"));
+    client.connect(broker.getAddress(), MQTTConnect.newInstance("twice"));
+  }
+
+  @Test(expected = MQTTException.class)
+  public void publishNeedsConnection() throws MQTTException {
+    new MQTTAsyncClient().publish("async", new byte[0], AT_LEAST_ONCE, false);
+  }
+
+  @Test
+  public void completesOnlyOnTheMatchingAck() throws Exception {
+    client = new MQTTAsyncClient();
+    client.connect(silent.getLocalSocketAddress(), MQTTConnect.newInstance("match"));
+
+    MQTTFuture<Integer> qos2 = client.publish("async/2", new byte[]{2}, EXACTLY_ONCE, false);
+    int identifier = inFlight(client);
+
+    // A PUBACK doesn't complete a QoS 2 PUBLISH, nor does a SUBACK
+    client.received(MQTTPuback.newInstance(identifier));
+    client.received(MQTTSuback.newInstance(identifier, AT_MOST_ONCE));
+    assertFalse(qos2.isDone());
+    assertEquals(1, client.getPending());
+
+    client.received(MQTTPubcomp.newInstance(identifier));
+    assertEquals(identifier, (int) qos2.get(0, TimeUnit.SECONDS));
+    assertEquals(0, client.getPending());
+
+    MQTTFuture<Integer> qos1 = client.publish("async/1", new byte[]{1}, AT_LEAST_ONCE, false);
+    int other = inFlight(client, identifier);
+    client.received(MQTTPubcomp.newInstance(other));
+    client.received(MQTTUnsuback.newInstance(other));
+    assertFalse(qos1.isDone());
+    client.received(MQTTPuback.newInstance(other));
+    assertEquals(other, (int) qos1.get(0, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void closedFailsEveryFutureAndTellsTheListener() throws Exception {
+    final Exception[] told = new Exception[1];
+    client = new MQTTAsyncClient(new MQTTConnection.Listener() {
+      @Override
+      public void connected(MQTTConnack connack) {
+      }
+
+      @Override
+      public void received(MQTTMessage message) {
+      }
+
+      @Override
+      public void closed(Exception cause) {
+        told[0] = cause;
+      }
+    });
+    MQTTFuture<MQTTConnack> connected = client.connect(silent.getLocalSocketAddress(), MQTTConnect.newInstance("closed"));
+
+    MQTTFuture<Integer> first = client.publish("async/1", new byte[]{1}, AT_LEAST_ONCE, false);
+    MQTTFuture<Integer> second = client.publish("async/2", new byte[]{2}, EXACTLY_ONCE, false);
+    MQTTFuture<Void> third = client.unsubscribe("async/#");
+
+    final RuntimeException thrown = new IllegalStateException("Callback failed");
+    MQTTFuture.Callback<Integer> throwing = new MQTTFuture.Callback<Integer>() {
+      @Override
+      public void completed(Integer value) {
+      }
+
+      @Override
+      public void failed(Exception cause) {
+        throw thrown;
+      }
+    };
+    first.addCallback(throwing);
+    second.addCallback(throwing);
+
+    IOException cause = new IOException("Connection reset");
+    try {
+      client.closed(cause);
+      fail("The failure of the callback was lost");
+    } catch (IllegalStateException e) {
+      assertSame(thrown, e);
+    }
+
+    assertFailed(connected);
+    assertFailed(first);
+    assertFailed(second);
+    assertFailed(third);
+    assertEquals(0, client.getPending());
+    assertSame(cause, told[0]);
+  }
+
+  private static void assertFailed(MQTTFuture<?> future) throws InterruptedException {
+    assertTrue(future.isFailed());
+    try {
+      future.get();
+      fail("Future didn't fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof MQTTException);
+    }
+  }
+
+  /**
+   * @return the identifier of the only message in flight, besides the
+   * skipped one
+   */
+  private static int inFlight(MQTTAsyncClient client, int... skipped) {
+    MQTTIdentifierHelper helper = client.getConnection().getHelper();
+    for (int identifier = 1; identifier <= 65535; identifier++) {
+      if (helper.getSentPackages().get(identifier) != null && (skipped.length == 0 || skipped[0] != identifier))
+        return identifier;
+    }
+    fail("Nothing in flight");
+    return 0;
+  }
+
+}
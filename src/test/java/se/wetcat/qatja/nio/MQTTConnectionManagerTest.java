@@ -0,0 +1,275 @@
+package se.wetcat.qatja.nio;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.wetcat.qatja.MQTTException;
+import se.wetcat.qatja.messages.MQTTConnack;
+import se.wetcat.qatja.messages.MQTTConnect;
+import se.wetcat.qatja.messages.MQTTMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static se.wetcat.qatja.MQTTConstants.AT_LEAST_ONCE;
+import static se.wetcat.qatja.MQTTConstants.AT_MOST_ONCE;
+import static se.wetcat.qatja.MQTTConstants.EXACTLY_ONCE;
+import static se.wetcat.qatja.MQTTConstants.PUBACK;
+import static se.wetcat.qatja.MQTTConstants.PUBCOMP;
+import static se.wetcat.qatja.MQTTConstants.PUBLISH;
+import static se.wetcat.qatja.MQTTConstants.SUBACK;
+
+/**
+ * End to end tests of {@link MQTTConnectionManager} and its connections,
+ * against a {@link MQTTLocalBroker}
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTConnectionManagerTest {
+
+  private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+  private static final int CONNECTIONS = 40;
+
+  private MQTTLocalBroker broker;
+
+  private MQTTConnectionManager manager;
+
+  @Before
+  public void setUp() throws IOException {
+    broker = new MQTTLocalBroker().start();
+    manager = new MQTTConnectionManager(2, 4096);
+  }
+
+  @After
+  public void tearDown() {
+    manager.close();
+    broker.close();
+  }
+
+  @Test
+  public void publishesAtEveryQoS() throws Exception {
+    List<MQTTConnection> connections = new ArrayList<MQTTConnection>();
+    List<Recorder> recorders = new ArrayList<Recorder>();
+    for (int i = 0; i < CONNECTIONS; i++) {
+      Recorder recorder = new Recorder();
+      recorders.add(recorder);
+      connections.add(manager.open(broker.getAddress(), MQTTConnect.newInstance("client-" + i), recorder));
+    }
+    assertEquals(CONNECTIONS, manager.size());
+    assertEquals(CONNECTIONS, manager.getRegistry().size());
+
+    for (Recorder recorder : recorders) {
+      recorder.awaitConnected();
+    }
+
+    for (MQTTConnection connection : connections) {
+      assertEquals(0, connection.publish("e2e/qos0", new byte[]{0}, AT_MOST_ONCE, false));
+      assertTrue(connection.publish("e2e/qos1", new byte[]{1}, AT_LEAST_ONCE, false) > 0);
+      assertTrue(connection.publish("e2e/qos2", new byte[]{2}, EXACTLY_ONCE, false) > 0);
+    }
+
+    for (Recorder recorder : recorders) {
+      recorder.await(PUBACK, 1);
+      recorder.await(PUBCOMP, 1);
+    }
+    awaitReceived(3 * CONNECTIONS);
+
+    for (Recorder recorder : recorders) {
+      assertEquals(1, recorder.count(PUBACK));
+      assertEquals(1, recorder.count(PUBCOMP));
+      assertEquals(0, recorder.count(PUBLISH));
+    }
+
+    for (MQTTConnection connection : connections) {
+      connection.close();
+    }
+    for (Recorder recorder : recorders) {
+      recorder.awaitClosed();
+      assertNull(recorder.cause);
+      // Told on the I/O thread, not the thread that closed it
+      assertTrue(recorder.closedOn, recorder.closedOn.startsWith("qatja-io-"));
+    }
+
+    assertEquals(0, manager.size());
+    assertEquals(0, manager.getRegistry().size());
+  }
+
+  @Test
+  public void forwardsToSubscribers() throws Exception {
+    Recorder subscriber = new Recorder();
+    MQTTConnection subscription = manager.open(broker.getAddress(), MQTTConnect.newInstance("subscriber"), subscriber);
+    Recorder publisher = new Recorder();
+    MQTTConnection publication = manager.open(broker.getAddress(), MQTTConnect.newInstance("publisher"), publisher);
+    subscriber.awaitConnected();
+    publisher.awaitConnected();
+
+    subscription.subscribe(new String[]{"e2e/#"}, new byte[]{EXACTLY_ONCE});
+    subscriber.await(SUBACK, 1);
+
+    publication.publish("e2e/a", new byte[]{1}, AT_MOST_ONCE, false);
+    publication.publish("e2e/b", new byte[]{2}, AT_LEAST_ONCE, false);
+    publication.publish("e2e/c", new byte[]{3}, EXACTLY_ONCE, false);
+
+    subscriber.await(PUBLISH, 3);
+    publisher.await(PUBCOMP, 1);
+    assertEquals(0, publisher.count(PUBLISH));
+
+    subscription.disconnect();
+    subscriber.awaitClosed();
+    assertNull(subscriber.cause);
+    assertEquals(1, manager.size());
+  }
+
+  @Test
+  public void throwingListenerClosesOnlyItsConnection() throws Exception {
+    Recorder faulty = new Recorder() {
+      @Override
+      public void received(MQTTMessage message) {
+        super.received(message);
+        throw new IllegalStateException("Listener failed");
+      }
+
+      @Override
+      public void closed(Exception cause) {
+        super.closed(cause);
+        throw new IllegalStateException("Listener failed again");
+      }
+    };
+    MQTTConnection failing = manager.open(broker.getAddress(), MQTTConnect.newInstance("faulty"), faulty);
+
+    List<MQTTConnection> connections = new ArrayList<MQTTConnection>();
+    List<Recorder> recorders = new ArrayList<Recorder>();
+    for (int i = 0; i < 4; i++) {
+      Recorder recorder = new Recorder();
+      recorders.add(recorder);
+      connections.add(manager.open(broker.getAddress(), MQTTConnect.newInstance("healthy-" + i), recorder));
+    }
+
+    faulty.awaitConnected();
+    failing.publish("e2e/faulty", new byte[]{1}, AT_LEAST_ONCE, false);
+    faulty.awaitClosed();
+    assertTrue(faulty.cause instanceof IllegalStateException);
+    assertFalse(failing.isOpen());
+
+    // Every I/O thread still serves its other connections
+    for (int i = 0; i < connections.size(); i++) {
+      recorders.get(i).awaitConnected();
+      connections.get(i).publish("e2e/healthy", new byte[]{1}, AT_LEAST_ONCE, false);
+      recorders.get(i).await(PUBACK, 1);
+    }
+    assertEquals(connections.size(), manager.size());
+
+    try {
+      failing.publish("e2e/faulty", new byte[]{1}, AT_MOST_ONCE, false);
+      fail("Published on a closed connection");
+    } catch (MQTTException e) {
+      // Expected
+    }
+  }
+
+  private void awaitReceived(long count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (broker.getReceived() < count) {
+      if (System.currentTimeMillis() > deadline)
+        fail("Broker received " + broker.getReceived() + " of " + count);
+      Thread.sleep(5);
+    }
+  }
+
+  /**
+   * Counts the events of a connection by message type
+   */
+  private static class Recorder implements MQTTConnection.Listener {
+
+    private final int[] counts = new int[16];
+
+    private boolean connected;
+
+    private boolean closed;
+
+    private volatile Exception cause;
+
+    private volatile String closedOn;
+
+    @Override
+    public synchronized void connected(MQTTConnack connack) {
+      connected = true;
+      notifyAll();
+    }
+
+    @Override
+    public synchronized void received(MQTTMessage message) {
+      counts[message.getType()]++;
+      notifyAll();
+    }
+
+    @Override
+    public synchronized void closed(Exception cause) {
+      this.cause = cause;
+      this.closedOn = Thread.currentThread().getName();
+      closed = true;
+      notifyAll();
+    }
+
+    synchronized int count(byte type) {
+      return counts[type];
+    }
+
+    synchronized void awaitConnected() throws InterruptedException {
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while (!connected) {
+        waitUntil(deadline, "connected");
+      }
+    }
+
+    synchronized void awaitClosed() throws InterruptedException {
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while (!closed) {
+        waitUntil(deadline, "closed");
+      }
+    }
+
+    synchronized void await(byte type, int count) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while (counts[type] < count) {
+        waitUntil(deadline, counts[type] + " of " + count + " messages of type " + type);
+      }
+    }
+
+    private void waitUntil(long deadline, String what) throws InterruptedException {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0)
+        fail("Timed out waiting for " + what);
+      wait(remaining);
+    }
+
+  }
+
+}
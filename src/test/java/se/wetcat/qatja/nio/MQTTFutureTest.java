@@ -0,0 +1,186 @@
+package se.wetcat.qatja.nio;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link MQTTFuture}
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTFutureTest {
+
+  @Test
+  public void completesOnce() throws Exception {
+    MQTTFuture<Integer> future = new MQTTFuture<Integer>();
+    assertFalse(future.isDone());
+
+    assertTrue(future.complete(7));
+    assertFalse(future.complete(8));
+    assertFalse(future.fail(new Exception()));
+
+    assertTrue(future.isDone());
+    assertFalse(future.isFailed());
+    assertEquals(7, (int) future.get());
+    assertEquals(7, (int) future.get(0, TimeUnit.MILLISECONDS));
+    assertFalse(future.cancel(true));
+    assertFalse(future.isCancelled());
+  }
+
+  @Test
+  public void failsOnce() throws InterruptedException {
+    MQTTFuture<Integer> future = new MQTTFuture<Integer>();
+    Exception cause = new Exception("Failed");
+
+    assertTrue(future.fail(cause));
+    assertFalse(future.complete(1));
+    assertTrue(future.isFailed());
+
+    try {
+      future.get();
+      fail("Failed future returned a value");
+    } catch (ExecutionException e) {
+      assertSame(cause, e.getCause());
+    }
+  }
+
+  @Test(expected = TimeoutException.class)
+  public void getTimesOut() throws Exception {
+    new MQTTFuture<Integer>().get(10, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void getWaitsForCompletion() throws Exception {
+    final MQTTFuture<String> future = new MQTTFuture<String>();
+
+    Thread completer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(20);
+        } catch (InterruptedException e) {
+          return;
+        }
+        future.complete("done");
+      }
+    };
+    completer.start();
+
+    assertEquals("done", future.get(10, TimeUnit.SECONDS));
+    completer.join();
+  }
+
+  @Test
+  public void callsBackBeforeAndAfterCompletion() {
+    MQTTFuture<Integer> future = new MQTTFuture<Integer>();
+    Recorder before = new Recorder();
+    future.addCallback(before);
+    assertTrue(before.values.isEmpty());
+
+    future.complete(3);
+    Recorder after = new Recorder();
+    future.addCallback(after);
+
+    assertEquals(1, before.values.size());
+    assertEquals(3, (int) before.values.get(0));
+    assertEquals(1, after.values.size());
+    assertTrue(after.causes.isEmpty());
+  }
+
+  @Test
+  public void callsBackWithTheCause() {
+    MQTTFuture<Integer> future = new MQTTFuture<Integer>();
+    Recorder recorder = new Recorder();
+    future.addCallback(recorder);
+
+    Exception cause = new Exception("Failed");
+    future.fail(cause);
+
+    assertTrue(recorder.values.isEmpty());
+    assertEquals(1, recorder.causes.size());
+    assertSame(cause, recorder.causes.get(0));
+  }
+
+  @Test
+  public void throwingCallbackDoesNotStopTheOthers() throws Exception {
+    MQTTFuture<Integer> future = new MQTTFuture<Integer>();
+    Recorder first = new Recorder();
+    final RuntimeException thrown = new IllegalStateException("Callback failed");
+    Recorder throwing = new Recorder() {
+      @Override
+      public void completed(Integer value) {
+        super.completed(value);
+        throw thrown;
+      }
+    };
+    Recorder last = new Recorder();
+
+    future.addCallback(first);
+    future.addCallback(throwing);
+    future.addCallback(last);
+
+    try {
+      future.complete(5);
+      fail("The failure of the callback was lost");
+    } catch (IllegalStateException e) {
+      assertSame(thrown, e);
+    }
+
+    assertEquals(1, first.values.size());
+    assertEquals(1, throwing.values.size());
+    assertEquals(1, last.values.size());
+    assertTrue(future.isDone());
+    assertEquals(5, (int) future.get());
+  }
+
+  /**
+   * Keeps what it was called back with
+   */
+  private static class Recorder implements MQTTFuture.Callback<Integer> {
+
+    final List<Integer> values = new ArrayList<Integer>();
+
+    final List<Exception> causes = new ArrayList<Exception>();
+
+    @Override
+    public void completed(Integer value) {
+      values.add(value);
+    }
+
+    @Override
+    public void failed(Exception cause) {
+      causes.add(cause);
+    }
+
+  }
+
+}
@@ -0,0 +1,195 @@
+package se.wetcat.qatja.nio;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import se.wetcat.qatja.messages.MQTTConnect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static se.wetcat.qatja.nio.MQTTKeepAliveService.WHEEL_SIZE;
+
+/**
+ * Tests of the wheel of {@link MQTTKeepAliveService}, driven with explicit
+ * times and a tick of 100 milliseconds from an origin of 0
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTKeepAliveServiceTest {
+
+  private static final long TICK = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private MQTTKeepAliveService service;
+
+  @Before
+  public void setUp() {
+    service = new MQTTKeepAliveService(100, TimeUnit.MILLISECONDS, 0);
+  }
+
+  @Test
+  public void dueAtItsTick() {
+    MQTTConnection connection = connection();
+    service.schedule(connection, 3 * TICK);
+    assertEquals(1, service.size());
+
+    assertEquals(0, service.tick(0));
+    assertEquals(0, service.tick(3 * TICK - 1));
+    assertTrue(connection.wheelLinked);
+
+    assertEquals(1, service.tick(3 * TICK));
+    assertFalse(connection.wheelLinked);
+    assertEquals(0, service.size());
+    assertEquals(0, service.tick(4 * TICK));
+  }
+
+  @Test
+  public void neverDueEarly() {
+    MQTTConnection connection = connection();
+    // Rounded up to the next tick
+    service.schedule(connection, 2 * TICK + 1);
+
+    assertEquals(0, service.tick(2 * TICK));
+    assertEquals(1, service.tick(3 * TICK));
+  }
+
+  @Test
+  public void pastDeadlineIsDueNextTick() {
+    service.tick(10 * TICK);
+
+    MQTTConnection connection = connection();
+    service.schedule(connection, 5 * TICK);
+    assertEquals(0, service.tick(11 * TICK - 1));
+    assertEquals(1, service.tick(11 * TICK));
+  }
+
+  @Test
+  public void cancel() {
+    MQTTConnection first = connection();
+    MQTTConnection second = connection();
+    service.schedule(first, 3 * TICK);
+    service.schedule(second, 3 * TICK);
+
+    service.cancel(first);
+    assertEquals(1, service.size());
+    assertFalse(first.wheelLinked);
+
+    // Cancelling twice changes nothing
+    service.cancel(first);
+    assertEquals(1, service.size());
+
+    assertEquals(1, service.tick(3 * TICK));
+    assertFalse(second.wheelLinked);
+    assertEquals(0, service.size());
+  }
+
+  @Test
+  public void scheduleReplacesDeadline() {
+    MQTTConnection connection = connection();
+    service.schedule(connection, 3 * TICK);
+    service.schedule(connection, 8 * TICK);
+    assertEquals(1, service.size());
+
+    assertEquals(0, service.tick(3 * TICK));
+    assertEquals(1, service.tick(8 * TICK));
+  }
+
+  @Test
+  public void wrapsAroundTheWheel() {
+    MQTTConnection near = connection();
+    MQTTConnection far = connection();
+    MQTTConnection farther = connection();
+    // All three share one bucket
+    service.schedule(near, 5 * TICK);
+    service.schedule(far, (5 + WHEEL_SIZE) * TICK);
+    service.schedule(farther, (5 + 2 * WHEEL_SIZE) * TICK);
+
+    for (long tick = 0; tick <= 5; tick++) {
+      service.tick(tick * TICK);
+    }
+    assertFalse(near.wheelLinked);
+    assertTrue(far.wheelLinked);
+    assertTrue(farther.wheelLinked);
+
+    // Ticking every tick, the bucket comes around again a turn later
+    int due = 0;
+    for (long tick = 6; tick < 5 + WHEEL_SIZE; tick++) {
+      due += service.tick(tick * TICK);
+    }
+    assertEquals(0, due);
+    assertEquals(1, service.tick((5 + WHEEL_SIZE) * TICK));
+    assertFalse(far.wheelLinked);
+    assertTrue(farther.wheelLinked);
+
+    assertEquals(1, service.tick((5 + 2 * WHEEL_SIZE) * TICK));
+    assertEquals(0, service.size());
+  }
+
+  @Test
+  public void lateTickCatchesUp() {
+    service.tick(0);
+
+    MQTTConnection[] connections = new MQTTConnection[5];
+    for (int i = 0; i < connections.length; i++) {
+      connections[i] = connection();
+      service.schedule(connections[i], (i + 1) * 10 * TICK);
+    }
+
+    // Forty ticks late, the four that were missed are all due
+    assertEquals(4, service.tick(40 * TICK));
+    assertTrue(connections[4].wheelLinked);
+    assertEquals(1, service.size());
+    assertEquals(1, service.tick(50 * TICK));
+  }
+
+  @Test
+  public void lateTickOfMoreThanOneTurn() {
+    service.tick(0);
+
+    MQTTConnection soon = connection();
+    MQTTConnection later = connection();
+    MQTTConnection after = connection();
+    service.schedule(soon, 3 * TICK);
+    service.schedule(later, (WHEEL_SIZE + 100) * TICK);
+    service.schedule(after, (3 * WHEEL_SIZE + 1) * TICK);
+
+    // Every bucket is visited once, whatever was missed in between
+    assertEquals(2, service.tick(3 * WHEEL_SIZE * TICK));
+    assertFalse(soon.wheelLinked);
+    assertFalse(later.wheelLinked);
+    assertTrue(after.wheelLinked);
+
+    assertEquals(1, service.tick((3 * WHEEL_SIZE + 1) * TICK));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsTickBelowAMillisecond() {
+    new MQTTKeepAliveService(100, TimeUnit.MICROSECONDS);
+  }
+
+  private static MQTTConnection connection() {
+    return new MQTTConnection(InetSocketAddress.createUnresolved("localhost", 1883), MQTTConnect.newInstance("wheel"), null, 16);
+  }
+
+}
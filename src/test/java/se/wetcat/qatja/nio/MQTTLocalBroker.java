@@ -0,0 +1,541 @@
+package se.wetcat.qatja.nio;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.wetcat.qatja.MQTTException;
+import se.wetcat.qatja.messages.MQTTConnack;
+import se.wetcat.qatja.messages.MQTTFrameDecoder;
+import se.wetcat.qatja.messages.MQTTMessage;
+import se.wetcat.qatja.messages.MQTTPingresp;
+import se.wetcat.qatja.messages.MQTTPuback;
+import se.wetcat.qatja.messages.MQTTPubcomp;
+import se.wetcat.qatja.messages.MQTTPublish;
+import se.wetcat.qatja.messages.MQTTPubrec;
+import se.wetcat.qatja.messages.MQTTPubrel;
+import se.wetcat.qatja.messages.MQTTSuback;
+import se.wetcat.qatja.messages.MQTTSubscribe;
+import se.wetcat.qatja.messages.MQTTUnsuback;
+import se.wetcat.qatja.messages.MQTTUnsubscribe;
+
+import static se.wetcat.qatja.MQTTConstants.AT_MOST_ONCE;
+import static se.wetcat.qatja.MQTTConstants.CONNECT;
+import static se.wetcat.qatja.MQTTConstants.CONNECTION_ACCEPTED;
+import static se.wetcat.qatja.MQTTConstants.DISCONNECT;
+import static se.wetcat.qatja.MQTTConstants.EXACTLY_ONCE;
+import static se.wetcat.qatja.MQTTConstants.PINGREQ;
+import static se.wetcat.qatja.MQTTConstants.PUBACK;
+import static se.wetcat.qatja.MQTTConstants.PUBCOMP;
+import static se.wetcat.qatja.MQTTConstants.PUBLISH;
+import static se.wetcat.qatja.MQTTConstants.PUBREC;
+import static se.wetcat.qatja.MQTTConstants.PUBREL;
+import static se.wetcat.qatja.MQTTConstants.SUBSCRIBE;
+import static se.wetcat.qatja.MQTTConstants.UNSUBSCRIBE;
+
+/**
+ * Minimal MQTT server on the loopback interface, for tests and simulations
+ * of clients without an external broker.
+ * <p>
+ * It accepts every CONNECT, acknowledges every message, grants every
+ * subscription and forwards every PUBLISH to the clients subscribed to its
+ * topic, with the + and # wildcards, at the lower of the two QoS. There are
+ * no sessions, retained messages, wills or retransmissions. One thread
+ * serves all clients.
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTLocalBroker implements Runnable, Closeable {
+
+  private final Selector selector;
+
+  private final ServerSocketChannel server;
+
+  private final Thread thread;
+
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(MQTTConnection.DEFAULT_BUFFER_SIZE);
+
+  /**
+   * Subscriptions without wildcards, by topic filter
+   */
+  private final Map<String, List<Client>> exact = new HashMap<String, List<Client>>();
+
+  /**
+   * Clients with subscriptions with wildcards
+   */
+  private final List<Client> wildcards = new ArrayList<Client>();
+
+  /**
+   * Clients with encoded messages to write
+   */
+  private final List<Client> dirty = new ArrayList<Client>();
+
+  /**
+   * Matching clients and their QoS, reused for every PUBLISH
+   */
+  private final Map<Client, Integer> matched = new IdentityHashMap<Client, Integer>();
+
+  private final AtomicLong received = new AtomicLong();
+
+  private volatile boolean closed;
+
+  /**
+   * Listen on a free port, see {@link #getAddress()}
+   *
+   * @throws IOException if the port can't be opened
+   */
+  public MQTTLocalBroker() throws IOException {
+    this(0);
+  }
+
+  /**
+   * @param port the port to listen on, 0 for any free port
+   * @throws IOException if the port can't be opened
+   */
+  public MQTTLocalBroker(int port) throws IOException {
+    selector = Selector.open();
+    server = ServerSocketChannel.open();
+    try {
+      server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+      server.configureBlocking(false);
+      server.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      server.close();
+      selector.close();
+      throw e;
+    }
+
+    thread = new Thread(this, "qatja-broker");
+    thread.setDaemon(true);
+  }
+
+  /**
+   * Start serving on a thread of its own
+   *
+   * @return this broker
+   */
+  public MQTTLocalBroker start() {
+    thread.start();
+    return this;
+  }
+
+  /**
+   * @return The address clients connect to
+   */
+  public InetSocketAddress getAddress() {
+    try {
+      return (InetSocketAddress) server.getLocalAddress();
+    } catch (IOException e) {
+      throw new IllegalStateException("Broker is closed", e);
+    }
+  }
+
+  /**
+   * @return The number of PUBLISH messages received from clients
+   */
+  public long getReceived() {
+    return received.get();
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (!closed) {
+        selector.select();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+
+          if (!key.isValid())
+            continue;
+
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+
+          Client client = (Client) key.attachment();
+          try {
+            if (key.isReadable())
+              read(client);
+            if (key.isValid() && key.isWritable())
+              client.flush();
+          } catch (IOException | MQTTException | RuntimeException e) {
+            drop(client);
+          }
+        }
+
+        flush();
+      }
+    } catch (IOException e) {
+      // The selector is broken, nothing can be served
+    } finally {
+      for (SelectionKey key : selector.keys().toArray(new SelectionKey[0])) {
+        if (key.attachment() instanceof Client)
+          drop((Client) key.attachment());
+      }
+      try {
+        server.close();
+        selector.close();
+      } catch (IOException e) {
+        // Nothing left to do
+      }
+    }
+  }
+
+  /**
+   * Stop serving and drop every client
+   */
+  @Override
+  public void close() {
+    closed = true;
+    selector.wakeup();
+
+    if (thread.isAlive() && thread != Thread.currentThread()) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    } else if (!thread.isAlive()) {
+      try {
+        server.close();
+        selector.close();
+      } catch (IOException e) {
+        // Nothing left to do
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel;
+    while ((channel = server.accept()) != null) {
+      channel.configureBlocking(false);
+      Client client = new Client(channel);
+      client.key = channel.register(selector, SelectionKey.OP_READ, client);
+    }
+  }
+
+  private void read(Client client) throws IOException, MQTTException {
+    int read = client.channel.read(readBuffer);
+
+    readBuffer.flip();
+    try {
+      MQTTMessage message;
+      while (client.key.isValid() && (message = client.decoder.decode(readBuffer)) != null) {
+        handle(client, message);
+      }
+    } finally {
+      readBuffer.clear();
+    }
+
+    if (read < 0)
+      drop(client);
+  }
+
+  /**
+   * Write what was encoded for every client while handling the selected keys
+   */
+  private void flush() {
+    for (Client client : dirty) {
+      client.dirty = false;
+      try {
+        client.flush();
+      } catch (IOException e) {
+        drop(client);
+      }
+    }
+    dirty.clear();
+  }
+
+  private void handle(Client client, MQTTMessage message) throws IOException, MQTTException {
+    int identifier = message.getPackageIdentifier();
+
+    switch (message.getType()) {
+      case CONNECT:
+        write(client, MQTTConnack.newInstance(false, CONNECTION_ACCEPTED));
+        break;
+
+      case PUBLISH:
+        MQTTPublish publish = (MQTTPublish) message;
+        received.incrementAndGet();
+
+        if (publish.getQoS() == EXACTLY_ONCE)
+          write(client, MQTTPubrec.newInstance(identifier));
+        else if (publish.getQoS() != AT_MOST_ONCE)
+          write(client, MQTTPuback.newInstance(identifier));
+
+        forward(publish);
+        break;
+
+      case PUBREC:
+        write(client, MQTTPubrel.newInstance(identifier));
+        break;
+
+      case PUBREL:
+        write(client, MQTTPubcomp.newInstance(identifier));
+        break;
+
+      case PUBACK:
+      case PUBCOMP:
+        // Nothing is retransmitted, so nothing to forget
+        break;
+
+      case SUBSCRIBE:
+        MQTTSubscribe subscribe = (MQTTSubscribe) message;
+        byte[] granted = new byte[subscribe.getTopicFilters().length];
+        for (int i = 0; i < granted.length; i++) {
+          subscribe(client, subscribe.getTopicFilters()[i], subscribe.getQoSs()[i]);
+          granted[i] = (byte) Math.min(subscribe.getQoSs()[i], EXACTLY_ONCE);
+        }
+        write(client, MQTTSuback.newInstance(identifier, granted));
+        break;
+
+      case UNSUBSCRIBE:
+        for (String topicFilter : ((MQTTUnsubscribe) message).getTopicFilters()) {
+          unsubscribe(client, topicFilter);
+        }
+        write(client, MQTTUnsuback.newInstance(identifier));
+        break;
+
+      case PINGREQ:
+        write(client, MQTTPingresp.newInstance());
+        break;
+
+      case DISCONNECT:
+        drop(client);
+        break;
+
+      default:
+        throw new MQTTException("Unexpected message type " + message.getType());
+    }
+  }
+
+  private void forward(MQTTPublish publish) throws MQTTException {
+    String topic = publish.getTopicName();
+
+    List<Client> subscribers = exact.get(topic);
+    if (subscribers != null) {
+      for (Client client : subscribers) {
+        match(client, client.QoSs.get(client.topicFilters.indexOf(topic)));
+      }
+    }
+
+    for (Client client : wildcards) {
+      for (int i = 0; i < client.topicFilters.size(); i++) {
+        if (matches(client.topicFilters.get(i), topic))
+          match(client, client.QoSs.get(i));
+      }
+    }
+
+    // Every client gets the message once, at the largest QoS it subscribed
+    // with [MQTT-3.3.5-1]
+    for (Map.Entry<Client, Integer> entry : matched.entrySet()) {
+      Client client = entry.getKey();
+      byte QoS = (byte) Math.min(entry.getValue(), publish.getQoS());
+      write(client, MQTTPublish.newInstance(topic, publish.getPayload(), QoS, QoS == AT_MOST_ONCE ? 0 : client.identifier()));
+    }
+    matched.clear();
+  }
+
+  private void match(Client client, int QoS) {
+    Integer previous = matched.get(client);
+    if (previous == null || previous < QoS)
+      matched.put(client, QoS);
+  }
+
+  private void write(Client client, MQTTMessage message) throws MQTTException {
+    client.write(message);
+    if (!client.dirty) {
+      client.dirty = true;
+      dirty.add(client);
+    }
+  }
+
+  private void subscribe(Client client, String topicFilter, byte QoS) {
+    unsubscribe(client, topicFilter);
+
+    client.topicFilters.add(topicFilter);
+    client.QoSs.add(QoS);
+
+    if (isWildcard(topicFilter)) {
+      if (!wildcards.contains(client))
+        wildcards.add(client);
+    } else {
+      List<Client> subscribers = exact.get(topicFilter);
+      if (subscribers == null) {
+        subscribers = new ArrayList<Client>();
+        exact.put(topicFilter, subscribers);
+      }
+      subscribers.add(client);
+    }
+  }
+
+  private void unsubscribe(Client client, String topicFilter) {
+    int i = client.topicFilters.indexOf(topicFilter);
+    if (i < 0)
+      return;
+
+    client.topicFilters.remove(i);
+    client.QoSs.remove(i);
+
+    if (isWildcard(topicFilter)) {
+      boolean more = false;
+      for (String other : client.topicFilters) {
+        more |= isWildcard(other);
+      }
+      if (!more)
+        wildcards.remove(client);
+    } else {
+      List<Client> subscribers = exact.get(topicFilter);
+      subscribers.remove(client);
+      if (subscribers.isEmpty())
+        exact.remove(topicFilter);
+    }
+  }
+
+  private void drop(Client client) {
+    for (String topicFilter : client.topicFilters.toArray(new String[0])) {
+      unsubscribe(client, topicFilter);
+    }
+
+    client.key.cancel();
+    try {
+      client.channel.close();
+    } catch (IOException e) {
+      // Closed either way
+    }
+  }
+
+  private static boolean isWildcard(String topicFilter) {
+    return topicFilter.indexOf('+') >= 0 || topicFilter.indexOf('#') >= 0;
+  }
+
+  /**
+   * Does the topic filter match the topic name, with the + and # wildcards
+   */
+  static boolean matches(String topicFilter, String topic) {
+    int f = 0;
+    int t = 0;
+
+    while (f < topicFilter.length()) {
+      char c = topicFilter.charAt(f);
+
+      if (c == '#')
+        return true;
+
+      if (c == '+') {
+        while (t < topic.length() && topic.charAt(t) != '/') {
+          t++;
+        }
+        f++;
+        continue;
+      }
+
+      if (t >= topic.length() || topic.charAt(t) != c) {
+        // "a/#" also matches "a"
+        return t >= topic.length() && topicFilter.startsWith("/#", f);
+      }
+
+      f++;
+      t++;
+    }
+
+    return t == topic.length();
+  }
+
+  /**
+   * A connected client
+   */
+  private static class Client {
+
+    private final SocketChannel channel;
+
+    private final MQTTFrameDecoder decoder = new MQTTFrameDecoder();
+
+    private final List<String> topicFilters = new ArrayList<String>();
+    private final List<Byte> QoSs = new ArrayList<Byte>();
+
+    /**
+     * Encoded messages waiting for the socket, in write mode
+     */
+    private ByteBuffer out = ByteBuffer.allocate(1024);
+
+    private SelectionKey key;
+
+    private boolean dirty;
+
+    private int nextIdentifier;
+
+    private Client(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    private void write(MQTTMessage message) throws MQTTException {
+      int size = message.encodedSize();
+      if (out.remaining() < size) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + size));
+        out.flip();
+        grown.put(out);
+        out = grown;
+      }
+      message.writeTo(out);
+    }
+
+    private void flush() throws IOException {
+      if (!key.isValid())
+        return;
+
+      if (out.position() > 0) {
+        out.flip();
+        try {
+          channel.write(out);
+        } finally {
+          out.compact();
+        }
+      }
+
+      key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private int identifier() {
+      nextIdentifier = nextIdentifier % 65535 + 1;
+      return nextIdentifier;
+    }
+
+  }
+
+}
@@ -0,0 +1,82 @@
+package se.wetcat.qatja.nio;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.junit.Test;
+
+import se.wetcat.qatja.MQTTException;
+import se.wetcat.qatja.messages.MQTTPubcomp;
+import se.wetcat.qatja.messages.MQTTPublish;
+import se.wetcat.qatja.messages.MQTTPubrec;
+import se.wetcat.qatja.messages.MQTTPubrel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static se.wetcat.qatja.MQTTConstants.EXACTLY_ONCE;
+import static se.wetcat.qatja.MQTTExactlyOnce.IDLE;
+import static se.wetcat.qatja.MQTTExactlyOnce.PUBLISHED;
+
+/**
+ * Tests of {@link MQTTSessionState}
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTSessionStateTest {
+
+  @Test
+  public void helperTracksExactlyOnce() throws MQTTException {
+    MQTTSessionState.Helper session = new MQTTSessionState.Helper();
+    MQTTPublish publish = publish(9);
+
+    session.send(publish);
+    assertEquals(PUBLISHED, session.exactlyOnce.getSenderState(9));
+    assertSame(publish, session.sent(9));
+
+    MQTTPubrel pubrel = session.pubrec(MQTTPubrec.newInstance(9));
+    assertNotNull(pubrel);
+    assertTrue(session.pubcomp(MQTTPubcomp.newInstance(9)));
+    assertEquals(IDLE, session.exactlyOnce.getSenderState(9));
+  }
+
+  @Test
+  public void helperRefusesIdentifierInFlight() throws MQTTException {
+    MQTTSessionState.Helper session = new MQTTSessionState.Helper();
+    MQTTPublish first = publish(9);
+    session.send(first);
+
+    try {
+      session.send(publish(9));
+      fail("Identifier is in flight");
+    } catch (MQTTException e) {
+      // Expected
+    }
+
+    // The first exchange is untouched
+    assertSame(first, session.sent(9));
+    assertEquals(PUBLISHED, session.exactlyOnce.getSenderState(9));
+  }
+
+  private static MQTTPublish publish(int identifier) {
+    return MQTTPublish.newInstance("qatja/test", new byte[]{1, 2, 3}, EXACTLY_ONCE, identifier);
+  }
+
+}
@@ -0,0 +1,192 @@
+package se.wetcat.qatja.nio;
+
+/*
+ * Copyright (C) 2014 Andreas Goransson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import se.wetcat.qatja.messages.MQTTConnack;
+import se.wetcat.qatja.messages.MQTTConnect;
+import se.wetcat.qatja.messages.MQTTMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static se.wetcat.qatja.MQTTConstants.AT_MOST_ONCE;
+
+/**
+ * Tests of {@link MQTTWriteCoalescer}
+ *
+ * @author Andreas Goransson
+ * @version 1.0.0
+ * @since 2026-10-18
+ */
+public class MQTTWriteCoalescerTest {
+
+  private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void dueAtFlushSize() {
+    MQTTWriteCoalescer coalescer = new MQTTWriteCoalescer(100, 5, TimeUnit.MILLISECONDS);
+    long oldest = 1000;
+
+    assertFalse(coalescer.isDue(0, oldest, oldest));
+    assertFalse(coalescer.isDue(99, oldest, oldest));
+    assertTrue(coalescer.isDue(100, oldest, oldest));
+    assertTrue(coalescer.isDue(101, oldest, oldest));
+  }
+
+  @Test
+  public void dueAfterLinger() {
+    MQTTWriteCoalescer coalescer = new MQTTWriteCoalescer(100, 5, TimeUnit.MILLISECONDS);
+    long oldest = 1000;
+
+    assertFalse(coalescer.isDue(1, oldest, oldest + 5 * MILLISECOND - 1));
+    assertTrue(coalescer.isDue(1, oldest, oldest + 5 * MILLISECOND));
+    assertTrue(coalescer.isDue(1, oldest, oldest + 6 * MILLISECOND));
+  }
+
+  @Test
+  public void remainingCountsDown() {
+    MQTTWriteCoalescer coalescer = new MQTTWriteCoalescer(100, 5, TimeUnit.MILLISECONDS);
+    long oldest = 1000;
+
+    assertEquals(5 * MILLISECOND, coalescer.remaining(oldest, oldest));
+    assertEquals(2 * MILLISECOND, coalescer.remaining(oldest, oldest + 3 * MILLISECOND));
+    assertEquals(0, coalescer.remaining(oldest, oldest + 5 * MILLISECOND));
+    assertTrue(coalescer.remaining(oldest, oldest + 6 * MILLISECOND) < 0);
+  }
+
+  @Test
+  public void survivesClockWrapAround() {
+    MQTTWriteCoalescer coalescer = new MQTTWriteCoalescer(100, 5, TimeUnit.MILLISECONDS);
+    // System.nanoTime() may wrap from positive to negative
+    long oldest = Long.MAX_VALUE - MILLISECOND;
+
+    assertFalse(coalescer.isDue(1, oldest, oldest + 2 * MILLISECOND));
+    assertEquals(3 * MILLISECOND, coalescer.remaining(oldest, oldest + 2 * MILLISECOND));
+    assertTrue(coalescer.isDue(1, oldest, oldest + 5 * MILLISECOND));
+  }
+
+  @Test
+  public void zeroThresholdsAreAlwaysDue() {
+    MQTTWriteCoalescer unbatched = new MQTTWriteCoalescer(0, 5, TimeUnit.MILLISECONDS);
+    assertTrue(unbatched.isDue(0, 1000, 1000));
+
+    MQTTWriteCoalescer impatient = new MQTTWriteCoalescer(100, 0, TimeUnit.MILLISECONDS);
+    assertTrue(impatient.isDue(1, 1000, 1000));
+    assertEquals(0, impatient.remaining(1000, 1000));
+  }
+
+  @Test
+  public void defaults() {
+    MQTTWriteCoalescer coalescer = new MQTTWriteCoalescer();
+    assertEquals(MQTTWriteCoalescer.DEFAULT_FLUSH_SIZE, coalescer.getFlushSize());
+    assertEquals(MQTTWriteCoalescer.DEFAULT_LINGER, coalescer.getLinger(TimeUnit.MILLISECONDS));
+    assertEquals(MQTTWriteCoalescer.DEFAULT_LINGER * 1000, coalescer.getLinger(TimeUnit.MICROSECONDS));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNegativeFlushSize() {
+    new MQTTWriteCoalescer(-1, 5, TimeUnit.MILLISECONDS);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNegativeLinger() {
+    new MQTTWriteCoalescer(100, -1, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void countsFlushes() {
+    MQTTWriteCoalescer coalescer = new MQTTWriteCoalescer();
+    assertEquals(0.0, coalescer.getPacketsPerWrite(), 0.0);
+
+    coalescer.flushed(6, 1, 120);
+    coalescer.flushed(0, 1, 30);
+    assertEquals(6, coalescer.getPackets());
+    assertEquals(2, coalescer.getWrites());
+    assertEquals(150, coalescer.getBytes());
+    assertEquals(3.0, coalescer.getPacketsPerWrite(), 0.0);
+
+    coalescer.reset();
+    assertEquals(0, coalescer.getPackets());
+    assertEquals(0, coalescer.getWrites());
+    assertEquals(0, coalescer.getBytes());
+  }
+
+  @Test
+  public void coalescesQueuedMessages() throws Exception {
+    MQTTLocalBroker broker = new MQTTLocalBroker().start();
+    MQTTWriteCoalescer coalescer = new MQTTWriteCoalescer(1 << 20, 200, TimeUnit.MILLISECONDS);
+    final Object lock = new Object();
+    final boolean[] connected = new boolean[1];
+
+    MQTTConnection connection = new MQTTConnection(broker.getAddress(), MQTTConnect.newInstance("coalesced"),
+        new MQTTConnection.Listener() {
+          @Override
+          public void connected(MQTTConnack connack) {
+            synchronized (lock) {
+              connected[0] = true;
+              lock.notifyAll();
+            }
+          }
+
+          @Override
+          public void received(MQTTMessage message) {
+          }
+
+          @Override
+          public void closed(Exception cause) {
+          }
+        }, MQTTConnection.DEFAULT_BUFFER_SIZE, coalescer);
+
+    Thread thread = new Thread(connection, "coalesced");
+    thread.start();
+    try {
+      synchronized (lock) {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!connected[0] && System.currentTimeMillis() < deadline) {
+          lock.wait(100);
+        }
+      }
+      assertTrue(connected[0]);
+
+      // Far below the flush size, written together once the linger runs out
+      for (int i = 0; i < 10; i++) {
+        connection.publish("coalesced", new byte[]{(byte) i}, AT_MOST_ONCE, false);
+      }
+
+      long deadline = System.currentTimeMillis() + 10000;
+      while (broker.getReceived() < 10) {
+        if (System.currentTimeMillis() > deadline)
+          fail("Broker received " + broker.getReceived() + " of 10");
+        Thread.sleep(5);
+      }
+
+      // The CONNECT, then the ten messages in one write
+      assertEquals(11, coalescer.getPackets());
+      assertEquals(2, coalescer.getWrites());
+    } finally {
+      connection.close();
+      thread.join(10000);
+      broker.close();
+    }
+  }
+
+}